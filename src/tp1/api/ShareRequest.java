@@ -0,0 +1,49 @@
+package tp1.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Files of a user to share (or unshare), all of them with each of the users.
+ */
+public class ShareRequest {
+	/**
+	 * Names of the files, all owned by the same user
+	 */
+	private List<String> filenames;
+	/**
+	 * Users to share the files with (or unshare them with)
+	 */
+	private List<String> users;
+
+	public ShareRequest() {
+		this.filenames = new ArrayList<>();
+		this.users = new ArrayList<>();
+	}
+
+	public ShareRequest(List<String> filenames, List<String> users) {
+		this.filenames = filenames;
+		this.users = users;
+	}
+
+	public List<String> getFilenames() {
+		return filenames;
+	}
+
+	public void setFilenames(List<String> filenames) {
+		this.filenames = filenames;
+	}
+
+	public List<String> getUsers() {
+		return users;
+	}
+
+	public void setUsers(List<String> users) {
+		this.users = users;
+	}
+
+	@Override
+	public String toString() {
+		return "ShareRequest [filenames=" + filenames + ", users=" + users + "]";
+	}
+}
@@ -0,0 +1,102 @@
+package tp1.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Permission to write a file directly to the Files servers, bypassing the
+ * Directory.
+ *
+ * The client writes the file to the servers in uris, in order, using token,
+ * then commits the grant back to the Directory, filling in the servers that
+ * stored the file and its size.
+ */
+public class WriteGrant {
+	private String fileId;
+	/**
+	 * Files servers chosen for the file, the first ones preferred
+	 */
+	private List<String> uris;
+	/**
+	 * Short-lived "wr" token, accepted by the Files servers
+	 */
+	private String token;
+	/**
+	 * Vouches for the fields above, so the grant can be committed at any replica
+	 */
+	private String signature;
+	/**
+	 * Filled in by the client: the servers that stored the file
+	 */
+	private List<String> stored;
+	/**
+	 * Filled in by the client: the size of the file
+	 */
+	private long size;
+
+	public WriteGrant() {
+		this.uris = new ArrayList<>();
+		this.stored = new ArrayList<>();
+	}
+
+	public WriteGrant(String fileId, List<String> uris, String token, String signature) {
+		this.fileId = fileId;
+		this.uris = uris;
+		this.token = token;
+		this.signature = signature;
+		this.stored = new ArrayList<>();
+	}
+
+	public String getFileId() {
+		return fileId;
+	}
+
+	public void setFileId(String fileId) {
+		this.fileId = fileId;
+	}
+
+	public List<String> getUris() {
+		return uris;
+	}
+
+	public void setUris(List<String> uris) {
+		this.uris = uris;
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	public void setToken(String token) {
+		this.token = token;
+	}
+
+	public String getSignature() {
+		return signature;
+	}
+
+	public void setSignature(String signature) {
+		this.signature = signature;
+	}
+
+	public List<String> getStored() {
+		return stored;
+	}
+
+	public void setStored(List<String> stored) {
+		this.stored = stored;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	@Override
+	public String toString() {
+		return "WriteGrant [fileId=" + fileId + ", uris=" + uris + ", stored=" + stored + ", size=" + size + "]";
+	}
+}
@@ -1,8 +1,10 @@
 package tp1.api.service.java;
 
+import java.util.Comparator;
 import java.util.List;
 
 import tp1.api.FileInfo;
+import tp1.api.WriteGrant;
 
 public interface Directory {
 
@@ -19,6 +21,121 @@ public interface Directory {
 	Result<byte[]> getFile(String filename,  String userId, String accUserId, String password);
 
 	Result<List<FileInfo>> lsFile(String userId, String password);
+
+	/**
+	 * Paginated variant of lsFile. Files are listed by ascending fileId
+	 * (owner$$$filename); a page starts after the cursor, which is the fileId
+	 * of the last file of the previous page.
+	 *
+	 * @param limit  - maximum number of files in the page; 0 for no limit.
+	 * @param cursor - fileId of the last file already listed, null for the first page.
+	 */
+	default Result<List<FileInfo>> lsFile(String userId, String password, int limit, String cursor) {
+		var res = lsFile(userId, password);
+		if (!res.isOK())
+			return res;
+		var page = res.value().stream()
+				.sorted(Comparator.comparing((FileInfo f) -> f.getOwner() + "$$$" + f.getFilename()))
+				.filter(f -> cursor == null || (f.getOwner() + "$$$" + f.getFilename()).compareTo(cursor) > 0)
+				.limit(limit > 0 ? limit : Long.MAX_VALUE)
+				.toList();
+		return Result.ok(page);
+	}
 		
 	Result<Void> deleteUserFiles(String userId, String password, String token);
+
+	/**
+	 * Starts a resumable upload of the file "userId/filename". Only the owner can
+	 * upload the file. The file only changes once the upload is committed.
+	 *
+	 * @return the id of the upload session.
+	 */
+	default Result<String> startUpload(String filename, String userId, String password) {
+		return Result.error(Result.ErrorCode.NOT_IMPLEMENTED);
+	}
+
+	/**
+	 * Appends a chunk to an upload session, at the given offset.
+	 *
+	 * @return the length of the data uploaded so far; CONFLICT if the offset would leave a gap.
+	 */
+	default Result<Long> appendUpload(String filename, String userId, String uploadId, long offset, byte[] data) {
+		return Result.error(Result.ErrorCode.NOT_IMPLEMENTED);
+	}
+
+	/**
+	 * @return the length of the data uploaded so far, ie. where the upload should resume.
+	 */
+	default Result<Long> getUploadOffset(String filename, String userId, String uploadId) {
+		return Result.error(Result.ErrorCode.NOT_IMPLEMENTED);
+	}
+
+	/**
+	 * Ends an upload session, making the uploaded data the new version of the file.
+	 */
+	default Result<FileInfo> commitUpload(String filename, String userId, String uploadId, String password) {
+		return Result.error(Result.ErrorCode.NOT_IMPLEMENTED);
+	}
+
+	/**
+	 * Prepares a direct write of the file "userId/filename": picks the Files
+	 * servers that should store it, and grants a short-lived token to write it
+	 * there. Only the owner can write the file. The file only changes once the
+	 * write is committed.
+	 */
+	default Result<WriteGrant> prepareWrite(String filename, String userId, String password) {
+		return Result.error(Result.ErrorCode.NOT_IMPLEMENTED);
+	}
+
+	/**
+	 * Ends a direct write, making the data stored at the servers listed by the
+	 * grant the new version of the file.
+	 */
+	default Result<FileInfo> commitWrite(String filename, String userId, WriteGrant grant, String password) {
+		return Result.error(Result.ErrorCode.NOT_IMPLEMENTED);
+	}
+
+	/**
+	 * Shares (or unshares) each of the files "userId/filename" with each of the
+	 * users, in one request. Only the owner (userId) can share its files.
+	 * Nothing is shared if any of the files or users does not exist.
+	 */
+	default Result<Void> shareFiles(String userId, List<String> filenames, List<String> userIdShares, boolean shared, String password) {
+		return Result.error(Result.ErrorCode.NOT_IMPLEMENTED);
+	}
+
+	/**
+	 * Used between the shards of a sharded Directory: records, at the shard of
+	 * userIdShare, that a file owned by a user of another shard is shared with
+	 * userIdShare, or no longer is.
+	 */
+	default Result<Void> linkShare(String fileId, String userIdShare, boolean shared, String token) {
+		return Result.error(Result.ErrorCode.NOT_IMPLEMENTED);
+	}
+
+	/**
+	 * Used between the shards of a sharded Directory: linkShare of many files,
+	 * all shared with (or unshared from) userIdShare.
+	 */
+	default Result<Void> linkShares(List<String> fileIds, String userIdShare, boolean shared, String token) {
+		return Result.error(Result.ErrorCode.NOT_IMPLEMENTED);
+	}
+
+	/**
+	 * Used between the shards of a sharded Directory: stops sharing the given
+	 * files, owned by users of the shard called, with userIdShare, eg. because
+	 * userIdShare was deleted. Unknown files are left out.
+	 */
+	default Result<Void> revokeShares(List<String> fileIds, String userIdShare, String token) {
+		return Result.error(Result.ErrorCode.NOT_IMPLEMENTED);
+	}
+
+	/**
+	 * Used between the shards of a sharded Directory.
+	 *
+	 * @return the metadata of the given files, leaving out the unknown ones.
+	 */
+	default Result<List<FileInfo>> getFileInfos(List<String> fileIds, String token) {
+		return Result.error(Result.ErrorCode.NOT_IMPLEMENTED);
+	}
 }
@@ -1,14 +1,108 @@
 package tp1.api.service.java;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
 public interface Files {
 	public static String SERVICE_NAME = "files";
-	
+
 	Result<byte[]> getFile(String fileId, String token);
 
 	Result<Void> deleteFile(String fileId, String token);
-	
+
 	Result<Void> writeFile(String fileId, byte[] data, String token);
 
 	Result<Void> deleteUserFiles(String userId, String token);
-	
+
+	/**
+	 * Streaming variant of getFile, for files that should not be held in memory as a whole.
+	 * The caller owns the returned stream and must close it.
+	 *
+	 * By default, falls back to getFile.
+	 */
+	default Result<InputStream> getFileStream(String fileId, String token) {
+		var res = getFile(fileId, token);
+		if (res.isOK())
+			return Result.ok(new ByteArrayInputStream(res.value()));
+		else
+			return Result.error(res.error(), res.errorValue());
+	}
+
+	/**
+	 * @return the size of the file, in bytes.
+	 *
+	 * By default, falls back to getFile.
+	 */
+	default Result<Long> getFileSize(String fileId, String token) {
+		var res = getFile(fileId, token);
+		if (res.isOK())
+			return Result.ok((long) res.value().length);
+		else
+			return Result.error(res.error(), res.errorValue());
+	}
+
+	/**
+	 * Reads length bytes of the file, starting at offset. The result is shorter
+	 * if the file ends before offset + length.
+	 *
+	 * By default, falls back to getFile.
+	 */
+	default Result<byte[]> getFileRange(String fileId, long offset, long length, String token) {
+		var res = getFile(fileId, token);
+		if (!res.isOK())
+			return res;
+		var data = res.value();
+		int from = (int) Math.min(offset, data.length);
+		int to = from + (int) Math.min(length, data.length - from);
+		return Result.ok(Arrays.copyOfRange(data, from, to));
+	}
+
+	/**
+	 * Streaming variant of writeFile, for files that should not be held in memory as a whole.
+	 *
+	 * By default, buffers the stream and falls back to writeFile.
+	 */
+	default Result<Void> writeFileStream(String fileId, InputStream data, String token) {
+		try {
+			return writeFile(fileId, data.readAllBytes(), token);
+		} catch (IOException x) {
+			return Result.error(Result.ErrorCode.BAD_REQUEST, x);
+		}
+	}
+
+	/**
+	 * Starts a resumable upload of the file. The chunks are staged by the server
+	 * and only replace the contents of the file when the upload is committed.
+	 *
+	 * @return the id of the upload session.
+	 */
+	default Result<String> startUpload(String fileId, String token) {
+		return Result.error(Result.ErrorCode.NOT_IMPLEMENTED);
+	}
+
+	/**
+	 * Appends a chunk to an upload session. The offset must not be past the end of
+	 * the data staged so far; resending a chunk overwrites the data from its offset on.
+	 *
+	 * @return the length of the data staged so far; CONFLICT if the offset would leave a gap.
+	 */
+	default Result<Long> appendUpload(String fileId, String uploadId, long offset, byte[] data) {
+		return Result.error(Result.ErrorCode.NOT_IMPLEMENTED);
+	}
+
+	/**
+	 * @return the length of the data staged so far, ie. where the upload should resume.
+	 */
+	default Result<Long> getUploadOffset(String fileId, String uploadId) {
+		return Result.error(Result.ErrorCode.NOT_IMPLEMENTED);
+	}
+
+	/**
+	 * Ends an upload session, replacing the contents of the file with the staged data.
+	 */
+	default Result<Void> commitUpload(String fileId, String uploadId) {
+		return Result.error(Result.ErrorCode.NOT_IMPLEMENTED);
+	}
 }
@@ -4,7 +4,10 @@ import java.util.List;
 
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
 import tp1.api.FileInfo;
+import tp1.api.ShareRequest;
+import tp1.api.WriteGrant;
 
 @Path(RestDirectory.PATH)
 public interface RestDirectory {
@@ -17,6 +20,18 @@ public interface RestDirectory {
 	public static final String ACC_USER_ID = "accUserId";
 	public static final String USER_ID_SHARE = "userIdShare";
 	public static final String VERSION_HEADER = "X-DFS-Versao";
+	public static final String UPLOAD = "upload";
+	public static final String UPLOAD_ID = "uploadId";
+	public static final String WRITE = "write";
+	public static final String OFFSET = "offset";
+	public static final String OFFSET_HEADER = RestFiles.OFFSET_HEADER;
+	public static final String LIMIT = "limit";
+	public static final String CURSOR = "cursor";
+	public static final String SHARDS = "_shards";
+	public static final String SHARED = "shared";
+	public static final String REVOKED = "revoked";
+	public static final String FILE_ID = "fileId";
+	public static final String SHARES = "_shares";
 
 	/**
 	 * Write a new version of a file. If the file exists, its contents are
@@ -104,20 +119,44 @@ public interface RestDirectory {
 	void unshareFile(@HeaderParam(VERSION_HEADER) Long version, @PathParam(FILENAME) String filename, @PathParam(USER_ID) String userId,
 					 @PathParam(USER_ID_SHARE) String userIdShare, @QueryParam(PASSWORD) String password);
 
+	/**
+	 * Share (or unshare) each of the files "userId/filename" of the request with
+	 * each of its users, at once. Only the owner (userId) can share its files.
+	 * Nothing is shared if any of the files or users does not exist.
+	 *
+	 * @param version
+	 * @param userId   - id of the user.
+	 * @param request  - the names of the files, and the users to share them with.
+	 * @param shared   - true to share the files, false to unshare them.
+	 * @param password - the password of the user.
+	 *
+	 * @return 204 if success; 404 if the userId or any of the users or files does
+	 *         not exist. 403 if the password is incorrect. 400 otherwise.
+	 */
+	@POST
+	@Path("/" + SHARES + "/{" + USER_ID + "}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	void shareFiles(@HeaderParam(VERSION_HEADER) Long version, @PathParam(USER_ID) String userId, ShareRequest request,
+					@QueryParam(SHARED) @DefaultValue("true") boolean shared, @QueryParam(PASSWORD) String password);
+
 	/**
 	 * Get the contents of the file "userId/filename". Who can read a file: the
 	 * owner and the users with whom the file has been shared.
 	 * 
 	 * This operation should be implemented using HTTP redirect on success.
 	 * 
+	 * A Range header is resent by the client along the redirect; when the file
+	 * is proxied by the directory instead, the range is applied here.
 	 *
 	 * @param version
 	 * @param filename  - name of the file.
 	 * @param userId    - id of the user.
 	 * @param accUserId - id of the user executing the operation.
 	 * @param password  - the password of accUserId.
+	 * @param range     - the byte range to read (optional).
 	 *
-	 * @return 200 if success + contents (through redirect to the File server); 404
+	 * @return 200 if success + contents (through redirect to the File server); 206
+	 *         + the requested range; 404
 	 *         if the userId or filename or accUserId does not exist. 403 if the
 	 *         password is incorrect or the user cannot access the file. 400
 	 *         otherwise.
@@ -125,16 +164,22 @@ public interface RestDirectory {
 	@GET
 	@Path("/{" + USER_ID + "}/{" + FILENAME + "}")
 	@Produces(MediaType.APPLICATION_OCTET_STREAM)
-	byte[] getFile(@HeaderParam(VERSION_HEADER) Long version, @PathParam(FILENAME) String filename, @PathParam(USER_ID) String userId,
-				   @QueryParam(ACC_USER_ID) String accUserId, @QueryParam(PASSWORD) String password);
+	Response getFile(@HeaderParam(VERSION_HEADER) Long version, @PathParam(FILENAME) String filename, @PathParam(USER_ID) String userId,
+				   @QueryParam(ACC_USER_ID) String accUserId, @QueryParam(PASSWORD) String password,
+				   @HeaderParam(RestFiles.RANGE) String range);
 
 	/**
 	 * List the files a given user ("userId") has access to - this includes both its
 	 * own files and the files shared with her.
 	 * 
+	 * Files are listed by ascending "owner$$$filename". To get the next page, pass
+	 * the "owner$$$filename" of the last file of the previous page as the cursor.
+	 * 
 	 * @param version
 	 * @param userId   - id of the user.
 	 * @param password - the password of the user.
+	 * @param limit    - maximum number of files returned (optional, 0 for all).
+	 * @param cursor   - where the previous page ended (optional).
 	 *
 	 * @return 200 if success + list of FileInfo; 404 if the userId does not exist.
 	 *         403 if the password is incorrect. 400 otherwise.
@@ -142,10 +187,154 @@ public interface RestDirectory {
 	@GET
 	@Path("/{" + USER_ID + "}")
 	@Produces(MediaType.APPLICATION_JSON)
-	List<FileInfo> lsFile(@HeaderParam(VERSION_HEADER) Long version, @PathParam(USER_ID) String userId, @QueryParam(PASSWORD) String password);
+	List<FileInfo> lsFile(@HeaderParam(VERSION_HEADER) Long version, @PathParam(USER_ID) String userId, @QueryParam(PASSWORD) String password,
+						  @QueryParam(LIMIT) @DefaultValue("0") int limit, @QueryParam(CURSOR) String cursor);
+
+	/**
+	 * Starts a resumable upload of the file "userId/filename". Only the owner
+	 * (userId) can upload the file. The file only changes once the upload is
+	 * committed.
+	 * 
+	 * @param version
+	 * @param filename - name of the file.
+	 * @param userId   - id of the user.
+	 * @param password - the password of the user.
+	 *
+	 * @return 200 + the id of the upload session. 404 if the userId does not
+	 *         exist. 403 if the password is incorrect. 400 otherwise.
+	 */
+	@POST
+	@Path("/{" + USER_ID + "}/{" + FILENAME + "}/" + UPLOAD)
+	@Produces(MediaType.APPLICATION_JSON)
+	String startUpload(@HeaderParam(VERSION_HEADER) Long version, @PathParam(FILENAME) String filename, @PathParam(USER_ID) String userId,
+					   @QueryParam(PASSWORD) String password);
+
+	/**
+	 * Appends a chunk to an upload session. The chunk is replicated to the file
+	 * servers before the call returns.
+	 * 
+	 * @param version
+	 * @param filename - name of the file.
+	 * @param userId   - id of the user.
+	 * @param uploadId - id of the upload session.
+	 * @param offset   - offset of the chunk, which cannot be past the end of the
+	 *                 data uploaded so far.
+	 * @param data     - the chunk.
+	 *
+	 * @return 200 + the length of the data uploaded so far; 404 if there is no
+	 *         such upload; 409 if the offset would leave a gap, with the offset
+	 *         expected in OFFSET_HEADER.
+	 */
+	@PUT
+	@Path("/{" + USER_ID + "}/{" + FILENAME + "}/" + UPLOAD + "/{" + UPLOAD_ID + "}")
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	@Produces(MediaType.APPLICATION_JSON)
+	Long appendUpload(@HeaderParam(VERSION_HEADER) Long version, @PathParam(FILENAME) String filename, @PathParam(USER_ID) String userId,
+					  @PathParam(UPLOAD_ID) String uploadId, @QueryParam(OFFSET) long offset, byte[] data);
+
+	/**
+	 * @param version
+	 * @param filename - name of the file.
+	 * @param userId   - id of the user.
+	 * @param uploadId - id of the upload session.
+	 *
+	 * @return 200 + the length of the data uploaded so far, ie. where the upload
+	 *         should resume; 404 if there is no such upload.
+	 */
+	@GET
+	@Path("/{" + USER_ID + "}/{" + FILENAME + "}/" + UPLOAD + "/{" + UPLOAD_ID + "}")
+	@Produces(MediaType.APPLICATION_JSON)
+	Long getUploadOffset(@HeaderParam(VERSION_HEADER) Long version, @PathParam(FILENAME) String filename, @PathParam(USER_ID) String userId,
+						 @PathParam(UPLOAD_ID) String uploadId);
+
+	/**
+	 * Commits an upload, making the uploaded data the new version of the file.
+	 * 
+	 * @param version
+	 * @param filename - name of the file.
+	 * @param userId   - id of the user.
+	 * @param uploadId - id of the upload session.
+	 * @param password - the password of the user.
+	 *
+	 * @return 200 + FileInfo representing the file. 404 if there is no such
+	 *         upload. 403 if the password is incorrect. 400 otherwise.
+	 */
+	@POST
+	@Path("/{" + USER_ID + "}/{" + FILENAME + "}/" + UPLOAD + "/{" + UPLOAD_ID + "}")
+	@Produces(MediaType.APPLICATION_JSON)
+	FileInfo commitUpload(@HeaderParam(VERSION_HEADER) Long version, @PathParam(FILENAME) String filename, @PathParam(USER_ID) String userId,
+						  @PathParam(UPLOAD_ID) String uploadId, @QueryParam(PASSWORD) String password);
+
+	/**
+	 * Prepares a direct write of the file "userId/filename". Only the owner
+	 * (userId) can write the file. The client then writes the file to the
+	 * granted file servers itself, and commits the grant.
+	 * 
+	 * @param version
+	 * @param filename - name of the file.
+	 * @param userId   - id of the user.
+	 * @param password - the password of the user.
+	 *
+	 * @return 200 + the write grant. 404 if the userId does not exist. 403 if
+	 *         the password is incorrect. 400 otherwise.
+	 */
+	@POST
+	@Path("/{" + USER_ID + "}/{" + FILENAME + "}/" + WRITE)
+	@Produces(MediaType.APPLICATION_JSON)
+	WriteGrant prepareWrite(@HeaderParam(VERSION_HEADER) Long version, @PathParam(FILENAME) String filename, @PathParam(USER_ID) String userId,
+							@QueryParam(PASSWORD) String password);
+
+	/**
+	 * Commits a direct write, making the data stored at the file servers the new
+	 * version of the file.
+	 * 
+	 * @param version
+	 * @param filename - name of the file.
+	 * @param userId   - id of the user.
+	 * @param grant    - the grant, with the servers that stored the file and its
+	 *                 size filled in.
+	 * @param password - the password of the user.
+	 *
+	 * @return 200 + FileInfo representing the file. 403 if the password is
+	 *         incorrect or the grant is not valid. 400 otherwise.
+	 */
+	@PUT
+	@Path("/{" + USER_ID + "}/{" + FILENAME + "}/" + WRITE)
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	FileInfo commitWrite(@HeaderParam(VERSION_HEADER) Long version, @PathParam(FILENAME) String filename, @PathParam(USER_ID) String userId,
+						 WriteGrant grant, @QueryParam(PASSWORD) String password);
 
 	@DELETE
 	@Path("{" + USER_ID + "}")
 	void deleteUserFiles(@HeaderParam(VERSION_HEADER) Long version, @PathParam(USER_ID) String userId, @QueryParam(PASSWORD) @DefaultValue("") String password, @QueryParam(TOKEN) String token);
 
+	@PUT
+	@Path("/" + SHARDS + "/" + SHARED + "/{" + USER_ID_SHARE + "}/{" + FILE_ID + "}")
+	void linkShare(@HeaderParam(VERSION_HEADER) Long version, @PathParam(FILE_ID) String fileId, @PathParam(USER_ID_SHARE) String userIdShare,
+				   @QueryParam(TOKEN) String token);
+
+	@DELETE
+	@Path("/" + SHARDS + "/" + SHARED + "/{" + USER_ID_SHARE + "}/{" + FILE_ID + "}")
+	void unlinkShare(@HeaderParam(VERSION_HEADER) Long version, @PathParam(FILE_ID) String fileId, @PathParam(USER_ID_SHARE) String userIdShare,
+					 @QueryParam(TOKEN) String token);
+
+	@POST
+	@Path("/" + SHARDS + "/" + SHARED + "/{" + USER_ID_SHARE + "}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	void linkShares(@HeaderParam(VERSION_HEADER) Long version, List<String> fileIds, @PathParam(USER_ID_SHARE) String userIdShare,
+					@QueryParam(SHARED) @DefaultValue("true") boolean shared, @QueryParam(TOKEN) String token);
+
+	@POST
+	@Path("/" + SHARDS + "/" + REVOKED + "/{" + USER_ID_SHARE + "}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	void revokeShares(@HeaderParam(VERSION_HEADER) Long version, List<String> fileIds, @PathParam(USER_ID_SHARE) String userIdShare,
+					  @QueryParam(TOKEN) String token);
+
+	@POST
+	@Path("/" + SHARDS)
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	List<FileInfo> getFileInfos(@HeaderParam(VERSION_HEADER) Long version, List<String> fileIds, @QueryParam(TOKEN) String token);
+
 }
@@ -1,15 +1,20 @@
 package tp1.api.service.rest;
 
+import java.io.InputStream;
+
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.DefaultValue;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.POST;
+import jakarta.ws.rs.PUT;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
 
 @Path(RestFiles.PATH)
 public interface RestFiles {
@@ -18,11 +23,21 @@ public interface RestFiles {
 	public static final String TOKEN = "token";
 	public static final String FILE_ID = "fileId";
 	public static final String USER_ID = "userId";
+	public static final String RANGE = "Range";
+	public static final String IF_RANGE = "If-Range";
+	public static final String UPLOAD = "upload";
+	public static final String UPLOAD_ID = "uploadId";
+	public static final String OFFSET = "offset";
+	public static final String OFFSET_HEADER = "X-DFS-Offset";
 
 	/**
 	 * Write a file. If the file exists, overwrites the contents.
 	 * 
+	 * The contents are consumed as a stream, so the file is never held in memory
+	 * as a whole.
+	 * 
 	 * @param fileId - unique id of the file.
+	 * @param data   - contents of the file.
 	 * @param token  - token for accessing the file server (in the first project
 	 *               this will not be used).
 	 *
@@ -31,7 +46,7 @@ public interface RestFiles {
 	@POST
 	@Path("/{" + FILE_ID + "}")
 	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
-	void writeFile(@PathParam(FILE_ID) String fileId, byte[] data, @QueryParam(TOKEN) @DefaultValue("") String token);
+	void writeFile(@PathParam(FILE_ID) String fileId, InputStream data, @QueryParam(TOKEN) @DefaultValue("") String token);
 
 	/**
 	 * Delete an existing file.
@@ -50,18 +65,87 @@ public interface RestFiles {
 	/**
 	 * Get the contents of the file.
 	 * 
-	 * @param fileId - unique id of the file.
-	 * @param token  - token for accessing the file server (in the first project
-	 *               this will not be used).
+	 * The contents are streamed into the response, so the file is never held in
+	 * memory as a whole. The response carries a Content-Length and an ETag.
+	 * 
+	 * A single byte range can be requested with the Range header, optionally
+	 * conditioned by If-Range on the ETag of a previous response.
 	 * 
-	 * @return 200 if success + contents (through redirect to the File server); 404
-	 *         if the uniqueId does not exist. 403 if the password is incorrect. 400
-	 *         otherwise.
+	 * @param fileId  - unique id of the file.
+	 * @param token   - token for accessing the file server (in the first project
+	 *                this will not be used).
+	 * @param range   - the byte range to read (optional).
+	 * @param ifRange - the ETag the range applies to (optional).
+	 * 
+	 * @return 200 if success + contents (through redirect to the File server); 206
+	 *         + the requested range; 416 if the range starts past the end of the
+	 *         file; 404 if the uniqueId does not exist. 403 if the password is
+	 *         incorrect. 400 otherwise.
 	 */
 	@GET
 	@Path("/{" + FILE_ID + "}")
 	@Produces(MediaType.APPLICATION_OCTET_STREAM)
-	byte[] getFile(@PathParam(FILE_ID) String fileId, @QueryParam(TOKEN) @DefaultValue("") String token);
+	Response getFile(@PathParam(FILE_ID) String fileId, @QueryParam(TOKEN) @DefaultValue("") String token,
+			@HeaderParam(RANGE) String range, @HeaderParam(IF_RANGE) String ifRange);
+
+	/**
+	 * Starts a resumable upload of a file. The contents of the file are only
+	 * replaced once the upload is committed.
+	 * 
+	 * @param fileId - unique id of the file.
+	 * @param token  - token for writing the file.
+	 * 
+	 * @return 200 + the id of the upload session. 403 if the token is invalid.
+	 */
+	@POST
+	@Path("/{" + FILE_ID + "}/" + UPLOAD)
+	@Produces(MediaType.APPLICATION_JSON)
+	String startUpload(@PathParam(FILE_ID) String fileId, @QueryParam(TOKEN) @DefaultValue("") String token);
+
+	/**
+	 * Stages a chunk of an upload, at the given offset. The offset cannot be past
+	 * the end of the data staged so far; a resent chunk overwrites the data from
+	 * its offset on.
+	 * 
+	 * @param fileId   - unique id of the file.
+	 * @param uploadId - id of the upload session.
+	 * @param offset   - offset of the chunk.
+	 * @param data     - the chunk.
+	 * 
+	 * @return 200 + the length of the data staged so far; 404 if there is no such
+	 *         upload; 409 if the offset would leave a gap, with the offset
+	 *         expected in OFFSET_HEADER.
+	 */
+	@PUT
+	@Path("/{" + FILE_ID + "}/" + UPLOAD + "/{" + UPLOAD_ID + "}")
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	@Produces(MediaType.APPLICATION_JSON)
+	Long appendUpload(@PathParam(FILE_ID) String fileId, @PathParam(UPLOAD_ID) String uploadId,
+			@QueryParam(OFFSET) long offset, byte[] data);
+
+	/**
+	 * @param fileId   - unique id of the file.
+	 * @param uploadId - id of the upload session.
+	 * 
+	 * @return 200 + the length of the data staged so far, ie. where the upload
+	 *         should resume; 404 if there is no such upload.
+	 */
+	@GET
+	@Path("/{" + FILE_ID + "}/" + UPLOAD + "/{" + UPLOAD_ID + "}")
+	@Produces(MediaType.APPLICATION_JSON)
+	Long getUploadOffset(@PathParam(FILE_ID) String fileId, @PathParam(UPLOAD_ID) String uploadId);
+
+	/**
+	 * Commits an upload, replacing the contents of the file with the staged data.
+	 * 
+	 * @param fileId   - unique id of the file.
+	 * @param uploadId - id of the upload session.
+	 * 
+	 * @return 204 if success; 404 if there is no such upload.
+	 */
+	@POST
+	@Path("/{" + FILE_ID + "}/" + UPLOAD + "/{" + UPLOAD_ID + "}")
+	void commitUpload(@PathParam(FILE_ID) String fileId, @PathParam(UPLOAD_ID) String uploadId);
 
 	@DELETE
 	@Path("/user/{" + USER_ID + "}")
@@ -2,8 +2,10 @@ package tp1.api.service.soap;
 
 import java.util.List;
 
+import jakarta.activation.DataHandler;
 import jakarta.jws.WebMethod;
 import jakarta.jws.WebService;
+import jakarta.xml.bind.annotation.XmlMimeType;
 import tp1.api.FileInfo;
 
 @WebService(serviceName=SoapDirectory.NAME, targetNamespace=SoapDirectory.NAMESPACE, endpointInterface=SoapDirectory.INTERFACE)
@@ -29,6 +31,13 @@ public interface SoapDirectory {
 	@WebMethod
 	byte[] getFile(String filename,  String userId, String accUserId, String password) throws DirectoryException;
 
+	/**
+	 * Streaming variant of getFile, sent as an MTOM attachment.
+	 */
+	@WebMethod
+	@XmlMimeType("application/octet-stream")
+	DataHandler getFileStream(String filename,  String userId, String accUserId, String password) throws DirectoryException;
+
 	@WebMethod
 	List<FileInfo> lsFile(String userId, String password) throws DirectoryException;
 
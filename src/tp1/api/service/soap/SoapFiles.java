@@ -1,7 +1,9 @@
 package tp1.api.service.soap;
 
+import jakarta.activation.DataHandler;
 import jakarta.jws.WebMethod;
 import jakarta.jws.WebService;
+import jakarta.xml.bind.annotation.XmlMimeType;
 
 @WebService(serviceName=SoapFiles.NAME, targetNamespace=SoapFiles.NAMESPACE, endpointInterface=SoapFiles.INTERFACE)
 public interface SoapFiles {
@@ -13,6 +15,22 @@ public interface SoapFiles {
 	@WebMethod
 	byte[] getFile(String fileId, String token) throws FilesException;
 
+	/**
+	 * Streaming variant of getFile, sent as an MTOM attachment.
+	 */
+	@WebMethod
+	@XmlMimeType("application/octet-stream")
+	DataHandler getFileStream(String fileId, String token) throws FilesException;
+
+	/**
+	 * @return length bytes of the file, from offset on; fewer if the file ends before.
+	 */
+	@WebMethod
+	byte[] getFileRange(String fileId, long offset, long length, String token) throws FilesException;
+
+	@WebMethod
+	long getFileSize(String fileId, String token) throws FilesException;
+
 	@WebMethod
 	void deleteFile(String fileId, String token) throws FilesException;
 	
@@ -4,6 +4,7 @@ import java.net.URI;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Function;
 
 import com.google.common.cache.CacheBuilder;
@@ -12,6 +13,7 @@ import com.google.common.cache.LoadingCache;
 
 import tp1.api.service.java.Result.ErrorCode;
 import tp1.impl.discovery.Discovery;
+import tp1.impl.discovery.Members;
 
 public class ClientFactory<T> {
 
@@ -45,11 +47,40 @@ public class ClientFactory<T> {
 			});
 	
 	
+	// kept up to date by Discovery, once first needed
+	private volatile Members members;
+
+	private Members members() {
+		var m = members;
+		if (m == null)
+			synchronized (this) {
+				if (members == null)
+					Discovery.getInstance().subscribe(serviceName, s -> members = s);
+				m = members;
+			}
+		return m;
+	}
+
 	public T get() {
-		List<URI> uris = Discovery.getInstance().findUrisOf(serviceName, 1);
+		List<URI> uris = all();
 		return get(uris.get(0));
 	}
 	
+	/**
+	 * @return a client of any of the servers discovered, chosen at random.
+	 */
+	public T any() {
+		List<URI> uris = all();
+		return get(uris.get(ThreadLocalRandom.current().nextInt(uris.size())));
+	}
+
+	/**
+	 * @return true if the server is currently announcing itself; does not block.
+	 */
+	public boolean isAlive(URI uri) {
+		return members().contains(uri);
+	}
+
 	public T get(URI uri) {
 		try {
 			return clients.get(uri);
@@ -64,7 +95,11 @@ public class ClientFactory<T> {
 		return this.get( URI.create( urlString.substring(0, i-1) ));
 	}
 	
+	/**
+	 * Blocks only until the first server of the service is discovered.
+	 */
 	public List<URI> all()  {
-		return Discovery.getInstance().findUrisOf(serviceName, 1);
+		var m = members();
+		return m.isEmpty() ? Discovery.getInstance().findUrisOf(serviceName, 1) : m.uris();
 	}	
 }
@@ -1,6 +1,5 @@
 package tp1.impl.clients;
 
-import tp1.api.service.java.Directory;
 import tp1.api.service.java.Files;
 import tp1.api.service.java.Users;
 import tp1.impl.clients.common.RetryDirectoryClient;
@@ -16,9 +15,8 @@ import tp1.impl.servers.rest.DropboxServer;
 
 public class Clients {
 
-	public static final ClientFactory<Directory> DirectoryClients = new ClientFactory<>(
-			Directory.SERVICE_NAME, 
-			(u) -> new RetryDirectoryClient( new RestDirectoryClient(u)), 
+	public static final DirectoryClientFactory DirectoryClients = new DirectoryClientFactory(
+			(s, u) -> new RetryDirectoryClient( new RestDirectoryClient(u, s)), 
 			(u) -> new RetryDirectoryClient( new SoapDirectoryClient(u))
 	);
 
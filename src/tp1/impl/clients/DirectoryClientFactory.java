@@ -0,0 +1,67 @@
+package tp1.impl.clients;
+
+import java.net.URI;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import tp1.api.service.java.Directory;
+import tp1.impl.clients.common.ShardedDirectoryClient;
+
+/**
+ * Clients of the Directory service.
+ *
+ * With directory.shards > 1, the Directory is split by userId: shard i owns
+ * the i-th range of userId hashes and announces itself as directory#i. Then,
+ * get() returns a client that sends each call to the shard of its user.
+ *
+ * With directory.mode = kafka, each Directory (or shard) is a group of
+ * replicas that apply the same operations in the same order, and calls are
+ * spread over the replicas.
+ */
+public class DirectoryClientFactory extends ClientFactory<Directory> {
+
+	public static final int SHARDS = Integer.getInteger("directory.shards", 1);
+	public static final boolean REPLICATED = "kafka".equals(System.getProperty("directory.mode"));
+
+	private final List<ClientFactory<Directory>> shards;
+	private final Directory router;
+
+	/**
+	 * @param restClient - makes a client of a server, given the name of its service (shard).
+	 */
+	DirectoryClientFactory(BiFunction<String, URI, Directory> restClient, Function<URI, Directory> soapClient) {
+		super(Directory.SERVICE_NAME, u -> restClient.apply(Directory.SERVICE_NAME, u), soapClient);
+		this.shards = IntStream.range(0, SHARDS)
+				.mapToObj(i -> new ClientFactory<>(serviceName(i), u -> restClient.apply(serviceName(i), u), soapClient))
+				.toList();
+		this.router = new ShardedDirectoryClient(SHARDS, this::shard);
+	}
+
+	@Override
+	public Directory get() {
+		if (SHARDS > 1)
+			return router;
+		return REPLICATED ? super.any() : super.get();
+	}
+
+	/**
+	 * @return a client of the given shard.
+	 */
+	public Directory shard(int shard) {
+		var factory = shards.get(shard);
+		return REPLICATED ? factory.any() : factory.get();
+	}
+
+	/**
+	 * @return the name under which the given shard is announced.
+	 */
+	public static String serviceName(int shard) {
+		return SHARDS > 1 ? Directory.SERVICE_NAME + "#" + shard : Directory.SERVICE_NAME;
+	}
+
+	public static int shardOf(String userId) {
+		return ShardedDirectoryClient.shardOf(userId, SHARDS);
+	}
+}
@@ -3,6 +3,7 @@ package tp1.impl.clients.common;
 import java.util.List;
 
 import tp1.api.FileInfo;
+import tp1.api.WriteGrant;
 import tp1.api.service.java.Directory;
 import tp1.api.service.java.Result;
 
@@ -45,9 +46,68 @@ public class RetryDirectoryClient extends RetryClient implements Directory {
 		return super.reTry( ()-> impl.lsFile(userId, password));
 	}
 
+	@Override
+	public Result<List<FileInfo>> lsFile(String userId, String password, int limit, String cursor) {
+		return super.reTry( ()-> impl.lsFile(userId, password, limit, cursor));
+	}
+
+	@Override
+	public Result<String> startUpload(String filename, String userId, String password) {
+		return super.reTry( ()-> impl.startUpload(filename, userId, password));
+	}
+
+	@Override
+	public Result<Long> appendUpload(String filename, String userId, String uploadId, long offset, byte[] data) {
+		return super.reTry( ()-> impl.appendUpload(filename, userId, uploadId, offset, data));
+	}
+
+	@Override
+	public Result<Long> getUploadOffset(String filename, String userId, String uploadId) {
+		return super.reTry( ()-> impl.getUploadOffset(filename, userId, uploadId));
+	}
+
+	@Override
+	public Result<FileInfo> commitUpload(String filename, String userId, String uploadId, String password) {
+		return super.reTry( ()-> impl.commitUpload(filename, userId, uploadId, password));
+	}
+
+	@Override
+	public Result<WriteGrant> prepareWrite(String filename, String userId, String password) {
+		return super.reTry( ()-> impl.prepareWrite(filename, userId, password));
+	}
+
+	@Override
+	public Result<FileInfo> commitWrite(String filename, String userId, WriteGrant grant, String password) {
+		return super.reTry( ()-> impl.commitWrite(filename, userId, grant, password));
+	}
+
 	@Override
 	public Result<Void> deleteUserFiles(String userId, String password, String token) {
 		return super.reTry( ()-> impl.deleteUserFiles(userId, password, token));
 	}
-	
+
+	@Override
+	public Result<Void> linkShare(String fileId, String userIdShare, boolean shared, String token) {
+		return super.reTry( ()-> impl.linkShare(fileId, userIdShare, shared, token));
+	}
+
+	@Override
+	public Result<Void> shareFiles(String userId, List<String> filenames, List<String> userIdShares, boolean shared, String password) {
+		return super.reTry( ()-> impl.shareFiles(userId, filenames, userIdShares, shared, password));
+	}
+
+	@Override
+	public Result<Void> linkShares(List<String> fileIds, String userIdShare, boolean shared, String token) {
+		return super.reTry( ()-> impl.linkShares(fileIds, userIdShare, shared, token));
+	}
+
+	@Override
+	public Result<Void> revokeShares(List<String> fileIds, String userIdShare, String token) {
+		return super.reTry( ()-> impl.revokeShares(fileIds, userIdShare, token));
+	}
+
+	@Override
+	public Result<List<FileInfo>> getFileInfos(List<String> fileIds, String token) {
+		return super.reTry( ()-> impl.getFileInfos(fileIds, token));
+	}
 }
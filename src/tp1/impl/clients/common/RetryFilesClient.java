@@ -1,5 +1,7 @@
 package tp1.impl.clients.common;
 
+import java.io.InputStream;
+
 import tp1.api.service.java.Files;
 import tp1.api.service.java.Result;
 
@@ -28,6 +30,49 @@ public class RetryFilesClient extends RetryClient implements Files {
 		return reTry( () -> impl.writeFile(fileId, data, token), 1);
 	}
 
+	@Override
+	public Result<Long> getFileSize(String fileId, String token) {
+		return reTry( () -> impl.getFileSize(fileId, token));
+	}
+
+	@Override
+	public Result<byte[]> getFileRange(String fileId, long offset, long length, String token) {
+		return reTry( () -> impl.getFileRange(fileId, offset, length, token));
+	}
+
+	@Override
+	public Result<InputStream> getFileStream(String fileId, String token) {
+		return reTry( () -> impl.getFileStream(fileId, token));
+	}
+
+	@Override
+	public Result<Void> writeFileStream(String fileId, InputStream data, String token) {
+		// A stream can only be consumed once, so this is never retried.
+		return reTry( () -> impl.writeFileStream(fileId, data, token), 1);
+	}
+
+	@Override
+	public Result<String> startUpload(String fileId, String token) {
+		return reTry( () -> impl.startUpload(fileId, token));
+	}
+
+	@Override
+	public Result<Long> appendUpload(String fileId, String uploadId, long offset, byte[] data) {
+		// Resending a chunk at the same offset is harmless, so appends are retried.
+		return reTry( () -> impl.appendUpload(fileId, uploadId, offset, data));
+	}
+
+	@Override
+	public Result<Long> getUploadOffset(String fileId, String uploadId) {
+		return reTry( () -> impl.getUploadOffset(fileId, uploadId));
+	}
+
+	@Override
+	public Result<Void> commitUpload(String fileId, String uploadId) {
+		// Committing an upload again succeeds, so commits are retried.
+		return reTry( () -> impl.commitUpload(fileId, uploadId));
+	}
+
 	@Override
 	public Result<Void> deleteUserFiles(String userId, String token) {
 		return reTry( () -> impl.deleteUserFiles(userId, token));
@@ -0,0 +1,176 @@
+package tp1.impl.clients.common;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import com.google.common.hash.Hashing;
+
+import tp1.api.FileInfo;
+import tp1.api.WriteGrant;
+import tp1.api.service.java.Directory;
+import tp1.api.service.java.Result;
+
+/**
+ * Routes each call to the shard of the Directory that owns its user.
+ *
+ * The userIds are hashed to 32 bits, and shard i of n owns the i-th of n equal
+ * ranges of hashes.
+ */
+public class ShardedDirectoryClient implements Directory {
+
+	private static final String DELIMITER = "$$$";
+
+	final int shards;
+	final IntFunction<Directory> shard;
+
+	/**
+	 * @param shards - the number of shards.
+	 * @param shard  - gets a client of the given shard.
+	 */
+	public ShardedDirectoryClient(int shards, IntFunction<Directory> shard) {
+		this.shards = shards;
+		this.shard = shard;
+	}
+
+	public static int shardOf(String userId, int shards) {
+		long hash = Integer.toUnsignedLong(Hashing.murmur3_32_fixed().hashUnencodedChars(userId).asInt());
+		return (int) ((hash * shards) >>> 32);
+	}
+
+	/**
+	 * @return the owner of the file, ie. the user that decides its shard.
+	 */
+	public static String ownerOf(String fileId) {
+		int i = fileId.indexOf(DELIMITER);
+		return i < 0 ? fileId : fileId.substring(0, i);
+	}
+
+	private Directory of(String userId) {
+		return shard.apply(shardOf(userId, shards));
+	}
+
+	@Override
+	public Result<FileInfo> writeFile(String filename, byte[] data, String userId, String password) {
+		return of(userId).writeFile(filename, data, userId, password);
+	}
+
+	@Override
+	public Result<Void> deleteFile(String filename, String userId, String password) {
+		return of(userId).deleteFile(filename, userId, password);
+	}
+
+	@Override
+	public Result<Void> shareFile(String filename, String userId, String userIdShare, String password) {
+		return of(userId).shareFile(filename, userId, userIdShare, password);
+	}
+
+	@Override
+	public Result<Void> unshareFile(String filename, String userId, String userIdShare, String password) {
+		return of(userId).unshareFile(filename, userId, userIdShare, password);
+	}
+
+	@Override
+	public Result<byte[]> getFile(String filename, String userId, String accUserId, String password) {
+		return of(userId).getFile(filename, userId, accUserId, password);
+	}
+
+	@Override
+	public Result<List<FileInfo>> lsFile(String userId, String password) {
+		return of(userId).lsFile(userId, password);
+	}
+
+	@Override
+	public Result<List<FileInfo>> lsFile(String userId, String password, int limit, String cursor) {
+		return of(userId).lsFile(userId, password, limit, cursor);
+	}
+
+	@Override
+	public Result<Void> deleteUserFiles(String userId, String password, String token) {
+		return of(userId).deleteUserFiles(userId, password, token);
+	}
+
+	@Override
+	public Result<String> startUpload(String filename, String userId, String password) {
+		return of(userId).startUpload(filename, userId, password);
+	}
+
+	@Override
+	public Result<Long> appendUpload(String filename, String userId, String uploadId, long offset, byte[] data) {
+		return of(userId).appendUpload(filename, userId, uploadId, offset, data);
+	}
+
+	@Override
+	public Result<Long> getUploadOffset(String filename, String userId, String uploadId) {
+		return of(userId).getUploadOffset(filename, userId, uploadId);
+	}
+
+	@Override
+	public Result<FileInfo> commitUpload(String filename, String userId, String uploadId, String password) {
+		return of(userId).commitUpload(filename, userId, uploadId, password);
+	}
+
+	@Override
+	public Result<WriteGrant> prepareWrite(String filename, String userId, String password) {
+		return of(userId).prepareWrite(filename, userId, password);
+	}
+
+	@Override
+	public Result<FileInfo> commitWrite(String filename, String userId, WriteGrant grant, String password) {
+		return of(userId).commitWrite(filename, userId, grant, password);
+	}
+
+	@Override
+	public Result<Void> shareFiles(String userId, List<String> filenames, List<String> userIdShares, boolean shared, String password) {
+		return of(userId).shareFiles(userId, filenames, userIdShares, shared, password);
+	}
+
+	@Override
+	public Result<Void> linkShare(String fileId, String userIdShare, boolean shared, String token) {
+		return of(userIdShare).linkShare(fileId, userIdShare, shared, token);
+	}
+
+	@Override
+	public Result<Void> linkShares(List<String> fileIds, String userIdShare, boolean shared, String token) {
+		return of(userIdShare).linkShares(fileIds, userIdShare, shared, token);
+	}
+
+	/**
+	 * Tells each shard to revoke the shares of the files of its users. Fails if
+	 * any shard fails, after trying them all.
+	 */
+	@Override
+	public Result<Void> revokeShares(List<String> fileIds, String userIdShare, String token) {
+		var byShard = new LinkedHashMap<Integer, List<String>>();
+		for (var fileId : fileIds)
+			byShard.computeIfAbsent(shardOf(ownerOf(fileId), shards), k -> new ArrayList<>()).add(fileId);
+
+		Result<Void> res = Result.ok();
+		for (var e : byShard.entrySet()) {
+			var revoked = shard.apply(e.getKey()).revokeShares(e.getValue(), userIdShare, token);
+			if (!revoked.isOK())
+				res = revoked;
+		}
+		return res;
+	}
+
+	/**
+	 * Asks each shard for the files of its users. Fails if any shard fails.
+	 */
+	@Override
+	public Result<List<FileInfo>> getFileInfos(List<String> fileIds, String token) {
+		var byShard = new LinkedHashMap<Integer, List<String>>();
+		for (var fileId : fileIds)
+			byShard.computeIfAbsent(shardOf(ownerOf(fileId), shards), k -> new ArrayList<>()).add(fileId);
+
+		var infos = new ArrayList<FileInfo>();
+		for (var e : byShard.entrySet()) {
+			var res = shard.apply(e.getKey()).getFileInfos(e.getValue(), token);
+			if (!res.isOK())
+				return res;
+			infos.addAll(res.value());
+		}
+		return Result.ok(infos);
+	}
+}
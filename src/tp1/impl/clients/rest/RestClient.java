@@ -3,6 +3,7 @@ package tp1.impl.clients.rest;
 import static tp1.api.service.java.Result.error;
 import static tp1.api.service.java.Result.ok;
 
+import java.io.InputStream;
 import java.net.URI;
 
 import org.glassfish.jersey.client.ClientConfig;
@@ -16,6 +17,7 @@ import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
 import tp1.api.service.java.Result;
 import tp1.api.service.java.Result.ErrorCode;
+import tp1.api.service.rest.RestFiles;
 import tp1.impl.clients.common.RetryClient;
 
 /**
@@ -66,6 +68,8 @@ abstract class RestClient extends RetryClient {
 			var status = r.getStatusInfo().toEnum();
 			if (status == Status.OK)
 				return ok(r.readEntity(gtype));
+			else if (status == Status.CONFLICT && r.getHeaderString(RestFiles.OFFSET_HEADER) != null)
+				return error(ErrorCode.CONFLICT, Long.valueOf(r.getHeaderString(RestFiles.OFFSET_HEADER)));
 			else
 				return error(getErrorCodeFrom(status));
 		} finally {
@@ -73,6 +77,21 @@ abstract class RestClient extends RetryClient {
 		}
 	}
 
+	/**
+	 * Like toJavaResult, but leaves the response open on success, so that
+	 * the entity can be consumed as a stream. Closing the stream releases the
+	 * response.
+	 */
+	protected Result<InputStream> toJavaStreamResult(Response r) {
+		var status = r.getStatusInfo().toEnum();
+		if (status == Status.OK)
+			return ok(r.readEntity(InputStream.class));
+		else {
+			r.close();
+			return error(getErrorCodeFrom(status));
+		}
+	}
+
 	static private ErrorCode getErrorCodeFrom(Status status) {
 		return switch (status.getStatusCode()) {
 		case 200, 209 -> ErrorCode.OK;
@@ -2,12 +2,21 @@ package tp1.impl.clients.rest;
 
 import java.net.URI;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import jakarta.ws.rs.client.ClientRequestContext;
+import jakarta.ws.rs.client.ClientRequestFilter;
+import jakarta.ws.rs.client.ClientResponseContext;
+import jakarta.ws.rs.client.ClientResponseFilter;
 import jakarta.ws.rs.client.Entity;
 import jakarta.ws.rs.core.GenericType;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import tp1.api.FileInfo;
+import tp1.api.ShareRequest;
+import tp1.api.WriteGrant;
 import tp1.api.service.java.Directory;
 import tp1.api.service.java.Result;
 import tp1.api.service.rest.RestDirectory;
@@ -18,7 +27,47 @@ public class RestDirectoryClient extends RestClient implements Directory {
 	private static final String SHARE = "share";
 	
 	public RestDirectoryClient(URI serverUri) {
+		this(serverUri, Directory.SERVICE_NAME);
+	}
+
+	/**
+	 * @param serviceName - the service (shard) of the server, whose replicas share a version.
+	 */
+	public RestDirectoryClient(URI serverUri, String serviceName) {
 		super(serverUri, RestDirectory.PATH);
+		target.register(new VersionTracker(serviceName));
+	}
+
+	/**
+	 * Read-your-writes over the replicas of the Directory: remembers the highest
+	 * version seen in a response, and asks for (at least) that version in every
+	 * request, whatever the replica.
+	 *
+	 * Versions are offsets in the log of a service, so each service (shard) has
+	 * its own; they cannot be compared across services.
+	 */
+	public static class VersionTracker implements ClientRequestFilter, ClientResponseFilter {
+		static final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+		private final AtomicLong version;
+
+		VersionTracker(String serviceName) {
+			this.version = versions.computeIfAbsent(serviceName, k -> new AtomicLong(-1));
+		}
+
+		@Override
+		public void filter(ClientRequestContext requestContext) {
+			long v = version.get();
+			if (v >= 0)
+				requestContext.getHeaders().putSingle(RestDirectory.VERSION_HEADER, v);
+		}
+
+		@Override
+		public void filter(ClientRequestContext requestContext, ClientResponseContext responseContext) {
+			var header = responseContext.getHeaderString(RestDirectory.VERSION_HEADER);
+			if (header != null)
+				version.accumulateAndGet(Long.parseLong(header), Math::max);
+		}
 	}
 
 	@Override
@@ -66,6 +115,17 @@ public class RestDirectoryClient extends RestClient implements Directory {
 		return super.toJavaResult(r);
 	}
 
+	@Override
+	public Result<Void> shareFiles(String userId, List<String> filenames, List<String> userIdShares, boolean shared, String password) {
+		Response r = target.path(RestDirectory.SHARES)
+				.path(userId)
+				.queryParam(RestDirectory.SHARED, shared)
+				.queryParam(RestDirectory.PASSWORD, password)
+				.request()
+				.post(Entity.json(new ShareRequest(filenames, userIdShares)));
+		return super.toJavaResult(r);
+	}
+
 	@Override
 	public Result<byte[]> getFile(String filename, String userId, String accUserId, String password) {
 		Response r = target.path(userId)
@@ -88,6 +148,93 @@ public class RestDirectoryClient extends RestClient implements Directory {
 		return super.toJavaResult(r, new GenericType<List<FileInfo>>() {});
 	}
 
+	@Override
+	public Result<String> startUpload(String filename, String userId, String password) {
+		Response r = target.path(userId)
+				.path(filename)
+				.path(RestDirectory.UPLOAD)
+				.queryParam(RestDirectory.PASSWORD, password)
+				.request()
+				.accept(MediaType.APPLICATION_JSON)
+				.post(Entity.json(null));
+		return super.toJavaResult(r, new GenericType<String>() {});
+	}
+
+	@Override
+	public Result<Long> appendUpload(String filename, String userId, String uploadId, long offset, byte[] data) {
+		Response r = target.path(userId)
+				.path(filename)
+				.path(RestDirectory.UPLOAD)
+				.path(uploadId)
+				.queryParam(RestDirectory.OFFSET, offset)
+				.request()
+				.accept(MediaType.APPLICATION_JSON)
+				.put(Entity.entity( data, MediaType.APPLICATION_OCTET_STREAM));
+		return super.toJavaResult(r, new GenericType<Long>() {});
+	}
+
+	@Override
+	public Result<Long> getUploadOffset(String filename, String userId, String uploadId) {
+		Response r = target.path(userId)
+				.path(filename)
+				.path(RestDirectory.UPLOAD)
+				.path(uploadId)
+				.request()
+				.accept(MediaType.APPLICATION_JSON)
+				.get();
+		return super.toJavaResult(r, new GenericType<Long>() {});
+	}
+
+	@Override
+	public Result<FileInfo> commitUpload(String filename, String userId, String uploadId, String password) {
+		Response r = target.path(userId)
+				.path(filename)
+				.path(RestDirectory.UPLOAD)
+				.path(uploadId)
+				.queryParam(RestDirectory.PASSWORD, password)
+				.request()
+				.accept(MediaType.APPLICATION_JSON)
+				.post(Entity.json(null));
+		return super.toJavaResult(r, new GenericType<FileInfo>() {});
+	}
+
+	@Override
+	public Result<WriteGrant> prepareWrite(String filename, String userId, String password) {
+		Response r = target.path(userId)
+				.path(filename)
+				.path(RestDirectory.WRITE)
+				.queryParam(RestDirectory.PASSWORD, password)
+				.request()
+				.accept(MediaType.APPLICATION_JSON)
+				.post(Entity.json(null));
+		return super.toJavaResult(r, new GenericType<WriteGrant>() {});
+	}
+
+	@Override
+	public Result<FileInfo> commitWrite(String filename, String userId, WriteGrant grant, String password) {
+		Response r = target.path(userId)
+				.path(filename)
+				.path(RestDirectory.WRITE)
+				.queryParam(RestDirectory.PASSWORD, password)
+				.request()
+				.accept(MediaType.APPLICATION_JSON)
+				.put(Entity.json(grant));
+		return super.toJavaResult(r, new GenericType<FileInfo>() {});
+	}
+
+	@Override
+	public Result<List<FileInfo>> lsFile(String userId, String password, int limit, String cursor) {
+		var t = target.path(userId)
+				.queryParam(RestDirectory.PASSWORD, password)
+				.queryParam(RestDirectory.LIMIT, limit);
+		if (cursor != null)
+			t = t.queryParam(RestDirectory.CURSOR, cursor);
+		Response r = t.request()
+				.accept(MediaType.APPLICATION_JSON)
+				.get();
+		return super.toJavaResult(r, new GenericType<List<FileInfo>>() {});
+	}
+
 	@Override
 	public Result<Void> deleteUserFiles(String userId, String password, String token) {
 		Response r = target.path(userId)
@@ -97,4 +244,49 @@ public class RestDirectoryClient extends RestClient implements Directory {
 				.delete();
 		return super.toJavaResult(r);
 	}
+
+	@Override
+	public Result<Void> linkShare(String fileId, String userIdShare, boolean shared, String token) {
+		var b = target.path(RestDirectory.SHARDS)
+				.path(RestDirectory.SHARED)
+				.path(userIdShare)
+				.path(fileId)
+				.queryParam(RestDirectory.TOKEN, token)
+				.request();
+		Response r = shared ? b.put(Entity.json(null)) : b.delete();
+		return super.toJavaResult(r);
+	}
+
+	@Override
+	public Result<Void> linkShares(List<String> fileIds, String userIdShare, boolean shared, String token) {
+		Response r = target.path(RestDirectory.SHARDS)
+				.path(RestDirectory.SHARED)
+				.path(userIdShare)
+				.queryParam(RestDirectory.SHARED, shared)
+				.queryParam(RestDirectory.TOKEN, token)
+				.request()
+				.post(Entity.json(fileIds));
+		return super.toJavaResult(r);
+	}
+
+	@Override
+	public Result<Void> revokeShares(List<String> fileIds, String userIdShare, String token) {
+		Response r = target.path(RestDirectory.SHARDS)
+				.path(RestDirectory.REVOKED)
+				.path(userIdShare)
+				.queryParam(RestDirectory.TOKEN, token)
+				.request()
+				.post(Entity.json(fileIds));
+		return super.toJavaResult(r);
+	}
+
+	@Override
+	public Result<List<FileInfo>> getFileInfos(List<String> fileIds, String token) {
+		Response r = target.path(RestDirectory.SHARDS)
+				.queryParam(RestDirectory.TOKEN, token)
+				.request()
+				.accept(MediaType.APPLICATION_JSON)
+				.post(Entity.json(fileIds));
+		return super.toJavaResult(r, new GenericType<List<FileInfo>>() {});
+	}
 }
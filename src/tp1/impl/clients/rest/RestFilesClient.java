@@ -1,6 +1,13 @@
 package tp1.impl.clients.rest;
 
+import static tp1.api.service.java.Result.ok;
+
+import java.io.InputStream;
 import java.net.URI;
+import java.util.Arrays;
+
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
 
 import jakarta.ws.rs.client.Entity;
 import jakarta.ws.rs.core.GenericType;
@@ -8,7 +15,9 @@ import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import tp1.api.service.java.Files;
 import tp1.api.service.java.Result;
+import tp1.api.service.java.Result.ErrorCode;
 import tp1.api.service.rest.RestFiles;
+import tp1.impl.servers.rest.util.ByteRange;
 
 public class RestFilesClient extends RestClient implements Files {
 
@@ -48,6 +57,138 @@ public class RestFilesClient extends RestClient implements Files {
 		return super.toJavaResult(r);
 	}
 
+	/**
+	 * Asks for the first byte only; the size comes in the Content-Range of the
+	 * answer, or in its Content-Length if the server ignores the range.
+	 */
+	@Override
+	public Result<Long> getFileSize(String fileId, String token) {
+		Response r = target.path(fileId)
+				.queryParam(RestFiles.TOKEN, token)
+				.request()
+				.header(RestFiles.RANGE, new ByteRange(0, 1).header())
+				.accept( MediaType.APPLICATION_OCTET_STREAM)
+				.get();
+		try {
+			switch (r.getStatusInfo().toEnum()) {
+			case PARTIAL_CONTENT:
+			case REQUESTED_RANGE_NOT_SATISFIABLE:
+				var range = r.getHeaderString(ByteRange.CONTENT_RANGE);
+				if (range == null)
+					return Result.error(ErrorCode.INTERNAL_ERROR);
+				return ok(Long.parseLong(range.substring(range.lastIndexOf('/') + 1).trim()));
+			case OK:
+				return r.getLength() < 0 ? Result.error(ErrorCode.INTERNAL_ERROR) : ok((long) r.getLength());
+			default:
+				return super.toJavaResult(r, new GenericType<Long>() {});
+			}
+		} finally {
+			r.close();
+		}
+	}
+
+	@Override
+	public Result<byte[]> getFileRange(String fileId, long offset, long length, String token) {
+		if (length <= 0)
+			return ok(new byte[0]);
+
+		var range = new ByteRange(offset, Math.min(length, Long.MAX_VALUE - offset)); // so that its end does not overflow
+		Response r = target.path(fileId)
+				.queryParam(RestFiles.TOKEN, token)
+				.request()
+				.header(RestFiles.RANGE, range.header())
+				.accept( MediaType.APPLICATION_OCTET_STREAM)
+				.get();
+
+		switch (r.getStatusInfo().toEnum()) {
+		case PARTIAL_CONTENT:
+			try {
+				return ok(r.readEntity(byte[].class));
+			} finally {
+				r.close();
+			}
+		case REQUESTED_RANGE_NOT_SATISFIABLE:
+			r.close();
+			return ok(new byte[0]);
+		default: // the server may ignore the range and send the whole file
+			var res = super.toJavaResult(r, new GenericType<byte[]>() {});
+			if (!res.isOK())
+				return res;
+			var data = res.value();
+			int from = (int) Math.min(offset, data.length);
+			return ok(Arrays.copyOfRange(data, from, from + (int) Math.min(length, data.length - from)));
+		}
+	}
+
+	@Override
+	public Result<InputStream> getFileStream(String fileId, String token) {
+		Response r = target.path(fileId)
+				.queryParam(RestFiles.TOKEN, token)
+				.request()
+				.accept( MediaType.APPLICATION_OCTET_STREAM)
+				.get();
+		return super.toJavaStreamResult(r);
+	}
+
+	@Override
+	public Result<Void> writeFileStream(String fileId, InputStream data, String token) {
+		Response r = target.path(fileId)
+				.queryParam(RestFiles.TOKEN, token)
+				.request()
+				.property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.CHUNKED)
+				.post(Entity.entity(data, MediaType.APPLICATION_OCTET_STREAM));
+
+		return super.toJavaResult(r);
+	}
+
+	@Override
+	public Result<String> startUpload(String fileId, String token) {
+		Response r = target.path(fileId)
+				.path(RestFiles.UPLOAD)
+				.queryParam(RestFiles.TOKEN, token)
+				.request()
+				.accept( MediaType.APPLICATION_JSON)
+				.post(Entity.json(null));
+
+		return super.toJavaResult(r, new GenericType<String>() {});
+	}
+
+	@Override
+	public Result<Long> appendUpload(String fileId, String uploadId, long offset, byte[] data) {
+		Response r = target.path(fileId)
+				.path(RestFiles.UPLOAD)
+				.path(uploadId)
+				.queryParam(RestFiles.OFFSET, offset)
+				.request()
+				.accept( MediaType.APPLICATION_JSON)
+				.put(Entity.entity(data, MediaType.APPLICATION_OCTET_STREAM));
+
+		return super.toJavaResult(r, new GenericType<Long>() {});
+	}
+
+	@Override
+	public Result<Long> getUploadOffset(String fileId, String uploadId) {
+		Response r = target.path(fileId)
+				.path(RestFiles.UPLOAD)
+				.path(uploadId)
+				.request()
+				.accept( MediaType.APPLICATION_JSON)
+				.get();
+
+		return super.toJavaResult(r, new GenericType<Long>() {});
+	}
+
+	@Override
+	public Result<Void> commitUpload(String fileId, String uploadId) {
+		Response r = target.path(fileId)
+				.path(RestFiles.UPLOAD)
+				.path(uploadId)
+				.request()
+				.post(Entity.json(null));
+
+		return super.toJavaResult(r);
+	}
+
 	@Override
 	public Result<Void> deleteUserFiles(String userId, String token) {
 		Response r = target.path(USER)
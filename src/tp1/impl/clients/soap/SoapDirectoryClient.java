@@ -6,6 +6,7 @@ import java.util.List;
 import javax.xml.namespace.QName;
 
 import jakarta.xml.ws.Service;
+import jakarta.xml.ws.soap.MTOMFeature;
 import tp1.api.FileInfo;
 import tp1.api.service.java.Directory;
 import tp1.api.service.java.Result;
@@ -18,7 +19,7 @@ public class SoapDirectoryClient extends SoapClient<SoapDirectory> implements Di
 		super(serverURI, () -> {
 			QName QNAME = new QName(SoapDirectory.NAMESPACE, SoapDirectory.NAME);
 			Service service = Service.create(Url.from(serverURI + WSDL), QNAME);
-			return service.getPort(tp1.api.service.soap.SoapDirectory.class);			
+			return service.getPort(tp1.api.service.soap.SoapDirectory.class, new MTOMFeature());
 		});
 	}
 
@@ -1,10 +1,12 @@
 package tp1.impl.clients.soap;
 
+import java.io.InputStream;
 import java.net.URI;
 
 import javax.xml.namespace.QName;
 
 import jakarta.xml.ws.Service;
+import jakarta.xml.ws.soap.MTOMFeature;
 import tp1.api.service.java.Files;
 import tp1.api.service.java.Result;
 import tp1.api.service.soap.SoapFiles;
@@ -16,7 +18,7 @@ public class SoapFilesClient extends SoapClient<SoapFiles> implements Files {
 		super(serverURI, () -> {
 			QName QNAME = new QName(SoapFiles.NAMESPACE, SoapFiles.NAME);
 			Service service = Service.create(Url.from(serverURI + WSDL), QNAME);
-			return service.getPort(tp1.api.service.soap.SoapFiles.class);			
+			return service.getPort(tp1.api.service.soap.SoapFiles.class, new MTOMFeature());
 		});
 	}
 	
@@ -25,6 +27,24 @@ public class SoapFilesClient extends SoapClient<SoapFiles> implements Files {
 		return super.toJavaResult(() -> impl.getFile(fileId, token));
 	}
 
+	/**
+	 * The attachment is read from the connection as the caller consumes the stream.
+	 */
+	@Override
+	public Result<InputStream> getFileStream(String fileId, String token) {
+		return super.toJavaResult(() -> impl.getFileStream(fileId, token).getInputStream());
+	}
+
+	@Override
+	public Result<byte[]> getFileRange(String fileId, long offset, long length, String token) {
+		return super.toJavaResult(() -> impl.getFileRange(fileId, offset, length, token));
+	}
+
+	@Override
+	public Result<Long> getFileSize(String fileId, String token) {
+		return super.toJavaResult(() -> impl.getFileSize(fileId, token));
+	}
+
 	@Override
 	public Result<Void> deleteFile(String fileId, String token) {
 		return super.toJavaResult(() -> impl.deleteFile(fileId, token));
@@ -10,13 +10,11 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
-import java.time.temporal.TemporalUnit;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 import util.Sleep;
 
@@ -24,6 +22,11 @@ import util.Sleep;
  * Performs service discovery. Used by servers to announce themselves, and clients
  * to discover services on demand.
  * 
+ * The servers of each service are kept as an immutable Members snapshot,
+ * replaced only when a server joins or its announcements stop for longer than
+ * URI_VALIDITY. Clients can read the current snapshot, or subscribe to be told
+ * of each new one.
+ * 
  * @author smduarte
  *
  */
@@ -35,7 +38,8 @@ public class Discovery {
 	static final int DISCOVERY_TIMEOUT = 10000;
 	static final InetSocketAddress DISCOVERY_ADDR = new InetSocketAddress("226.226.226.226", 2262);
 
-	final Map<String, Set<URIEntry>> discoveries = new ConcurrentHashMap<>();
+	final Map<String, Service> services = new ConcurrentHashMap<>();
+	final Map<String, URI> announced = new ConcurrentHashMap<>();
 	
 	static Discovery instance;
 	
@@ -43,10 +47,42 @@ public class Discovery {
 		if( instance == null ) {
 			instance = new Discovery();
 			new Thread( instance::listener ).start();
+			new Thread( instance::expirer ).start();
 		}
 		return instance;
 	}
 
+	/**
+	 * @return the current servers of the service.
+	 */
+	public Members membersOf(String serviceName) {
+		return serviceOf(serviceName).members;
+	}
+
+	/**
+	 * Calls the listener with the current servers of the service, and then with
+	 * every change to them. Listeners are called in order, from the discovery
+	 * threads, so they should only store the snapshot.
+	 */
+	public void subscribe(String serviceName, Consumer<Members> listener) {
+		var service = serviceOf(serviceName);
+		synchronized (service) {
+			service.listeners.add(listener);
+			listener.accept(service.members);
+		}
+	}
+
+	/**
+	 * @return the uri this process announces for the service, or null.
+	 */
+	public URI announcedAs(String serviceName) {
+		return announced.get(serviceName);
+	}
+
+	private Service serviceOf(String serviceName) {
+		return services.computeIfAbsent(serviceName, Service::new);
+	}
+
 	/**
 	 * Continuously announces a service given its name and uri
 	 * 
@@ -56,6 +92,7 @@ public class Discovery {
 	public void announce(String serviceName, String serviceURI) {
 		Log.info(String.format("Starting Discovery announcements on: %s for: %s -> %s\n", DISCOVERY_ADDR, serviceName, serviceURI));
 
+		announced.put(serviceName, URI.create(serviceURI));
 		byte[] pktBytes = String.format("%s%s%s", serviceName, DELIMITER, serviceURI).getBytes(StandardCharsets.UTF_8);
 
 		DatagramPacket pkt = new DatagramPacket(pktBytes, pktBytes.length, DISCOVERY_ADDR);
@@ -100,10 +137,10 @@ public class Discovery {
 						var name = tokens[0];
 						var uri = URI.create( tokens[1]);
 
-						var entrySet = discoveries.computeIfAbsent(name, (k) -> ConcurrentHashMap.newKeySet());
-						var entry = new URIEntry(uri, Instant.now());
-						entrySet.remove(entry);
-						entrySet.add(entry);
+						var service = serviceOf(name);
+						service.lastSeen.put(uri, System.currentTimeMillis());
+						if (!service.members.contains(uri))
+							service.publish();
 					}
 				} catch (IOException e) {
 					Sleep.ms(DISCOVERY_PERIOD);
@@ -117,15 +154,29 @@ public class Discovery {
 	
 	private static final int URI_VALIDITY = 10; // seconds
 
+	/**
+	 * Drops the servers that stopped announcing themselves.
+	 */
+	void expirer() {
+		for(;;) {
+			Sleep.ms( DISCOVERY_PERIOD );
+			long deadline = System.currentTimeMillis() - URI_VALIDITY * 1000L;
+			for (var service : services.values())
+				if (service.lastSeen.values().removeIf(t -> t < deadline) || service.members.uris().size() != service.lastSeen.size())
+					service.publish();
+		}
+	}
+
+	/**
+	 * Blocks until at least minRepliesNeeded servers of the service are known.
+	 */
 	public List<URI> findUrisOf(String serviceName, int minRepliesNeeded) {
 		Log.info(String.format("Discovery.findUrisOf( serviceName: %s, minRequired: %d\n", serviceName, minRepliesNeeded));
 		
 		for(;;) {
-			var results = discoveries.get( serviceName );
-			if( results != null && results.size() >= minRepliesNeeded )
-				return results.stream()
-						.filter(uriEntry -> new Date().before(Date.from(uriEntry.lastRecorded().plus(URI_VALIDITY, ChronoUnit.SECONDS))))
-						.map(URIEntry::uri).toList();
+			var members = membersOf( serviceName );
+			if( members.uris().size() >= minRepliesNeeded )
+				return members.uris();
 			else
 				Sleep.ms( DISCOVERY_PERIOD );
 		}
@@ -143,20 +194,27 @@ public class Discovery {
 		}
 	}
 
-	private record URIEntry(URI uri, Instant lastRecorded) {
-		@Override
-		public boolean equals(Object o) {
-			if (this == o) return true;
-			if (o == null || getClass() != o.getClass()) return false;
-
-			URIEntry uriEntry = (URIEntry) o;
-
-			return uri.equals(uriEntry.uri);
+	/**
+	 * The servers of a service, by the time they were last heard from.
+	 */
+	static class Service {
+		final String name;
+		final Map<URI, Long> lastSeen = new ConcurrentHashMap<>();
+		final List<Consumer<Members>> listeners = new CopyOnWriteArrayList<>();
+		volatile Members members = Members.NONE;
+
+		Service(String name) {
+			this.name = name;
 		}
 
-		@Override
-		public int hashCode() {
-			return uri.hashCode();
+		synchronized void publish() {
+			var next = Members.of(lastSeen.keySet());
+			if (next.set().equals(members.set()))
+				return;
+			members = next;
+			Log.info(String.format("Discovery: %s -> %s\n", name, next.uris()));
+			for (var l : listeners)
+				l.accept(next);
 		}
 	}
 }
@@ -0,0 +1,32 @@
+package tp1.impl.discovery;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the servers of a service that are currently
+ * announcing themselves. Discovery publishes a new snapshot whenever a server
+ * joins or leaves, so readers never see a snapshot change under them.
+ *
+ * @param uris - the servers, in URI order.
+ * @param set  - the same servers, for lookups.
+ */
+public record Members(List<URI> uris, Set<URI> set) {
+
+	public static final Members NONE = new Members(List.of(), Set.of());
+
+	static Members of(Collection<URI> uris) {
+		var list = uris.stream().sorted().toList();
+		return new Members(list, Set.copyOf(list));
+	}
+
+	public boolean contains(URI uri) {
+		return set.contains(uri);
+	}
+
+	public boolean isEmpty() {
+		return uris.isEmpty();
+	}
+}
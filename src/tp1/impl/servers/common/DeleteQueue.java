@@ -0,0 +1,249 @@
+package tp1.impl.servers.common;
+
+import static tp1.impl.clients.Clients.FilesClients;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import tp1.api.service.java.Result.ErrorCode;
+import util.Token;
+
+/**
+ * Deletes files at the Files servers, in the background.
+ *
+ * Deletes are queued per server, and logged to root/queue.log until the server
+ * acknowledges them, so they survive restarts. Each server gets its deletes in
+ * batches of up to BATCH_SIZE, one batch at a time, from at most CONCURRENCY
+ * workers. After a failure, the server is retried with exponential backoff.
+ */
+class DeleteQueue {
+
+	private static final Logger Log = Logger.getLogger(DeleteQueue.class.getName());
+
+	static final int BATCH_SIZE = 64;
+	static final int CONCURRENCY = Integer.getInteger("directory.delete.workers", 4);
+	static final long DISPATCH_PERIOD = 100; // ms
+	static final long MIN_BACKOFF = 500, MAX_BACKOFF = 5 * 60 * 1000; // ms
+
+	static final byte ADD = 1, DONE = 2;
+	static final String QUEUE = "queue.log", TMP = ".tmp";
+
+	private final Path root;
+
+	// guarded by this
+	private final Map<URI, Server> servers = new HashMap<>();
+	private DataOutputStream out;
+	private long done;
+	private int busy;
+
+	private final ScheduledExecutorService dispatcher = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "delete-dispatcher"));
+	private final ExecutorService workers = Executors.newFixedThreadPool(CONCURRENCY, r -> daemon(r, "delete-worker"));
+
+	DeleteQueue(String root) {
+		this.root = Path.of(root);
+		try {
+			Files.createDirectories(this.root);
+			load();
+			synchronized (this) {
+				compact();
+			}
+		} catch (IOException x) {
+			throw new RuntimeException(x);
+		}
+		dispatcher.scheduleWithFixedDelay(this::dispatch, DISPATCH_PERIOD, DISPATCH_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queues the delete of the file at the given server.
+	 */
+	synchronized void add(URI uri, String fileId) {
+		if (servers.computeIfAbsent(uri, Server::new).files.add(fileId))
+			append(ADD, uri, fileId);
+	}
+
+	/**
+	 * Drops a queued delete, eg. because the file is being written again. If
+	 * the delete is already on its way to the server, waits for it to finish,
+	 * so that it cannot remove a copy written after this returns.
+	 */
+	synchronized void cancel(URI uri, String fileId) {
+		var server = servers.get(uri);
+		if (server == null)
+			return;
+		if (server.files.remove(fileId))
+			append(DONE, uri, fileId);
+		try {
+			while (fileId.equals(server.sending))
+				wait();
+		} catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
+		}
+		if (server.files.isEmpty() && !server.busy)
+			servers.remove(uri);
+	}
+
+	/**
+	 * @return the number of deletes still to be done.
+	 */
+	synchronized int pending() {
+		return servers.values().stream().mapToInt(s -> s.files.size()).sum();
+	}
+
+	/**
+	 * @return true if the delete is still pending, and now in flight.
+	 */
+	private synchronized boolean sending(Server server, String fileId) {
+		if (!server.files.contains(fileId))
+			return false;
+		server.sending = fileId;
+		return true;
+	}
+
+	private synchronized void sent(Server server, String fileId, boolean deleted) {
+		server.sending = null;
+		notifyAll();
+		if (deleted)
+			cancel(server.uri, fileId);
+	}
+
+	private synchronized void dispatch() {
+		long now = System.currentTimeMillis();
+		for (var server : servers.values()) {
+			if (busy >= CONCURRENCY)
+				return;
+			if (server.busy || server.due > now || server.files.isEmpty())
+				continue;
+			var batch = server.files.stream().limit(BATCH_SIZE).toList();
+			server.busy = true;
+			busy++;
+			workers.execute(() -> send(server, batch));
+		}
+	}
+
+	private void send(Server server, List<String> batch) {
+		boolean failed = false;
+		for (var fileId : batch) {
+			if (!sending(server, fileId))
+				continue;
+			var res = FilesClients.get(server.uri).deleteFile(fileId, Token.get());
+			boolean deleted = res.isOK() || res.error() == ErrorCode.NOT_FOUND;
+			sent(server, fileId, deleted);
+			if (!deleted) {
+				Log.info(String.format("Files.deleteFile(...) to %s failed with: %s \n", server.uri, res));
+				failed = true;
+				break;
+			}
+		}
+
+		synchronized (this) {
+			server.busy = false;
+			busy--;
+			if (failed) {
+				server.failures++;
+				server.due = System.currentTimeMillis() + Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(server.failures - 1, 20));
+			} else {
+				server.failures = 0;
+				server.due = 0;
+			}
+			if (server.files.isEmpty())
+				servers.remove(server.uri);
+		}
+	}
+
+	// must hold the lock of this
+	private void append(byte op, URI uri, String fileId) {
+		try {
+			out.writeByte(op);
+			out.writeUTF(uri.toString());
+			out.writeUTF(fileId);
+			out.flush();
+			if (op == DONE && ++done > 1024 + 2L * pending())
+				compact();
+		} catch (IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	private void load() throws IOException {
+		try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(root.resolve(QUEUE))))) {
+			for (;;) {
+				byte op = in.readByte();
+				var uri = URI.create(in.readUTF());
+				var fileId = in.readUTF();
+				if (op == ADD)
+					servers.computeIfAbsent(uri, Server::new).files.add(fileId);
+				else {
+					var server = servers.get(uri);
+					if (server != null && server.files.remove(fileId) && server.files.isEmpty())
+						servers.remove(uri);
+				}
+			}
+		} catch (NoSuchFileException | EOFException x) {
+			// no queue yet, or end of queue, possibly a torn record
+		}
+		Log.info(String.format("Delete queue: %d deletes pending\n", pending()));
+	}
+
+	/**
+	 * Rewrites the log with only the pending deletes.
+	 */
+	// must hold the lock of this
+	private void compact() throws IOException {
+		if (out != null)
+			out.close();
+		var tmp = root.resolve(QUEUE + TMP);
+		try (var o = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+			for (var server : servers.values())
+				for (var fileId : server.files) {
+					o.writeByte(ADD);
+					o.writeUTF(server.uri.toString());
+					o.writeUTF(fileId);
+				}
+		}
+		Files.move(tmp, root.resolve(QUEUE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(root.resolve(QUEUE).toFile(), true)));
+		done = 0;
+	}
+
+	private static Thread daemon(Runnable r, String name) {
+		var t = new Thread(r, name);
+		t.setDaemon(true);
+		return t;
+	}
+
+	/**
+	 * The deletes queued for a server.
+	 */
+	static class Server {
+		final URI uri;
+		final Set<String> files = new LinkedHashSet<>();
+		String sending; // the delete in flight, if any
+		boolean busy;
+		int failures;
+		long due;
+
+		Server(URI uri) {
+			this.uri = uri;
+		}
+	}
+}
@@ -0,0 +1,468 @@
+package tp1.impl.servers.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import tp1.api.FileInfo;
+import tp1.impl.servers.common.JavaDirectory.ExtendedFileInfo;
+import tp1.impl.servers.common.JavaDirectory.UploadReplica;
+import tp1.impl.servers.common.JavaDirectory.UploadSession;
+
+/**
+ * Keeps the file metadata of the Directory on local disk, so that it survives
+ * restarts.
+ *
+ * Every published version of a file is appended to a log, root/log.N, as is
+ * every removal. Once a log segment has SNAPSHOT_RECORDS records, a new segment
+ * is started and the whole state is written to root/snapshot.N+1, after which
+ * the older segments and snapshots are deleted. Recovery loads the latest
+ * snapshot and replays only the segments that follow it.
+ *
+ * Records are framed with their length and a CRC, so a record torn by a crash
+ * ends the replay of its segment. Records hold whole versions, so replaying a
+ * record already reflected in the snapshot is harmless.
+ *
+ * Each record reaches the OS before the metadata is published, so a crash of
+ * the process loses nothing; the log is forced to disk every FORCE_PERIOD.
+ *
+ * A replicated Directory also logs the offset of each operation it applies,
+ * and snapshots carry the last one, so that on restart it only needs the
+ * operations that follow it. Operations applied after a version was logged but
+ * before their offset was are applied again, which is harmless as well. The
+ * same goes for the announcements of the Users service.
+ *
+ * The upload sessions are logged when they start and when they end, and
+ * snapshots carry the ones still open, so that they survive restarts too. Only
+ * their servers are kept; the length uploaded so far is asked to them again.
+ */
+class DirectoryJournal {
+
+	private static final Logger Log = Logger.getLogger(DirectoryJournal.class.getName());
+
+	static final int MAGIC = 0x44495230; // "DIR0"
+	static final byte FORMAT = 5; // 2: versions have a stamp; 3: any number of servers, erasure coding; 4: upload sessions; 5: users offset
+	static final byte PUT = 1, REMOVE = 2, APPLIED = 3, UPLOAD = 4, UPLOAD_END = 5, USERS_APPLIED = 6;
+
+	static final String LOG = "log.", SNAPSHOT = "snapshot.", TMP = ".tmp";
+
+	static final long SNAPSHOT_RECORDS = Long.getLong("directory.snapshot.records", 50_000);
+	static final long FORCE_PERIOD = 1000; // ms
+	static final long CHECK_PERIOD = 10; // seconds
+
+	private final Path root;
+
+	// guarded by this
+	private long segment;
+	private long records;
+	private FileOutputStream file;
+	private DataOutputStream out;
+	private long applied = -1, usersApplied = -1;
+	private final Map<String, UploadSession> uploads = new HashMap<>();
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		var t = new Thread(r, "directory-journal");
+		t.setDaemon(true);
+		return t;
+	});
+
+	DirectoryJournal(String root) {
+		this.root = Path.of(root);
+	}
+
+	/**
+	 * Loads the latest snapshot, replays the log segments that follow it, and
+	 * starts a new segment.
+	 *
+	 * @return the recovered files, by fileId; see applied() for the offset they reflect.
+	 */
+	synchronized Map<String, ExtendedFileInfo> recover() throws IOException {
+		Files.createDirectories(root);
+
+		var logs = new TreeMap<Long, Path>();
+		long snapshot = 0;
+		try (var s = Files.list(root)) {
+			for (var p : s.toList()) {
+				var name = p.getFileName().toString();
+				if (name.endsWith(TMP))
+					Files.delete(p);
+				else if (name.startsWith(LOG))
+					logs.put(Long.parseLong(name.substring(LOG.length())), p);
+				else if (name.startsWith(SNAPSHOT))
+					snapshot = Math.max(snapshot, Long.parseLong(name.substring(SNAPSHOT.length())));
+			}
+		}
+
+		var files = new HashMap<String, ExtendedFileInfo>();
+		if (snapshot > 0)
+			read(root.resolve(SNAPSHOT + snapshot), files, true);
+
+		long replayed = 0;
+		for (var e : logs.tailMap(snapshot).entrySet())
+			replayed += read(e.getValue(), files, false);
+
+		segment = Math.max(snapshot, logs.isEmpty() ? 0 : logs.lastKey());
+		open(segment + 1);
+		records = replayed;
+		Log.info(String.format("Directory journal: recovered %d files, snapshot = %d, replayed %d records\n", files.size(), snapshot, replayed));
+		return files;
+	}
+
+	/**
+	 * Starts forcing the log to disk and taking snapshots of the given state.
+	 */
+	void start(Supplier<Collection<ExtendedFileInfo>> state) {
+		scheduler.scheduleWithFixedDelay(this::force, FORCE_PERIOD, FORCE_PERIOD, TimeUnit.MILLISECONDS);
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				if (pending() >= SNAPSHOT_RECORDS)
+					snapshot(state.get());
+			} catch (IOException x) {
+				x.printStackTrace();
+			}
+		}, 0, CHECK_PERIOD, TimeUnit.SECONDS);
+	}
+
+	void put(ExtendedFileInfo file) throws IOException {
+		var buf = new ByteArrayOutputStream();
+		var rec = new DataOutputStream(buf);
+		rec.writeByte(PUT);
+		write(rec, file);
+		append(buf.toByteArray());
+	}
+
+	/**
+	 * Records that the operations of the replication log up to the given offset
+	 * are reflected in the records logged so far.
+	 */
+	void applied(long offset) throws IOException {
+		var buf = new ByteArrayOutputStream();
+		var rec = new DataOutputStream(buf);
+		rec.writeByte(APPLIED);
+		rec.writeLong(offset);
+		synchronized (this) {
+			append(buf.toByteArray());
+			applied = offset;
+		}
+	}
+
+	/**
+	 * @return the offset of the last operation of the replication log applied; -1 if none.
+	 */
+	synchronized long applied() {
+		return applied;
+	}
+
+	/**
+	 * Records that the announcements of the Users service up to the given
+	 * offset are reflected in the records logged so far.
+	 */
+	void usersApplied(long offset) throws IOException {
+		var buf = new ByteArrayOutputStream();
+		var rec = new DataOutputStream(buf);
+		rec.writeByte(USERS_APPLIED);
+		rec.writeLong(offset);
+		synchronized (this) {
+			append(buf.toByteArray());
+			usersApplied = offset;
+		}
+	}
+
+	/**
+	 * @return the offset of the last announcement of the Users service applied; -1 if none.
+	 */
+	synchronized long usersApplied() {
+		return usersApplied;
+	}
+
+	/**
+	 * Records the start of an upload session.
+	 */
+	void upload(String uploadId, UploadSession session) throws IOException {
+		var buf = new ByteArrayOutputStream();
+		var rec = new DataOutputStream(buf);
+		rec.writeByte(UPLOAD);
+		write(rec, uploadId, session);
+		synchronized (this) {
+			append(buf.toByteArray());
+			uploads.put(uploadId, session);
+		}
+	}
+
+	/**
+	 * Records the end of an upload session, committed or not.
+	 */
+	synchronized void uploadEnded(String uploadId) throws IOException {
+		if (uploads.remove(uploadId) == null)
+			return;
+		var buf = new ByteArrayOutputStream();
+		var rec = new DataOutputStream(buf);
+		rec.writeByte(UPLOAD_END);
+		rec.writeUTF(uploadId);
+		append(buf.toByteArray());
+	}
+
+	/**
+	 * @return the upload sessions still open, by uploadId; the ones recovered
+	 *         have an unknown length, -1.
+	 */
+	synchronized Map<String, UploadSession> uploads() {
+		return new HashMap<>(uploads);
+	}
+
+	void remove(String fileId) throws IOException {
+		var buf = new ByteArrayOutputStream();
+		var rec = new DataOutputStream(buf);
+		rec.writeByte(REMOVE);
+		rec.writeUTF(fileId);
+		append(buf.toByteArray());
+	}
+
+	private synchronized long pending() {
+		return records;
+	}
+
+	private synchronized void append(byte[] record) throws IOException {
+		frame(out, record);
+		out.flush();
+		records++;
+	}
+
+	private synchronized void force() {
+		try {
+			file.getChannel().force(false);
+		} catch (IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	/**
+	 * Starts a new segment, then writes the state to the matching snapshot.
+	 * Versions published meanwhile may or may not make it into the snapshot;
+	 * either way, they are also in the new segment.
+	 */
+	void snapshot(Collection<ExtendedFileInfo> state) throws IOException {
+		long next, offset, usersOffset;
+		Map<String, UploadSession> open;
+		synchronized (this) {
+			file.getChannel().force(false);
+			out.close();
+			next = segment + 1;
+			open(next);
+			offset = applied;
+			usersOffset = usersApplied;
+			open = new HashMap<>(uploads);
+		}
+
+		var tmp = root.resolve(SNAPSHOT + next + TMP);
+		int count = 0;
+		try (var fos = new FileOutputStream(tmp.toFile()); var snap = new DataOutputStream(new BufferedOutputStream(fos))) {
+			header(snap);
+			if (offset >= 0) {
+				var buf = new ByteArrayOutputStream();
+				var rec = new DataOutputStream(buf);
+				rec.writeByte(APPLIED);
+				rec.writeLong(offset);
+				frame(snap, buf.toByteArray());
+			}
+			if (usersOffset >= 0) {
+				var buf = new ByteArrayOutputStream();
+				var rec = new DataOutputStream(buf);
+				rec.writeByte(USERS_APPLIED);
+				rec.writeLong(usersOffset);
+				frame(snap, buf.toByteArray());
+			}
+			for (var e : open.entrySet()) {
+				var buf = new ByteArrayOutputStream();
+				var rec = new DataOutputStream(buf);
+				rec.writeByte(UPLOAD);
+				write(rec, e.getKey(), e.getValue());
+				frame(snap, buf.toByteArray());
+			}
+			for (var f : state) {
+				var buf = new ByteArrayOutputStream();
+				var rec = new DataOutputStream(buf);
+				rec.writeByte(PUT);
+				write(rec, f);
+				frame(snap, buf.toByteArray());
+				count++;
+			}
+			snap.flush();
+			fos.getChannel().force(false);
+		}
+		Files.move(tmp, root.resolve(SNAPSHOT + next), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		try (var ch = FileChannel.open(root, StandardOpenOption.READ)) {
+			ch.force(true);
+		}
+
+		try (var s = Files.list(root)) {
+			for (var p : s.toList()) {
+				var name = p.getFileName().toString();
+				if (name.startsWith(LOG) && Long.parseLong(name.substring(LOG.length())) < next
+						|| name.startsWith(SNAPSHOT) && !name.endsWith(TMP) && Long.parseLong(name.substring(SNAPSHOT.length())) < next)
+					Files.deleteIfExists(p);
+			}
+		}
+		Log.info(String.format("Directory journal: snapshot %d with %d files\n", next, count));
+	}
+
+	// must hold the lock of this
+	private void open(long segment) throws IOException {
+		this.segment = segment;
+		this.records = 0;
+		this.file = new FileOutputStream(root.resolve(LOG + segment).toFile());
+		this.out = new DataOutputStream(new BufferedOutputStream(file));
+		header(out);
+		out.flush();
+	}
+
+	/**
+	 * Applies the records of a log segment or snapshot to files.
+	 *
+	 * @return the number of records applied.
+	 */
+	private long read(Path path, Map<String, ExtendedFileInfo> files, boolean snapshot) throws IOException {
+		long count = 0;
+		try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			byte format;
+			if (in.readInt() != MAGIC || (format = in.readByte()) < 1 || format > FORMAT)
+				throw new IOException("Unknown journal format: " + path);
+			for (;; count++) {
+				byte[] record;
+				try {
+					int length = in.readInt();
+					long crc = in.readInt() & 0xFFFFFFFFL;
+					record = in.readNBytes(length);
+					if (record.length < length || crc(record) != crc)
+						throw new EOFException();
+				} catch (EOFException x) {
+					if (snapshot && in.available() > 0)
+						throw new IOException("Corrupt snapshot: " + path);
+					break; // end of segment, possibly a torn record
+				}
+				var rec = new DataInputStream(new ByteArrayInputStream(record));
+				switch (rec.readByte()) {
+				case PUT -> {
+					var f = readFile(rec, format);
+					files.put(f.fileId(), f);
+				}
+				case REMOVE -> files.remove(rec.readUTF());
+				case APPLIED -> applied = rec.readLong();
+				case USERS_APPLIED -> usersApplied = rec.readLong();
+				case UPLOAD -> {
+					var uploadId = rec.readUTF();
+					uploads.put(uploadId, readUpload(rec));
+				}
+				case UPLOAD_END -> uploads.remove(rec.readUTF());
+				default -> throw new IOException("Unknown journal record in: " + path);
+				}
+			}
+		}
+		return count;
+	}
+
+	private static void write(DataOutputStream out, ExtendedFileInfo f) throws IOException {
+		var info = f.info();
+		out.writeUTF(f.fileId());
+		out.writeUTF(info.getOwner());
+		out.writeUTF(info.getFilename());
+		out.writeByte(f.data());
+		out.writeShort(f.uris().size());
+		for (var uri : f.uris())
+			out.writeUTF(uri.toString());
+		out.writeLong(f.size());
+		out.writeLong(f.stamp());
+		var sharedWith = info.getSharedWith().toArray(new String[0]);
+		out.writeInt(sharedWith.length);
+		for (var userId : sharedWith)
+			out.writeUTF(userId);
+	}
+
+	private static ExtendedFileInfo readFile(DataInputStream in, byte format) throws IOException {
+		var fileId = in.readUTF();
+		var owner = in.readUTF();
+		var filename = in.readUTF();
+		int data = 0;
+		var uris = new ArrayList<URI>();
+		if (format >= 3) {
+			data = in.readUnsignedByte();
+			for (int n = in.readShort(); n > 0; n--)
+				uris.add(URI.create(in.readUTF()));
+		} else {
+			uris.add(URI.create(in.readUTF()));
+			var backup = in.readUTF();
+			if (!backup.isEmpty())
+				uris.add(URI.create(backup));
+		}
+		long size = in.readLong();
+		long stamp = format >= 2 ? in.readLong() : 0;
+		var sharedWith = ConcurrentHashMap.<String>newKeySet();
+		for (int n = in.readInt(); n > 0; n--)
+			sharedWith.add(in.readUTF());
+		var info = new FileInfo(owner, filename, JavaDirectory.fileURL(uris.get(0), fileId), sharedWith);
+		return new ExtendedFileInfo(uris, data, fileId, info, size, stamp);
+	}
+
+	private static void write(DataOutputStream out, String uploadId, UploadSession session) throws IOException {
+		out.writeUTF(uploadId);
+		out.writeUTF(session.fileId);
+		UploadReplica[] replicas;
+		synchronized (session) {
+			replicas = session.replicas.toArray(new UploadReplica[0]);
+		}
+		out.writeShort(replicas.length);
+		for (var r : replicas) {
+			out.writeUTF(r.uri().toString());
+			out.writeUTF(r.uploadId());
+		}
+	}
+
+	private static UploadSession readUpload(DataInputStream in) throws IOException {
+		var session = new UploadSession(in.readUTF());
+		for (int n = in.readShort(); n > 0; n--)
+			session.replicas.add(new UploadReplica(URI.create(in.readUTF()), in.readUTF()));
+		session.length = -1;
+		return session;
+	}
+
+	private static void header(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeByte(FORMAT);
+	}
+
+	private static void frame(DataOutputStream out, byte[] record) throws IOException {
+		out.writeInt(record.length);
+		out.writeInt((int) crc(record));
+		out.write(record);
+	}
+
+	private static long crc(byte[] data) {
+		var crc = new CRC32();
+		crc.update(data);
+		return crc.getValue();
+	}
+}
@@ -4,30 +4,52 @@ import static tp1.api.service.java.Result.ErrorCode.*;
 import static tp1.api.service.java.Result.error;
 import static tp1.api.service.java.Result.ok;
 import static tp1.api.service.java.Result.redirect;
+import static tp1.impl.clients.Clients.DirectoryClients;
 import static tp1.impl.clients.Clients.FilesClients;
 import static tp1.impl.clients.Clients.UsersClients;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.function.UnaryOperator;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.regex.Pattern;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.Striped;
 
 import tp1.api.FileInfo;
 import tp1.api.User;
+import tp1.api.WriteGrant;
 import tp1.api.service.java.Directory;
 import tp1.api.service.java.Result;
 import tp1.api.service.java.Result.ErrorCode;
+import tp1.impl.clients.DirectoryClientFactory;
+import tp1.impl.clients.common.ShardedDirectoryClient;
+import tp1.impl.servers.common.coding.ReedSolomon;
 import tp1.impl.servers.common.kafka.operations.OperationProcessor;
+import tp1.impl.servers.common.placement.Placement;
 import tp1.impl.servers.common.kafka.operations.UsersAnnouncement;
 import util.Hash;
 import util.Token;
@@ -35,11 +57,57 @@ import util.kafka.KafkaSubscriber;
 
 public class JavaDirectory implements Directory {
 
-	static final long USER_CACHE_EXPIRATION = 3000;
+	static final long USER_CACHE_REFRESH = 3000; // ms
+	static final long USER_CACHE_EXPIRATION = 10 * 60 * 1000; // ms, safe as user updates and deletes are announced
+	static final long USER_CACHE_SIZE = 100_000;
+	static final long REJECTED_CACHE_EXPIRATION = 10_000; // ms
+	static final long REJECTED_CACHE_SIZE = 10_000;
+	static final long USER_CACHE_STATS_PERIOD = 60; // seconds
 
+	/**
+	 * Files are copied, or erasure coded, as their Redundancy says; writes of
+	 * copies return once a write quorum of them acknowledge (see writeQuorum).
+	 */
+	static final Integer WRITE_QUORUM = Integer.getInteger("directory.write.quorum");
+
+	static final long UPLOAD_SESSION_EXPIRATION = 24; // hours, as in the Files service
+
+	static final long GET_TOKEN_VALIDITY = 10_000; // ms
+	static final long WRITE_GRANT_VALIDITY = Long.getLong("directory.write.grant", 60_000); // ms, to start writing; as long again to commit
+
+	static final String TOKEN_PARAM = "?token=";
+	static final String FRAGMENT = ".rs.";
+
+	static final String JOURNAL = System.getProperty("directory.journal", "/tmp/directory/");
+
+	/**
+	 * The shard of this instance, when the Directory is sharded by userId.
+	 */
+	public static final int SHARD = Integer.getInteger("directory.shard", 0);
+
+	/**
+	 * Bounds the parallel fan-out to the Files servers (copies, upload chunks,
+	 * share updates): at most FANOUT_WORKERS calls at a time, FANOUT_QUEUE more
+	 * waiting; past that, the caller makes the call itself, which slows down
+	 * the requests that cause the load instead of piling up threads.
+	 */
+	static final int FANOUT_WORKERS = Integer.getInteger("directory.fanout.workers", 64);
+	static final int FANOUT_QUEUE = Integer.getInteger("directory.fanout.queue", 1024);
+
+	final static Logger Log = Logger.getLogger(JavaDirectory.class.getName());
+	final ExecutorService executor = fanout();
+
+	/**
+	 * Credentials that check out. Entries are reloaded in the background once
+	 * older than USER_CACHE_REFRESH, so active users do not wait for the Users
+	 * service; they are dropped as soon as the user is updated or deleted.
+	 */
 	final LoadingCache<UserInfo, Result<User>> users = CacheBuilder.newBuilder()
+			.refreshAfterWrite( Duration.ofMillis(USER_CACHE_REFRESH))
 			.expireAfterWrite( Duration.ofMillis(USER_CACHE_EXPIRATION))
-			.build(new CacheLoader<>() {
+			.maximumSize( USER_CACHE_SIZE )
+			.recordStats()
+			.build(CacheLoader.asyncReloading(new CacheLoader<>() {
 				@Override
 				public Result<User> load(UserInfo info) throws Exception {
 					var res = UsersClients.get().getUser( info.userId(), info.password());
@@ -48,27 +116,90 @@ public class JavaDirectory implements Directory {
 					else
 						return res;
 				}
-			});
-	
-	final static Logger Log = Logger.getLogger(JavaDirectory.class.getName());
-	final ExecutorService executor = Executors.newCachedThreadPool();
+			}, executor));
+
+	/**
+	 * Credentials that were rejected (FORBIDDEN or NOT_FOUND), kept for a short while.
+	 */
+	final Cache<UserInfo, ErrorCode> rejected = CacheBuilder.newBuilder()
+			.expireAfterWrite( Duration.ofMillis(REJECTED_CACHE_EXPIRATION))
+			.maximumSize( REJECTED_CACHE_SIZE )
+			.recordStats()
+			.build();
 
 	final Map<String, ExtendedFileInfo> files = new ConcurrentHashMap<>();
 	final Map<String, UserFiles> userFiles = new ConcurrentHashMap<>();
-	final Map<URI, FileCounts> fileCounts = new ConcurrentHashMap<>();
+	final Placement placement = Placement.fromConfig();
+	final Cache<String, UploadSession> uploads = CacheBuilder.newBuilder()
+			.expireAfterAccess( Duration.ofHours(UPLOAD_SESSION_EXPIRATION))
+			.removalListener((RemovalNotification<String, UploadSession> n) -> uploadEnded(n.getKey()))
+			.build();
+	// the uploads committed recently, so that committing them again succeeds
+	final Cache<String, FileInfo> committedUploads = CacheBuilder.newBuilder()
+			.expireAfterWrite( Duration.ofHours(UPLOAD_SESSION_EXPIRATION))
+			.build();
 	final OperationProcessor operationProcessor = new OperationProcessor();
-
-	private int counter = 0;
-	private String access;
+	final DirectoryJournal journal = new DirectoryJournal(JOURNAL);
+	final DeleteQueue deletes = new DeleteQueue(JOURNAL + "deletes/");
+	final Striped<Lock> fileLocks = Striped.lock(256);
+	// serializes the writes of copies of the same file, which replace each other in place
+	final Striped<Lock> writeLocks = Striped.lock(256);
+	// the copies still on their way of the last write of each file
+	final Map<String, CompletableFuture<?>> writing = new ConcurrentHashMap<>();
+	final Repairer repairer = new Repairer(this);
+
+	// token ids; a random start, so that tokens of other Directory instances seldom clash at the Files servers
+	private final AtomicInteger counter = new AtomicInteger(ThreadLocalRandom.current().nextInt());
 
 	{
+		try {
+			files.putAll(journal.recover());
+			uploads.putAll(journal.uploads());
+		} catch (IOException x) {
+			throw new RuntimeException(x);
+		}
+		for (var file : files.values()) {
+			place(file);
+			userFiles.computeIfAbsent(file.info().getOwner(), (k) -> new UserFiles()).owned().add(file.fileId());
+			for (var userId : file.info().getSharedWith())
+				userFiles.computeIfAbsent(userId, (k) -> new UserFiles()).shared().add(file.fileId());
+		}
+		journal.start(files::values);
+		repairer.start();
+
+		operationProcessor.registerOperationHandler(UsersAnnouncement.USER_UPDATED.generateOperationHandler(userId -> {
+			Log.fine(String.format("User %s updated, updating cache..", userId));
+			invalidateUser(userId);
+		}));
+
 		operationProcessor.registerOperationHandler(UsersAnnouncement.USER_DELETED.generateOperationHandler(userId -> {
 			Log.fine(String.format("User %s deleted, updating cache..", userId));
 			this.deleteUserFiles(userId, "", Token.get());
 		}));
 
-		KafkaSubscriber.createSubscriber("kafka:9092", List.of(UsersAnnouncement.NAMESPACE), "earliest")
-				.start(false, operationProcessor);
+		// resumes after the announcements already reflected in the journal, so that a
+		// user deleted and then created again does not lose the files again
+		KafkaSubscriber.createSubscriber("kafka:9092", UsersAnnouncement.NAMESPACE, journal.usersApplied() + 1)
+				.start(false, r -> {
+					operationProcessor.onReceive(r);
+					usersApplied(r.offset());
+				});
+
+		Executors.newSingleThreadScheduledExecutor(r -> {
+			var t = new Thread(r, "user-cache-stats");
+			t.setDaemon(true);
+			return t;
+		}).scheduleWithFixedDelay(this::reportUserCache, USER_CACHE_STATS_PERIOD, USER_CACHE_STATS_PERIOD, TimeUnit.SECONDS);
+	}
+
+	private static ExecutorService fanout() {
+		var pool = new ThreadPoolExecutor(FANOUT_WORKERS, FANOUT_WORKERS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(FANOUT_QUEUE), r -> {
+			var t = new Thread(r, "directory-fanout");
+			t.setDaemon(true);
+			return t;
+		}, new ThreadPoolExecutor.CallerRunsPolicy());
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
 	}
 
 	@Override
@@ -81,44 +212,690 @@ public class JavaDirectory implements Directory {
 		if (!user.isOK())
 			return error(user.error());
 
-		var uf = userFiles.computeIfAbsent(userId, (k) -> new UserFiles());
-		synchronized (uf) {
-			var fileId = fileId(filename, userId);
-			var file = files.get(fileId);
-			var info = file != null ? file.info() : new FileInfo();
-			URI uri1 = null, uri2 = null;
-			for (var uri :  orderCandidateFileServers(file)) {
-				counter++;
-				access = "wr";
-				var result = FilesClients.get(uri).writeFile(fileId, data, Token.get());
-				//var result = FilesClients.get(uri).writeFile(fileId, data, newToken(fileId));
-				if (result.isOK()) { // find first 2 distinct reachable uris (one main, one backup)
-					if (uri1 == null)
-						uri1 = uri;
-					else if (!uri.equals(uri1)) {
-						uri2 = uri;
-						break;
-					}
-				} else
+		var fileId = fileId(filename, userId);
+		var file = files.get(fileId);
+
+		var policy = Redundancy.of(userId, data.length);
+		if (policy.coded() && FilesClients.all().size() >= policy.servers())
+			return writeCoded(fileId, filename, userId, data, file, policy);
+
+		var lock = writeLocks.get(fileId);
+		lock.lock();
+		try {
+			return writeCopies(fileId, filename, userId, data, policy);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes whole copies of the file, under its write lock. The copies are
+	 * kept under the fileId, so a write replaces the copies of the previous
+	 * one in place: it first waits for the copies of that write still on their
+	 * way, so that two writes never reach the servers in opposite orders.
+	 */
+	private Result<FileInfo> writeCopies(String fileId, String filename, String userId, byte[] data, Redundancy policy) {
+		var previous = writing.get(fileId);
+		if (previous != null)
+			previous.handle((v, x) -> null).join();
+
+		var file = files.get(fileId);
+		var spares = new ConcurrentLinkedQueue<>(new LinkedHashSet<>(orderCandidateFileServers(fileId, file, policy.replicas(), false)));
+		var order = List.copyOf(spares);
+		var replicas = new ArrayList<CompletableFuture<URI>>();
+		while (replicas.size() < policy.replicas() && !spares.isEmpty())
+			replicas.add(replicate(spares.poll(), spares, fileId, data));
+
+		int quorum = writeQuorum(replicas.size(), FilesClients.all().size());
+		var acked = awaitQuorum(replicas, quorum);
+		if (acked.size() >= quorum && !acked.isEmpty()) {
+			var written = recordWrite(fileId, filename, userId, inOrder(acked, order), data.length);
+			repairer.check(fileId);
+			var all = CompletableFuture.allOf(replicas.toArray(CompletableFuture[]::new));
+			writing.put(fileId, all);
+			all.whenComplete((v, x) -> writing.remove(fileId, all));
+			for (var r : replicas) // some copies may still be on their way
+				r.thenAccept(uri -> {
+					if (uri != null && !acked.contains(uri))
+						recordCopy(written, uri);
+				});
+			return ok(written.info());
+		}
+
+		var stored = new ArrayList<URI>();
+		for (var r : replicas) {
+			var uri = r.handle((u, x) -> u).join();
+			if (uri != null)
+				stored.add(uri);
+		}
+		return rejectCopies(fileId, filename, userId, data.length, stored);
+	}
+
+	/**
+	 * Undoes a write that missed its quorum, once all its copies completed.
+	 * The copies it stored are deleted, except where they replaced a copy of
+	 * the current version in place: there, the current version is copied back
+	 * from a server the write did not reach. If it reached them all, the
+	 * current version is gone, and the write is recorded instead.
+	 */
+	private Result<FileInfo> rejectCopies(String fileId, String filename, String userId, long size, List<URI> stored) {
+		var current = files.get(fileId);
+		var overwritten = new ArrayList<URI>();
+		var intact = new ArrayList<URI>();
+		if (current != null && !current.coded())
+			for (var uri : current.uris())
+				(stored.contains(uri) ? overwritten : intact).add(uri);
+
+		if (!overwritten.isEmpty() && intact.isEmpty())
+			return ok(recordWrite(fileId, filename, userId, stored, size).info());
+
+		for (var uri : stored)
+			if (!overwritten.contains(uri))
+				deletes.add(uri, fileId);
+			else if (intact.stream().noneMatch(from -> repairer.copy(fileId, from, uri)))
+				Log.warning(String.format("Could not restore the copy of %s at %s, overwritten by a rejected write\n", fileId, uri));
+		return error(BAD_REQUEST);
+	}
+
+	/**
+	 * Queues the delete of a copy of a write that was not recorded, unless the
+	 * server keeps the current version under the same id (the write replaced
+	 * it in place).
+	 */
+	private void removeUnrecordedCopy(String fileId, URI uri) {
+		var current = files.get(fileId);
+		if (current == null || !current.copies().contains(new Copy(uri, fileId)))
+			deletes.add(uri, fileId);
+	}
+
+	/**
+	 * @return directory.write.quorum, if set; or else half the copies, rounded
+	 *         up (1 of 2, 2 of 3), so that a write does not wait for its slowest
+	 *         copy. Never more than the copies, or the Files servers alive.
+	 */
+	static int writeQuorum(int copies, int alive) {
+		int quorum = WRITE_QUORUM != null ? WRITE_QUORUM : (copies + 1) / 2;
+		return Math.max(1, Math.min(quorum, Math.min(copies, alive)));
+	}
+
+	/**
+	 * Erasure codes the file into data + parity fragments, written in parallel
+	 * to as many servers. The write only succeeds if every fragment is stored.
+	 * Fragments are named after the stamp of the version, so they never
+	 * overwrite the fragments of the version being replaced.
+	 */
+	private Result<FileInfo> writeCoded(String fileId, String filename, String userId, byte[] data, ExtendedFileInfo file, Redundancy policy) {
+		var shards = new ReedSolomon(policy.data(), policy.parity()).encode(data);
+		long stamp = ThreadLocalRandom.current().nextLong();
+
+		var spares = new ConcurrentLinkedQueue<>(new LinkedHashSet<>(orderCandidateFileServers(fileId, file, policy.servers(), true)));
+		var fragments = new ArrayList<CompletableFuture<URI>>();
+		for (int i = 0; i < shards.length && !spares.isEmpty(); i++)
+			fragments.add(replicate(spares.poll(), spares, fragmentId(fileId, stamp, i), shards[i]));
+
+		var uris = new ArrayList<URI>();
+		for (var f : fragments)
+			uris.add(f.join());
+		if (uris.size() < shards.length || uris.contains(null)) {
+			for (int i = 0; i < uris.size(); i++)
+				if (uris.get(i) != null)
+					deletes.add(uris.get(i), fragmentId(fileId, stamp, i));
+			return error(INTERNAL_ERROR);
+		}
+		return ok(recordWrite(fileId, filename, userId, uris, policy.data(), data.length, stamp).info());
+	}
+
+	/**
+	 * Writes the file to the given server. If that fails, moves on to the next
+	 * spare server, if any.
+	 *
+	 * @return the server that stored the file, or null if none did.
+	 */
+	private CompletableFuture<URI> replicate(URI uri, Queue<URI> spares, String fileId, byte[] data) {
+		return CompletableFuture.supplyAsync(() -> {
+					long t0 = System.nanoTime();
+					deletes.cancel(uri, fileId);
+					var result = FilesClients.get(uri).writeFile(fileId, data, Token.get());
+					if (result.isOK())
+						placement.observe(uri, System.nanoTime() - t0);
+					else
+						placement.failed(uri);
+					return result;
+				}, executor)
+				.thenCompose(result -> {
+					if (result.isOK())
+						return CompletableFuture.completedFuture(uri);
 					Log.info(String.format("Files.writeFile(...) to %s failed with: %s \n", uri, result));
+					var next = spares.poll();
+					return next == null ? CompletableFuture.completedFuture(null) : replicate(next, spares, fileId, data);
+				});
+	}
+
+	/**
+	 * Waits until quorum replicas acknowledge, or all of them complete.
+	 *
+	 * @return the servers that acknowledged so far, in order of arrival.
+	 */
+	private List<URI> awaitQuorum(List<CompletableFuture<URI>> replicas, int quorum) {
+		var acked = new ArrayList<URI>();
+		var done = new CompletableFuture<Void>();
+		var pending = new AtomicInteger(replicas.size());
+		for (var r : replicas)
+			r.whenComplete((uri, x) -> {
+				synchronized (acked) {
+					if (uri != null)
+						acked.add(uri);
+					if (acked.size() >= quorum)
+						done.complete(null);
+				}
+				if (pending.decrementAndGet() == 0)
+					done.complete(null);
+			});
+		if (!replicas.isEmpty())
+			done.join();
+		synchronized (acked) {
+			return new ArrayList<>(acked);
+		}
+	}
+
+	/**
+	 * Records a copy that acknowledged after the write returned, unless the
+	 * file changed meanwhile.
+	 */
+	private void recordCopy(ExtendedFileInfo written, URI uri) {
+		putBackup(written.fileId(), written.stamp(), uri);
+		repairer.check(written.fileId());
+	}
+
+	/**
+	 * @return the servers in the order they were chosen (ring order, with the
+	 *         ring placement), rather than the order they stored the file.
+	 */
+	static List<URI> inOrder(Collection<URI> uris, List<URI> order) {
+		var res = new ArrayList<>(uris);
+		res.sort(Comparator.comparingInt(u -> order.contains(u) ? order.indexOf(u) : order.size()));
+		return res;
+	}
+
+	/**
+	 * Records a new version of the file, copied at the given servers, the first
+	 * one as primary.
+	 */
+	private ExtendedFileInfo recordWrite(String fileId, String filename, String userId, List<URI> uris, long size) {
+		return recordWrite(fileId, filename, userId, uris, 0, size, ThreadLocalRandom.current().nextLong());
+	}
+
+	/**
+	 * Records a new version of the file, kept at the given servers, and drops
+	 * the copies (or fragments) of the previous version that are no longer
+	 * needed.
+	 */
+	private ExtendedFileInfo recordWrite(String fileId, String filename, String userId, List<URI> uris, int data, long size, long stamp) {
+		var v = putFile(fileId, filename, userId, uris, data, size, stamp);
+		if (v.previous() != null)
+			removeStaleReplicas(v.previous(), v.current());
+		return v.current();
+	}
+
+	/*
+	 * Metadata operations: the only changes made to the state of the Directory.
+	 * They make no remote calls, and their outcome depends only on their
+	 * arguments and the state, so replicas that apply the same operations in the
+	 * same order end up in the same state.
+	 */
+
+	/**
+	 * Publishes a new version of the file. The file keeps the users it was
+	 * shared with.
+	 */
+	protected Versions putFile(String fileId, String filename, String userId, List<URI> uris, int data, long size, long stamp) {
+		var v = update(fileId, current -> {
+			var sharedWith = current != null ? current.info().getSharedWith() : Set.<String>of();
+			var info = new FileInfo(userId, filename, fileURL(uris.get(0), fileId), ConcurrentHashMap.newKeySet());
+			info.getSharedWith().addAll(sharedWith);
+			return new ExtendedFileInfo(uris, data, fileId, info, size, stamp);
+		});
+		if (v.previous() != null)
+			unplace(v.previous());
+		userFiles.computeIfAbsent(userId, (k) -> new UserFiles()).owned().add(fileId);
+		place(v.current());
+		return v;
+	}
+
+	/**
+	 * Adds a copy (the backup, if it has none) to the version of the file with
+	 * the given stamp, unless the file changed meanwhile, or is erasure coded.
+	 */
+	protected Versions putBackup(String fileId, long stamp, URI backup) {
+		var v = update(fileId, current -> current != null && current.stamp() == stamp ? current.withCopy(backup) : current);
+		if (v.changed())
+			placement.stored(backup, 1, v.current().copySize());
+		return v;
+	}
+
+	/**
+	 * Makes the backup the primary of the file, and the primary its last copy,
+	 * if its primary is still the given one.
+	 */
+	protected Versions switchToBackup(String fileId, URI primary) {
+		return update(fileId, current -> current != null && current.backupURI() != null && current.primaryURI().equals(primary) ? current.switch2Backup() : current);
+	}
+
+	/**
+	 * Replaces a lost copy (or fragment) of the version of the file with the
+	 * given stamp by one at another server, unless the file changed meanwhile.
+	 * If the primary copy was lost, the backup becomes the primary; unless an
+	 * order is given, in which case the copies follow it (lost may then be
+	 * the replacement, to only reorder them).
+	 */
+	protected Versions replaceReplica(String fileId, long stamp, URI lost, URI replacement, List<URI> order) {
+		var v = update(fileId, current -> current != null && current.stamp() == stamp ? current.replace(lost, replacement, order) : current);
+		if (v.changed() && !lost.equals(replacement)) {
+			placement.stored(lost, -1, -v.current().copySize());
+			placement.stored(replacement, 1, v.current().copySize());
+		}
+		return v;
+	}
+
+	/**
+	 * Shares (or unshares) the file with all the users, in a single new version.
+	 */
+	protected Versions shareWith(String fileId, Set<String> userIdShares, boolean shared) {
+		return update(fileId, current -> current == null ? null : current.share(userIdShares, shared));
+	}
+
+	protected Versions removeFile(String fileId) {
+		var v = update(fileId, current -> null);
+		if (v.previous() != null) {
+			userFiles.getOrDefault(v.previous().info().getOwner(), new UserFiles()).owned().remove(fileId);
+			unplace(v.previous());
+		}
+		return v;
+	}
+
+	/**
+	 * Adds (or removes) the files to the files shared with userIdShare.
+	 */
+	protected void linkShared(List<String> fileIds, String userIdShare, boolean shared) {
+		if (shared)
+			userFiles.computeIfAbsent(userIdShare, (k) -> new UserFiles()).shared().addAll(fileIds);
+		else
+			userFiles.getOrDefault(userIdShare, new UserFiles()).shared().removeAll(fileIds);
+	}
+
+	/**
+	 * Forgets the user and its files.
+	 *
+	 * @return the files removed.
+	 */
+	protected List<ExtendedFileInfo> removeUser(String userId) {
+		var removed = new ArrayList<ExtendedFileInfo>();
+		var fileIds = userFiles.remove(userId);
+		if (fileIds != null)
+			for (var id : fileIds.owned()) {
+				var file = update(id, current -> null).previous();
+				if (file != null) {
+					unplace(file);
+					removed.add(file);
+				}
 			}
+		return removed;
+	}
+
+	/**
+	 * @return true if this Directory repairs the files of its shard; always,
+	 *         unless it is replicated.
+	 */
+	protected boolean repairs() {
+		return true;
+	}
 
-			if (uri1 != null) {
-				info.setOwner(userId);
-				info.setFilename(filename);
-				info.setFileURL(String.format("%s/files/%s", uri1, fileId));
+	/**
+	 * @return the offset of the last replicated operation reflected in the
+	 *         recovered state; -1 if none.
+	 */
+	protected long recoveredOffset() {
+		return journal.applied();
+	}
+
+	/**
+	 * Logs that the replicated operation at the given offset has been applied.
+	 */
+	protected void applied(long offset) {
+		try {
+			journal.applied(offset);
+		} catch (IOException x) {
+			throw new UncheckedIOException(x);
+		}
+	}
+
+	private void usersApplied(long offset) {
+		try {
+			journal.usersApplied(offset);
+		} catch (IOException x) {
+			Log.warning(String.format("Failed to log users offset %d: %s\n", offset, x));
+		}
+	}
 
-				files.put(fileId, file = new ExtendedFileInfo(uri1, uri2, fileId, info));
-				if (uf.owned().add(fileId)) {
-					getFileCounts(file.primaryURI(), true).numFiles().incrementAndGet();
-					if (file.backupURI() != null)
-						getFileCounts(file.backupURI(), true).numFiles().incrementAndGet();
+	/**
+	 * Replaces the current version of the file with the one computed from it. A
+	 * null version stands for a missing file.
+	 *
+	 * The new version is logged, then published, under a striped lock of the
+	 * file, so that the journal has the versions of each file in the order they
+	 * were published. No remote calls are made while holding it; readers do not
+	 * take it at all.
+	 *
+	 * @return the version replaced, and the one that replaced it.
+	 */
+	private Versions update(String fileId, UnaryOperator<ExtendedFileInfo> change) {
+		var lock = fileLocks.get(fileId);
+		lock.lock();
+		try {
+			var previous = files.get(fileId);
+			var current = change.apply(previous);
+			if (current != previous) {
+				if (current == null) {
+					journal.remove(fileId);
+					files.remove(fileId);
+				} else {
+					journal.put(current);
+					files.put(fileId, current);
 				}
-				return ok(file.info());
 			}
+			return new Versions(previous, current);
+		} catch (IOException x) {
+			throw new UncheckedIOException(x);
+		} finally {
+			lock.unlock();
 		}
+	}
 
-		return error(BAD_REQUEST);
+	/**
+	 * Queues the deletes of the copies (or fragments) of the previous version
+	 * that the new one does not use.
+	 */
+	private void removeStaleReplicas(ExtendedFileInfo previous, ExtendedFileInfo current) {
+		var kept = current.copies();
+		for (var c : previous.copies())
+			if (!kept.contains(c))
+				deletes.add(c.uri(), c.id());
+	}
+
+	/**
+	 * Adds the file to the placement stats of its servers.
+	 */
+	private void place(ExtendedFileInfo file) {
+		for (var uri : file.uris())
+			placement.stored(uri, 1, file.copySize());
+	}
+
+	/**
+	 * Takes the file out of the placement stats of its servers.
+	 */
+	private void unplace(ExtendedFileInfo file) {
+		for (var uri : file.uris())
+			placement.stored(uri, -1, -file.copySize());
+	}
+
+	@Override
+	public Result<String> startUpload(String filename, String userId, String password) {
+		if (badParam(filename) || badParam(userId))
+			return error(BAD_REQUEST);
+
+		var user = getUser(userId, password);
+		if (!user.isOK())
+			return error(user.error());
+
+		var fileId = fileId(filename, userId);
+		var session = new UploadSession(fileId);
+		int copies = Redundancy.of(userId, -1).replicas(); // the size is not known yet
+		for (var uri : orderCandidateFileServers(fileId, files.get(fileId), copies, false)) {
+			if (session.replicas.stream().anyMatch(r -> r.uri().equals(uri)))
+				continue;
+			deletes.cancel(uri, fileId);
+			var result = FilesClients.get(uri).startUpload(fileId, Token.get());
+			if (result.isOK()) {
+				session.replicas.add(new UploadReplica(uri, result.value()));
+				if (session.replicas.size() == copies)
+					break;
+			} else
+				Log.info(String.format("Files.startUpload(...) to %s failed with: %s \n", uri, result));
+		}
+		if (session.replicas.isEmpty())
+			return error(BAD_REQUEST);
+
+		var uploadId = UUID.randomUUID().toString();
+		try {
+			journal.upload(uploadId, session);
+		} catch (IOException x) {
+			x.printStackTrace();
+			return error(INTERNAL_ERROR);
+		}
+		uploads.put(uploadId, session);
+		return ok(uploadId);
+	}
+
+	/**
+	 * Each chunk is forwarded to every replica of the session, in parallel, before
+	 * being acknowledged. Replicas that fail to stage the chunk are dropped from
+	 * the session.
+	 */
+	@Override
+	public Result<Long> appendUpload(String filename, String userId, String uploadId, long offset, byte[] data) {
+		var session = getUploadSession(filename, userId, uploadId);
+		if (session == null)
+			return error(NOT_FOUND);
+
+		synchronized (session) {
+			if (offset < 0 || offset > session.length)
+				return error(CONFLICT, session.length);
+
+			long end = offset + data.length;
+			var pending = new ArrayList<Future<Result<Long>>>();
+			for (var r : session.replicas)
+				pending.add(executor.submit(() -> FilesClients.get(r.uri()).appendUpload(session.fileId, r.uploadId(), offset, data)));
+
+			var it = session.replicas.iterator();
+			for (var f : pending) {
+				var replica = it.next();
+				Result<Long> result;
+				try {
+					result = f.get();
+				} catch (InterruptedException | ExecutionException x) {
+					result = error(INTERNAL_ERROR, x);
+				}
+				if (!result.isOK() || result.value() != end) {
+					Log.info(String.format("Files.appendUpload(...) to %s failed with: %s \n", replica.uri(), result));
+					it.remove();
+				}
+			}
+			if (session.replicas.isEmpty()) {
+				uploads.invalidate(uploadId);
+				return error(INTERNAL_ERROR);
+			}
+			return ok(session.length = end);
+		}
+	}
+
+	@Override
+	public Result<Long> getUploadOffset(String filename, String userId, String uploadId) {
+		var session = getUploadSession(filename, userId, uploadId);
+		if (session == null)
+			return error(NOT_FOUND);
+
+		synchronized (session) {
+			return ok(session.length);
+		}
+	}
+
+	/**
+	 * Committing an upload again, eg. after a lost reply, returns the version
+	 * it made.
+	 */
+	@Override
+	public Result<FileInfo> commitUpload(String filename, String userId, String uploadId, String password) {
+		var session = getUploadSession(filename, userId, uploadId);
+		var committed = getCommittedUpload(filename, userId, uploadId);
+		if (session == null && committed == null)
+			return error(NOT_FOUND);
+
+		var user = getUser(userId, password);
+		if (!user.isOK())
+			return error(user.error());
+		if (committed != null)
+			return ok(committed);
+
+		synchronized (session) {
+			if ((committed = getCommittedUpload(filename, userId, uploadId)) != null)
+				return ok(committed);
+			var fileId = session.fileId;
+			var stored = new ArrayList<URI>();
+			for (var r : session.replicas) {
+				var result = FilesClients.get(r.uri()).commitUpload(fileId, r.uploadId());
+				if (result.isOK())
+					stored.add(r.uri());
+				else
+					Log.info(String.format("Files.commitUpload(...) to %s failed with: %s \n", r.uri(), result));
+			}
+			if (stored.isEmpty()) {
+				uploads.invalidate(uploadId);
+				return error(BAD_REQUEST);
+			}
+
+			var info = recordWrite(fileId, filename, userId, stored, session.length).info();
+			committedUploads.put(uploadId, info);
+			uploads.invalidate(uploadId);
+			return ok(info);
+		}
+	}
+
+	/**
+	 * The grant is signed, rather than kept here, so that it can be committed
+	 * at any replica of the Directory.
+	 */
+	@Override
+	public Result<WriteGrant> prepareWrite(String filename, String userId, String password) {
+		if (badParam(filename) || badParam(userId))
+			return error(BAD_REQUEST);
+
+		var user = getUser(userId, password);
+		if (!user.isOK())
+			return error(user.error());
+
+		var fileId = fileId(filename, userId);
+		var uris = new ArrayList<String>();
+		for (var uri : new LinkedHashSet<>(orderCandidateFileServers(fileId, files.get(fileId), Redundancy.of(userId, -1).replicas(), false))) {
+			deletes.cancel(uri, fileId);
+			uris.add(uri.toString());
+		}
+		if (uris.isEmpty())
+			return error(BAD_REQUEST);
+
+		var token = newToken(fileId, "wr", WRITE_GRANT_VALIDITY);
+		return ok(new WriteGrant(fileId, uris, token, Hash.of(fileId, uris, token, Token.get())));
+	}
+
+	/**
+	 * Only the servers the grant listed can be recorded, and only if they do
+	 * hold the file, with the size committed; the first ones that stored it
+	 * become its primary and backup.
+	 */
+	@Override
+	public Result<FileInfo> commitWrite(String filename, String userId, WriteGrant grant, String password) {
+		if (badParam(filename) || badParam(userId) || grant == null || grant.getToken() == null || grant.getStored() == null)
+			return error(BAD_REQUEST);
+
+		var user = getUser(userId, password);
+		if (!user.isOK())
+			return error(user.error());
+
+		var fileId = fileId(filename, userId);
+		if (!fileId.equals(grant.getFileId()) || !Hash.of(fileId, grant.getUris(), grant.getToken(), Token.get()).equals(grant.getSignature()))
+			return error(FORBIDDEN);
+		if (System.currentTimeMillis() > expirationOf(grant.getToken()) + WRITE_GRANT_VALIDITY)
+			return error(FORBIDDEN);
+
+		var stored = grant.getStored().stream().distinct().toList();
+		if (stored.isEmpty() || !grant.getUris().containsAll(stored) || grant.getSize() < 0)
+			return error(BAD_REQUEST);
+
+		var uris = new ArrayList<URI>();
+		for (var uri : inOrder(stored.stream().map(URI::create).toList(), grant.getUris().stream().map(URI::create).toList())) {
+			deletes.cancel(uri, fileId);
+			if (holds(uri, fileId, grant.getSize()))
+				uris.add(uri);
+			else
+				removeUnrecordedCopy(fileId, uri);
+		}
+		if (uris.isEmpty())
+			return error(BAD_REQUEST);
+		return ok(recordWrite(fileId, filename, userId, uris, grant.getSize()).info());
+	}
+
+	/**
+	 * @return true if the server has the file, with the given size.
+	 */
+	private boolean holds(URI uri, String fileId, long size) {
+		var res = FilesClients.get(uri).getFileSize(fileId, Token.get());
+		if (!res.isOK() || res.value() != size) {
+			Log.info(String.format("Files.getFileSize(...) of %s at %s: %s, expected %d\n", fileId, uri, res, size));
+			return false;
+		}
+		return true;
+	}
+
+	private UploadSession getUploadSession(String filename, String userId, String uploadId) {
+		if (badParam(filename) || badParam(userId) || badParam(uploadId))
+			return null;
+		var session = uploads.getIfPresent(uploadId);
+		if (session == null || !session.fileId.equals(fileId(filename, userId)))
+			return null;
+		synchronized (session) {
+			if (session.length < 0 && !resume(session)) {
+				uploads.invalidate(uploadId);
+				return null;
+			}
+		}
+		return session;
+	}
+
+	private FileInfo getCommittedUpload(String filename, String userId, String uploadId) {
+		if (badParam(filename) || badParam(userId) || badParam(uploadId))
+			return null;
+		var info = committedUploads.getIfPresent(uploadId);
+		return info != null && info.getOwner().equals(userId) && info.getFilename().equals(filename) ? info : null;
+	}
+
+	/**
+	 * Resumes a session recovered from the journal, at the shortest length its
+	 * replicas staged; the ones that lost it are dropped.
+	 *
+	 * @return false if none has it.
+	 */
+	// must hold the lock of the session
+	private boolean resume(UploadSession session) {
+		long length = Long.MAX_VALUE;
+		for (var it = session.replicas.iterator(); it.hasNext();) {
+			var r = it.next();
+			var result = FilesClients.get(r.uri()).getUploadOffset(session.fileId, r.uploadId());
+			if (result.isOK())
+				length = Math.min(length, result.value());
+			else {
+				Log.info(String.format("Files.getUploadOffset(...) to %s failed with: %s \n", r.uri(), result));
+				it.remove();
+			}
+		}
+		session.length = session.replicas.isEmpty() ? -1 : length;
+		return !session.replicas.isEmpty();
+	}
+
+	private void uploadEnded(String uploadId) {
+		try {
+			journal.uploadEnded(uploadId);
+		} catch (IOException x) {
+			x.printStackTrace();
+		}
 	}
 
 	
@@ -137,23 +914,14 @@ public class JavaDirectory implements Directory {
 		if (!user.isOK())
 			return error(user.error());
 
-		var uf = userFiles.getOrDefault(userId, new UserFiles());
-		synchronized (uf) {
-			var info = files.remove(fileId);
-			uf.owned().remove(fileId);
-
-			executor.execute(() -> {
-				this.removeSharesOfFile(info);
-				counter++;
-				access = "dl";
-				FilesClients.get(file.primaryURI()).deleteFile(fileId, password);
-				//FilesClients.get(file.primaryURI()).deleteFile(fileId, newToken(fileId));
-			});
-			
-			getFileCounts(info.primaryURI(), false).numFiles().decrementAndGet();
-			if (file.backupURI() != null)
-				getFileCounts(info.backupURI(), false).numFiles().decrementAndGet();
-		}
+		var info = removeFile(fileId).previous();
+		if (info == null)
+			return error(NOT_FOUND);
+
+		executor.execute(() -> this.removeSharesOfFile(info));
+		for (var c : info.copies())
+			deletes.add(c.uri(), c.id());
+
 		return ok();
 	}
 
@@ -172,13 +940,11 @@ public class JavaDirectory implements Directory {
 		if (!user.isOK())
 			return error(user.error());
 
-		var uf = userFiles.computeIfAbsent(userIdShare, (k) -> new UserFiles());
-		synchronized (uf) {
-			uf.shared().add(fileId);
-			file.info().getSharedWith().add(userIdShare);
-		}
+		var v = shareWith(fileId, Set.of(userIdShare), true);
+		if (v.current() == null)
+			return error(NOT_FOUND);
 
-		return ok();
+		return linkShares(List.of(fileId), userIdShare, true);
 	}
 
 	@Override
@@ -196,13 +962,51 @@ public class JavaDirectory implements Directory {
 		if (!user.isOK())
 			return error(user.error());
 
-		var uf = userFiles.computeIfAbsent(userIdShare, (k) -> new UserFiles());
-		synchronized (uf) {
-			uf.shared().remove(fileId);
-			file.info().getSharedWith().remove(userIdShare);
+		var v = shareWith(fileId, Set.of(userIdShare), false);
+		if (v.current() == null)
+			return error(NOT_FOUND);
+
+		return linkShares(List.of(fileId), userIdShare, false);
+	}
+
+	/**
+	 * Each distinct user is looked up once, each file gets a single new version
+	 * for all the users, and the shares of each user are linked in one call.
+	 */
+	@Override
+	public Result<Void> shareFiles(String userId, List<String> filenames, List<String> userIdShares, boolean shared, String password) {
+		if (badParam(userId) || filenames == null || userIdShares == null)
+			return error(BAD_REQUEST);
+		if (filenames.stream().anyMatch(JavaDirectory::badParam) || userIdShares.stream().anyMatch(JavaDirectory::badParam))
+			return error(BAD_REQUEST);
+
+		var fileIds = new ArrayList<String>();
+		for (var filename : new LinkedHashSet<>(filenames)) {
+			var fileId = fileId(filename, userId);
+			if (!files.containsKey(fileId))
+				return error(NOT_FOUND);
+			fileIds.add(fileId);
 		}
 
-		return ok();
+		var users = new LinkedHashSet<>(userIdShares);
+		for (var userIdShare : users)
+			if (getUser(userIdShare, "").error() == NOT_FOUND)
+				return error(NOT_FOUND);
+
+		var user = getUser(userId, password);
+		if (!user.isOK())
+			return error(user.error());
+
+		// files deleted meanwhile are left out
+		fileIds.removeIf(fileId -> shareWith(fileId, users, shared).current() == null);
+
+		Result<Void> res = ok();
+		for (var userIdShare : users) {
+			var linked = linkShares(fileIds, userIdShare, shared);
+			if (!linked.isOK())
+				res = linked;
+		}
+		return res;
 	}
 
 	@Override
@@ -222,18 +1026,98 @@ public class JavaDirectory implements Directory {
 		if (!file.info().hasAccess(accUserId))
 			return error(FORBIDDEN);
 
-		if (!FilesClients.all().contains(file.primaryURI())) {
+		if (file.coded())
+			return readCoded(file);
+
+		if (file.backupURI() != null && !FilesClients.isAlive(file.primaryURI())) {
 			Log.fine("Primary URI %s declared unresponsive. Switching 2 backup: %s".formatted(file.primaryURI(), file.backupURI()));
-			file.switch2Backup();
+			file = switchToBackup(fileId, file.primaryURI()).current();
+			if (file == null)
+				return error(NOT_FOUND);
 		}
-		access = "get";
-		counter++;
+		return redirect( file.info().getFileURL() + TOKEN_PARAM + newToken(fileId, "get", GET_TOKEN_VALIDITY));
+	}
+
+	/**
+	 * @return the size of the current version of the file; -1 if there is
+	 *         none. Lets byte ranges be resolved without asking a Files server.
+	 */
+	public long sizeOf(String filename, String userId) {
+		var file = files.get(fileId(filename, userId));
+		return file == null ? -1 : file.size();
+	}
 
-		return redirect( file.info().getFileURL() + "?token=" + newToken(fileId));
+	/**
+	 * Erasure coded files cannot be read from a single server, so they are
+	 * rebuilt here and returned, rather than redirected to.
+	 */
+	private Result<byte[]> readCoded(ExtendedFileInfo file) {
+		var shards = fetchFragments(file);
+		if (shards == null)
+			return error(INTERNAL_ERROR);
+		return ok(new ReedSolomon(file.data(), file.uris().size() - file.data()).decode(shards, file.size()));
+	}
+
+	/**
+	 * Fetches data fragments of an erasure coded file, in parallel, from the
+	 * servers alive first, the data fragments first among those, as they need
+	 * no decoding. For each fetch that fails, another fragment is fetched.
+	 *
+	 * @return the fragments, at least data() of them present; null if fewer could be fetched.
+	 */
+	byte[][] fetchFragments(ExtendedFileInfo file) {
+		var copies = file.copies();
+		var order = new ArrayList<Integer>();
+		for (int i = 0; i < copies.size(); i++)
+			if (FilesClients.isAlive(copies.get(i).uri()))
+				order.add(i);
+		for (int i = 0; i < copies.size(); i++)
+			if (!order.contains(i))
+				order.add(i);
+
+		var shards = new byte[copies.size()][];
+		var fetches = new ExecutorCompletionService<Fetched>(executor);
+		int next = 0, pending = 0, fetched = 0;
+		try {
+			for (; next < file.data(); next++, pending++)
+				fetch(fetches, copies, order.get(next));
+			while (pending > 0 && fetched < file.data()) {
+				var f = fetches.take().get();
+				pending--;
+				if (f.result().isOK() && f.result().value().length == file.copySize()) {
+					shards[f.index()] = f.result().value();
+					fetched++;
+				} else {
+					Log.info(String.format("Files.getFile(...) of fragment %d from %s failed with: %s \n", f.index(), copies.get(f.index()).uri(), f.result()));
+					if (next < order.size()) {
+						fetch(fetches, copies, order.get(next++));
+						pending++;
+					}
+				}
+			}
+		} catch (InterruptedException | ExecutionException x) {
+			x.printStackTrace();
+			return null;
+		}
+		return fetched >= file.data() ? shards : null;
+	}
+
+	private static void fetch(ExecutorCompletionService<Fetched> fetches, List<Copy> copies, int i) {
+		var c = copies.get(i);
+		fetches.submit(() -> new Fetched(i, FilesClients.get(c.uri()).getFile(c.id(), Token.get())));
 	}
 
 	@Override
 	public Result<List<FileInfo>> lsFile(String userId, String password) {
+		return lsFile(userId, password, 0, null);
+	}
+
+	/**
+	 * Merges the (sorted) owned and shared sets of the user, starting after the
+	 * cursor, so a page costs O(limit) no matter how many files the user has.
+	 */
+	@Override
+	public Result<List<FileInfo>> lsFile(String userId, String password, int limit, String cursor) {
 		if (badParam(userId))
 			return error(BAD_REQUEST);
 
@@ -242,12 +1126,104 @@ public class JavaDirectory implements Directory {
 			return error(user.error());
 
 		var uf = userFiles.getOrDefault(userId, new UserFiles());
-		synchronized (uf) {
-			var infos = Stream.concat(uf.owned().stream(), uf.shared().stream()).map(f -> files.get(f).info())
-					.collect(Collectors.toSet());
+		var owned = badParam(cursor) ? uf.owned().iterator() : uf.owned().tailSet(cursor, false).iterator();
+		var shared = badParam(cursor) ? uf.shared().iterator() : uf.shared().tailSet(cursor, false).iterator();
+
+		var page = new ArrayList<FileInfo>();
+		String a = next(owned), b = next(shared);
+		while ((a != null || b != null) && (limit <= 0 || page.size() < limit)) {
+			var batch = new ArrayList<String>();
+			while ((a != null || b != null) && (limit <= 0 || page.size() + batch.size() < limit)) {
+				if (b == null || a != null && a.compareTo(b) <= 0) {
+					batch.add(a);
+					if (a.equals(b))
+						b = next(shared);
+					a = next(owned);
+				} else {
+					batch.add(b);
+					b = next(shared);
+				}
+			}
+			for (var info : fileInfos(batch))
+				if (info.hasAccess(userId))
+					page.add(info);
+		}
+		return ok(page);
+	}
 
-			return ok(new ArrayList<>(infos));
+	/**
+	 * @return the metadata of the given files, in the same order, leaving out the
+	 *         unknown ones. Files owned by users of other shards are asked for in
+	 *         one call to their shards.
+	 */
+	private List<FileInfo> fileInfos(List<String> fileIds) {
+		var found = new HashMap<String, FileInfo>();
+		var remote = new ArrayList<String>();
+		for (var fileId : fileIds) {
+			var file = files.get(fileId);
+			if (file != null)
+				found.put(fileId, file.info());
+			else if (!isLocal(ShardedDirectoryClient.ownerOf(fileId)))
+				remote.add(fileId);
+		}
+		if (!remote.isEmpty()) {
+			var res = DirectoryClients.get().getFileInfos(remote, Token.get());
+			if (res.isOK())
+				res.value().forEach(info -> found.put(fileId(info.getFilename(), info.getOwner()), info));
+			else
+				Log.info(String.format("Directory.getFileInfos(...) failed with: %s \n", res));
 		}
+		return fileIds.stream().map(found::get).filter(Objects::nonNull).toList();
+	}
+
+	@Override
+	public Result<List<FileInfo>> getFileInfos(List<String> fileIds, String token) {
+		if (!Token.get().equals(token))
+			return error(FORBIDDEN);
+
+		return ok(fileIds.stream().map(files::get).filter(Objects::nonNull).map(ExtendedFileInfo::info).toList());
+	}
+
+	@Override
+	public Result<Void> linkShare(String fileId, String userIdShare, boolean shared, String token) {
+		if (!Token.get().equals(token))
+			return error(FORBIDDEN);
+
+		linkShared(List.of(fileId), userIdShare, shared);
+		return ok();
+	}
+
+	@Override
+	public Result<Void> linkShares(List<String> fileIds, String userIdShare, boolean shared, String token) {
+		if (!Token.get().equals(token))
+			return error(FORBIDDEN);
+
+		linkShared(fileIds, userIdShare, shared);
+		return ok();
+	}
+
+	/**
+	 * Records the shares in the index of userIdShare, at the shard that owns it.
+	 */
+	private Result<Void> linkShares(List<String> fileIds, String userIdShare, boolean shared) {
+		if (isLocal(userIdShare))
+			return linkShares(fileIds, userIdShare, shared, Token.get());
+
+		var res = DirectoryClients.get().linkShares(fileIds, userIdShare, shared, Token.get());
+		if (!res.isOK())
+			Log.info(String.format("Directory.linkShares(...) of %s failed with: %s \n", userIdShare, res));
+		return res;
+	}
+
+	/**
+	 * @return true if the user belongs to the shard of this instance.
+	 */
+	static boolean isLocal(String userId) {
+		return DirectoryClientFactory.SHARDS == 1 || DirectoryClientFactory.shardOf(userId) == SHARD;
+	}
+
+	private static String next(Iterator<String> it) {
+		return it.hasNext() ? it.next() : null;
 	}
 
 	public static String fileId(String filename, String userId) {
@@ -259,127 +1235,335 @@ public class JavaDirectory implements Directory {
 	}
 
 	protected Result<User> getUser(String userId, String password) {
+		var key = new UserInfo( userId, password);
+		var error = rejected.getIfPresent( key );
+		if( error != null )
+			return error( error );
 		try {
-			return users.get( new UserInfo( userId, password));
+			var res = users.get( key );
+			if( ! res.isOK() ) {
+				users.invalidate( key );
+				if( res.error() == FORBIDDEN || res.error() == NOT_FOUND )
+					rejected.put( key, res.error());
+			}
+			return res;
 		} catch( Exception x ) {
 			x.printStackTrace();
 			return error( ErrorCode.INTERNAL_ERROR);
 		}
 	}
 	
+	/**
+	 * Besides the files of the user, revokes the access of the user to the
+	 * files shared with it, found through its index of shared files, so a new
+	 * user with the same id does not inherit them.
+	 */
 	@Override
 	public Result<Void> deleteUserFiles(String userId, String password, String token) {
-		users.invalidate( new UserInfo(userId, password));
+		invalidateUser( userId );
 		
-		var fileIds = userFiles.remove(userId);
-		if (fileIds != null)
-			for (var id : fileIds.owned()) {
-				var file = files.remove(id);
-				removeSharesOfFile(file);
-				getFileCounts(file.primaryURI(), false).numFiles().decrementAndGet();
-				if (file.backupURI() != null)
-					getFileCounts(file.backupURI(), false).numFiles().decrementAndGet();
-			}
+		var shared = List.copyOf(userFiles.getOrDefault(userId, new UserFiles()).shared());
+		for (var file : removeUser(userId))
+			removeSharesOfFile(file);
+		// the files shared with the user that are owned by users of other shards are
+		// unshared there, or a user created again with the same id would see them
+		var remote = new ArrayList<String>();
+		for (var fileId : shared)
+			if (files.containsKey(fileId))
+				shareWith(fileId, Set.of(userId), false);
+			else if (!isLocal(ShardedDirectoryClient.ownerOf(fileId)))
+				remote.add(fileId);
+		if (!remote.isEmpty()) {
+			var res = DirectoryClients.get().revokeShares(remote, userId, Token.get());
+			if (!res.isOK())
+				Log.info(String.format("Directory.revokeShares(...) of %s failed with: %s \n", userId, res));
+		}
 		return ok();
 	}
 
+	@Override
+	public Result<Void> revokeShares(List<String> fileIds, String userIdShare, String token) {
+		if (!Token.get().equals(token))
+			return error(FORBIDDEN);
+
+		for (var fileId : fileIds)
+			if (files.containsKey(fileId))
+				shareWith(fileId, Set.of(userIdShare), false);
+		return ok();
+	}
+
+	/**
+	 * Drops the cached credentials of the user, whatever the password.
+	 */
+	protected void invalidateUser(String userId) {
+		users.asMap().keySet().removeIf( k -> k.userId().equals( userId ));
+		rejected.asMap().keySet().removeIf( k -> k.userId().equals( userId ));
+	}
+
+	private void reportUserCache() {
+		var s = users.stats();
+		var r = rejected.stats();
+		Log.info(String.format("User cache: hit rate = %.3f, loads = %d, mean load = %.1f ms, evictions = %d, rejections hit = %d\n",
+				s.hitRate(), s.loadCount(), s.averageLoadPenalty() / 1e6, s.evictionCount(), r.hitCount()));
+	}
+
+	/**
+	 * Drops the file from the index of each user it was shared with, so it
+	 * costs one update per share.
+	 */
 	protected void removeSharesOfFile(ExtendedFileInfo file) {
+		var fileIds = List.of(file.fileId());
 		for (var userId : file.info().getSharedWith())
-			userFiles.getOrDefault(userId, new UserFiles()).shared().remove(file.fileId());
+			if (isLocal(userId))
+				linkShared(fileIds, userId, false);
+			else
+				executor.execute(() -> linkShares(fileIds, userId, false));
 	}
 
 
-	protected Queue<URI> orderCandidateFileServers(ExtendedFileInfo file) {
-		int MAX_SIZE=4;
+	/**
+	 * @return count servers where the file should be written, and then some
+	 *         spares, best first: the
+	 *         servers that already have it (unless placement is not sticky, or
+	 *         the file is kept the other way, copied or coded), then the choices
+	 *         of the placement engine.
+	 */
+	protected Queue<URI> orderCandidateFileServers(String fileId, ExtendedFileInfo file, int count, boolean coded) {
+		int MAX_SIZE = count + 2; // a couple of spares
 		Queue<URI> result = new ArrayDeque<>();
 		
-		if( file != null ) {
-			result.add(file.primaryURI());
-			if (file.backupURI() != null)
-				result.add(file.backupURI());
-		}
-		FilesClients.all()
+		if( file != null && placement.sticky() && file.coded() == coded )
+			result.addAll(file.uris());
+		var others = FilesClients.all()
 				.stream()
 				.filter( u -> ! result.contains(u))
-				.map(u -> getFileCounts(u, false))
-				.sorted( FileCounts::ascending )
-				.limit(MAX_SIZE)
-				.map(FileCounts::uri)
-				.forEach( result::add );
-		
-		while( result.size() < MAX_SIZE )
-			result.add( result.peek() );
+				.toList();
+		result.addAll( placement.choose( fileId, others, Math.max(0, MAX_SIZE - result.size())));
 		
 		Log.info("Candidate files servers: " + result+ "\n");
 		return result;
 	}
-	
-	protected FileCounts getFileCounts( URI uri, boolean create ) {
-		if( create )
-			return fileCounts.computeIfAbsent(uri,  FileCounts::new);
-		else
-			return fileCounts.getOrDefault( uri, new FileCounts(uri) );
+
+	/**
+	 * @return a token granting the given access ("get", "wr" or "dl") to the file, at any Files server, for validity ms.
+	 */
+	protected String newToken(String fileId, String access, long validity) {
+		long expirationDate = System.currentTimeMillis() + validity;
+		return (fileId + JavaFiles.DELIMITER + expirationDate + JavaFiles.DELIMITER + counter.incrementAndGet() + JavaFiles.DELIMITER + access + JavaFiles.DELIMITER + Hash.of(fileId, expirationDate, access, Token.get()));
 	}
 
-	protected String newToken(String fileId) {
-		long expirationDate = System.currentTimeMillis() + 10000;
-		return (fileId + JavaFiles.DELIMITER + expirationDate + JavaFiles.DELIMITER + counter + JavaFiles.DELIMITER + access + JavaFiles.DELIMITER + Hash.of(fileId, expirationDate, Token.get()));
+	private static long expirationOf(String token) {
+		var info = token.split(Pattern.quote(JavaFiles.DELIMITER));
+		return info.length == 6 ? Long.parseLong(info[2]) : 0L;
 	}
 	
-	static class ExtendedFileInfo {
+	static String fileURL(URI uri, String fileId) {
+		return String.format("%s/files/%s", uri, fileId);
+	}
+
+	/**
+	 * @return the id under which the given fragment of a version of a file is
+	 *         kept at the Files servers. It is a sibling of the fileId, not
+	 *         nested under it, so storages that map ids to paths never need the
+	 *         file and its fragments to be both a file and a directory.
+	 */
+	static String fragmentId(String fileId, long stamp, int i) {
+		return String.format("%s%s%016x.%d", fileId, FRAGMENT, stamp, i);
+	}
+
+	/**
+	 * @return the token of a location returned by getFile.
+	 */
+	public static String tokenOf(String location) {
+		int i = location.indexOf(TOKEN_PARAM);
+		return i < 0 ? "" : location.substring(i + TOKEN_PARAM.length());
+	}
+
+	/**
+	 * A version of the metadata of a file. Versions are never changed once
+	 * published: a change publishes a new version in place of the current one,
+	 * see update(...).
+	 */
+	protected static final class ExtendedFileInfo {
 
 		private final String fileId;
-		private URI primaryURI, backupURI;
+		private final List<URI> uris;
+		private final int data;
 		private final FileInfo info;
-
-		ExtendedFileInfo(URI primaryURI, URI backupURI, String fileId, FileInfo info) {
-			this.primaryURI = primaryURI;
-			this.backupURI = backupURI;
+		private final long size;
+		private final long stamp;
+
+		/**
+		 * @param uris  - where the file is kept: at each server, a copy, the
+		 *              primary first; or, if data > 0, a fragment, in order.
+		 * @param data  - the number of data fragments; 0 if the file is copied.
+		 * @param stamp - identifies the write that produced this version.
+		 */
+		ExtendedFileInfo(List<URI> uris, int data, String fileId, FileInfo info, long size, long stamp) {
+			this.uris = List.copyOf(uris);
+			this.data = data;
 			this.fileId = fileId;
 			this.info = info;
+			this.size = size;
+			this.stamp = stamp;
 		}
 
-		public String fileId () {
-				return fileId;
-			}
+		public String fileId() {
+			return fileId;
+		}
 
-			public URI primaryURI () {
-				return primaryURI;
-			}
+		public URI primaryURI() {
+			return uris.get(0);
+		}
 
-			public URI backupURI () {
-				return backupURI;
-			}
+		/**
+		 * @return the second copy of the file; null if there is none, or the file is erasure coded.
+		 */
+		public URI backupURI() {
+			return data == 0 && uris.size() > 1 ? uris.get(1) : null;
+		}
 
-			public FileInfo info () {
-				return info;
-			}
+		public List<URI> uris() {
+			return uris;
+		}
+
+		public int data() {
+			return data;
+		}
+
+		public boolean coded() {
+			return data > 0;
+		}
+
+		public FileInfo info() {
+			return info;
+		}
+
+		public long size() {
+			return size;
+		}
+
+		public long stamp() {
+			return stamp;
+		}
+
+		/**
+		 * @return what is kept at each server: the file, or one of its fragments.
+		 */
+		List<Copy> copies() {
+			var res = new ArrayList<Copy>(uris.size());
+			for (int i = 0; i < uris.size(); i++)
+				res.add(new Copy(uris.get(i), coded() ? fragmentId(fileId, stamp, i) : fileId));
+			return res;
+		}
+
+		/**
+		 * @return the bytes kept at each server.
+		 */
+		long copySize() {
+			return coded() ? Math.max(1, (size + data - 1) / data) : size;
+		}
+
+		ExtendedFileInfo withCopy(URI uri) {
+			if (coded() || uris.contains(uri))
+				return this;
+			var next = new ArrayList<>(uris);
+			next.add(uri);
+			return new ExtendedFileInfo(next, data, fileId, info, size, stamp);
+		}
 
-			public void switch2Backup() {
-				var temp = primaryURI;
-				primaryURI = backupURI;
-				backupURI = temp;
-				info.setFileURL(String.format("%s/files/%s", primaryURI, fileId));
+		ExtendedFileInfo switch2Backup() {
+			var next = new ArrayList<>(uris.subList(1, uris.size()));
+			next.add(uris.get(0));
+			return withUris(next);
+		}
+
+		/**
+		 * @return this version, with the replacement in place of the lost copy
+		 *         (or fragment), and the copies in the given order, if any;
+		 *         unchanged if lost is not in use, or the replacement already is.
+		 */
+		ExtendedFileInfo replace(URI lost, URI replacement, List<URI> order) {
+			int i = uris.indexOf(lost);
+			if (i < 0 || !lost.equals(replacement) && uris.contains(replacement))
+				return this;
+			var next = new ArrayList<>(uris);
+			if (!lost.equals(replacement)) {
+				if (coded())
+					next.set(i, replacement);
+				else {
+					next.remove(i);
+					next.add(replacement);
+				}
 			}
+			if (order != null && !coded())
+				next = new ArrayList<>(inOrder(next, order));
+			return next.equals(uris) ? this : withUris(next);
+		}
+
+		private ExtendedFileInfo withUris(List<URI> next) {
+			var sharedWith = ConcurrentHashMap.<String>newKeySet();
+			sharedWith.addAll(info.getSharedWith());
+			var moved = new FileInfo(info.getOwner(), info.getFilename(), fileURL(next.get(0), fileId), sharedWith);
+			return new ExtendedFileInfo(next, data, fileId, moved, size, stamp);
+		}
 
+		ExtendedFileInfo share(Set<String> userIds, boolean shared) {
+			if (userIds.stream().allMatch(userId -> info.getSharedWith().contains(userId) == shared))
+				return this;
+			var sharedWith = ConcurrentHashMap.<String>newKeySet();
+			sharedWith.addAll(info.getSharedWith());
+			if (shared)
+				sharedWith.addAll(userIds);
+			else
+				sharedWith.removeAll(userIds);
+			return new ExtendedFileInfo(uris, data, fileId, new FileInfo(info.getOwner(), info.getFilename(), info.getFileURL(), sharedWith), size, stamp);
+		}
 	}
 
-	static record UserFiles(Set<String> owned, Set<String> shared) {
+	/**
+	 * A copy, or a fragment, of a file, kept at a server under the given id.
+	 */
+	static record Copy(URI uri, String id) {
+	}
 
-		UserFiles() {
-			this(ConcurrentHashMap.newKeySet(), ConcurrentHashMap.newKeySet());
+	static record Fetched(int index, Result<byte[]> result) {
+	}
+
+	protected static record Versions(ExtendedFileInfo previous, ExtendedFileInfo current) {
+
+		boolean changed() {
+			return previous != current;
 		}
 	}
 
-	static record FileCounts(URI uri, AtomicLong numFiles) {
-		FileCounts( URI uri) {
-			this(uri, new AtomicLong(0L) );
+	/**
+	 * An ongoing upload, staged at one or more file servers; its length is -1
+	 * until a session recovered from the journal is resumed.
+	 */
+	static class UploadSession {
+		final String fileId;
+		final List<UploadReplica> replicas = new ArrayList<>();
+		long length;
+
+		UploadSession(String fileId) {
+			this.fileId = fileId;
 		}
+	}
+
+	static record UploadReplica(URI uri, String uploadId) {
+	}
+
+	/**
+	 * The files of a user, kept sorted by fileId for paginated listings.
+	 */
+	static record UserFiles(NavigableSet<String> owned, NavigableSet<String> shared) {
 
-		static int ascending(FileCounts a, FileCounts b) {
-			return Long.compare( a.numFiles().get(), b.numFiles().get());
+		UserFiles() {
+			this(new ConcurrentSkipListSet<>(), new ConcurrentSkipListSet<>());
 		}
-	}	
+	}
+
 	
 	static record UserInfo(String userId, String password) {		
 	}
@@ -4,11 +4,12 @@ import static tp1.api.service.java.Result.ErrorCode.*;
 import static tp1.api.service.java.Result.error;
 import static tp1.api.service.java.Result.ok;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Path;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -16,8 +17,15 @@ import java.util.regex.Pattern;
 import org.apache.zookeeper.CreateMode;
 import tp1.api.service.java.Files;
 import tp1.api.service.java.Result;
+import tp1.impl.servers.common.storage.CachedStorage;
+import tp1.impl.servers.common.storage.ChunkStorage;
+import tp1.impl.servers.common.storage.DiskStorage;
+import tp1.impl.servers.common.storage.FileStorage;
+import tp1.impl.servers.common.storage.PackStorage;
+import tp1.impl.servers.common.storage.ShardedStorage;
+import tp1.impl.servers.common.storage.StoredFile;
+import tp1.impl.servers.common.storage.UploadSessions;
 import util.Hash;
-import util.IO;
 import util.Token;
 import util.zookeeper.Zookeeper;
 
@@ -27,51 +35,211 @@ public class JavaFiles implements Files {
 
 	static final String DELIMITER = "$$$";
 	private static final String ROOT = "/tmp/";
+	// dot-prefixed, like DiskStorage's .staging, so that it is never taken for the files of a user
+	private static final String UPLOADS = ROOT + ".uploads/";
+
+	/**
+	 * Storage engine: "disk" keeps each file verbatim, "chunks" keeps deduplicated chunks,
+	 * "packs" appends small files to large segment files, "sharded" spreads files over
+	 * hashed directories and deletes users in constant time.
+	 */
+	static final String STORAGE = System.getProperty("files.storage", "disk");
+
+	/**
+	 * Durability of the "disk" engine: "latency" (default) or "durable", see DiskStorage.Durability.
+	 */
+	static final String DURABILITY = System.getProperty("files.durability", "latency");
+
+	/**
+	 * Size of the in-memory (off-heap) cache of hot files, in MB; 0 disables it.
+	 */
+	static final long CACHE_SIZE = Long.getLong("files.cache.mb", 64);
 
 	static final TokenValidation tokenVal = new TokenValidation();
 	public List<Integer> tokensReceived = new ArrayList<>();
+
+	protected final FileStorage storage;
+	protected final UploadSessions uploads = new UploadSessions( UPLOADS );
 	
 	public JavaFiles() {
 		new File( ROOT ).mkdirs();
+		var engine = switch( STORAGE ) {
+			case "chunks" -> new ChunkStorage( ROOT + "chunkstore/");
+			case "packs" -> new PackStorage( ROOT + "packstore/");
+			case "sharded" -> new ShardedStorage( ROOT + "shardstore/");
+			default -> new DiskStorage( ROOT, DiskStorage.Durability.valueOf( DURABILITY.toUpperCase() ));
+		};
+		storage = CACHE_SIZE > 0 ? new CachedStorage( engine, CACHE_SIZE << 20 ) : engine;
+		Log.info(String.format("Files storage engine: %s, durability: %s, cache: %d MB\n", STORAGE, DURABILITY, CACHE_SIZE));
 	}
 
 	@Override
 	public Result<byte[]> getFile(String fileId, String token) {
-		if(!isTokenValid(token, "get"))
+		if(!isTokenValid(token, fileId, "get"))
 			return error(FORBIDDEN);
-		fileId = fileId.replace( DELIMITER, "/");
-		byte[] data = IO.read( new File( ROOT + fileId ));
-		return data != null ? ok( data) : error( NOT_FOUND );
+		try (var file = storage.open( fileId )) {
+			return ok( file.readAllBytes());
+		} catch( NoSuchFileException x ) {
+			return error( NOT_FOUND );
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return error( INTERNAL_ERROR );
+		}
 	}
 
 	@Override
 	public Result<Void> deleteFile(String fileId, String token) {
-		if(!isTokenValid(token, "dl"))
+		if(!isTokenValid(token, fileId, "dl"))
 			return error(FORBIDDEN);
-		fileId = fileId.replace( DELIMITER, "/");
-		boolean res = IO.delete( new File( ROOT + fileId ));	
-		return res ? ok() : error( NOT_FOUND );
+		try {
+			return storage.delete( fileId ) ? ok() : error( NOT_FOUND );
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return error( INTERNAL_ERROR );
+		}
 	}
 
 	@Override
 	public Result<Void> writeFile(String fileId, byte[] data, String token) {
-		if(!isTokenValid(token, "wr"))
+		if(!isTokenValid(token, fileId, "wr"))
 			return error(FORBIDDEN);
-		fileId = fileId.replace( DELIMITER, "/");
-		File file = new File(ROOT + fileId);
-		file.getParentFile().mkdirs();
-		IO.write( file, data);
-		return ok();
+		try {
+			storage.write( fileId, new ByteArrayInputStream( data ));
+			return ok();
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return error( INTERNAL_ERROR );
+		}
+	}
+
+	@Override
+	public Result<Long> getFileSize(String fileId, String token) {
+		if(!isTokenValid(token, fileId, "get"))
+			return error(FORBIDDEN);
+		try (var file = storage.open( fileId )) {
+			return ok( file.size());
+		} catch( NoSuchFileException x ) {
+			return error( NOT_FOUND );
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return error( INTERNAL_ERROR );
+		}
+	}
+
+	@Override
+	public Result<byte[]> getFileRange(String fileId, long offset, long length, String token) {
+		if(!isTokenValid(token, fileId, "get"))
+			return error(FORBIDDEN);
+		try (var file = storage.open( fileId )) {
+			return ok( file.read( offset, length ));
+		} catch( NoSuchFileException x ) {
+			return error( NOT_FOUND );
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return error( INTERNAL_ERROR );
+		}
+	}
+
+	@Override
+	public Result<InputStream> getFileStream(String fileId, String token) {
+		var res = openFile( fileId, token );
+		if( ! res.isOK() )
+			return error( res.error() );
+		try {
+			return ok( res.value().newInputStream());
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return error( INTERNAL_ERROR );
+		}
+	}
+
+	/**
+	 * Opens the file for a zero-copy download.
+	 * The caller owns the returned handle and must close it.
+	 */
+	public Result<StoredFile> openFile(String fileId, String token) {
+		if(!isTokenValid(token, fileId, "get"))
+			return error(FORBIDDEN);
+		try {
+			return ok( storage.open( fileId ));
+		} catch( NoSuchFileException x ) {
+			return error( NOT_FOUND );
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return error( INTERNAL_ERROR );
+		}
+	}
+
+	@Override
+	public Result<Void> writeFileStream(String fileId, InputStream data, String token) {
+		if(!isTokenValid(token, fileId, "wr"))
+			return error(FORBIDDEN);
+		try {
+			storage.write( fileId, data );
+			return ok();
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return error( BAD_REQUEST );
+		}
+	}
+
+	@Override
+	public Result<String> startUpload(String fileId, String token) {
+		if(!isTokenValid(token, fileId, "wr"))
+			return error(FORBIDDEN);
+		try {
+			return ok( uploads.start( fileId ));
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return error( INTERNAL_ERROR );
+		}
+	}
+
+	// The upload id is the capability for the remaining operations of a session
+
+	@Override
+	public Result<Long> appendUpload(String fileId, String uploadId, long offset, byte[] data) {
+		try {
+			return ok( uploads.append( fileId, uploadId, offset, data ));
+		} catch( UploadSessions.OffsetMismatchException x ) {
+			return error( CONFLICT, x.expected );
+		} catch( NoSuchFileException x ) {
+			return error( NOT_FOUND );
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return error( INTERNAL_ERROR );
+		}
+	}
+
+	@Override
+	public Result<Long> getUploadOffset(String fileId, String uploadId) {
+		try {
+			return ok( uploads.offset( fileId, uploadId ));
+		} catch( NoSuchFileException x ) {
+			return error( NOT_FOUND );
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return error( INTERNAL_ERROR );
+		}
+	}
+
+	@Override
+	public Result<Void> commitUpload(String fileId, String uploadId) {
+		try {
+			uploads.commit( fileId, uploadId, storage );
+			return ok();
+		} catch( NoSuchFileException x ) {
+			return error( NOT_FOUND );
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return error( INTERNAL_ERROR );
+		}
 	}
 
 	@Override
 	public Result<Void> deleteUserFiles(String userId, String token) {
-		File file = new File(ROOT + userId);
 		try {
-			java.nio.file.Files.walk(file.toPath())
-			.sorted(Comparator.reverseOrder())
-			.map(Path::toFile)
-			.forEach(File::delete);
+			storage.deleteAll( userId );
 		} catch (IOException e) {
 			e.printStackTrace();
 			return error(INTERNAL_ERROR);
@@ -83,8 +251,8 @@ public class JavaFiles implements Files {
 		return userId + JavaFiles.DELIMITER + filename;
 	}
 
-	private boolean isTokenValid(String token, String access) {
-		return tokenVal.isTokenValid(token, access);
+	private boolean isTokenValid(String token, String fileId, String access) {
+		return tokenVal.isTokenValid(token, fileId, access);
 		/*
 		String[] info = token.split(Pattern.quote(DELIMITER));
 		if (info.length > 1){
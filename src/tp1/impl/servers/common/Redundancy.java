@@ -0,0 +1,54 @@
+package tp1.impl.servers.common;
+
+/**
+ * How a file is kept at the Files servers: as copies at replicas servers, or,
+ * if data > 0, erasure coded into data + parity fragments at as many servers.
+ *
+ * Configuration (system properties):
+ * directory.redundancy - the policy of the deployment: "N" for N copies
+ * (default 2), or "K+M" for erasure coding, eg. "6+3";
+ * directory.redundancy.USERID - the policy for the files of a user;
+ * directory.redundancy.threshold - files smaller than this, in bytes, are
+ * copied even under an erasure coding policy, as are the files written
+ * without knowing their size in advance.
+ */
+record Redundancy(int replicas, int data, int parity) {
+
+	static final String PROPERTY = "directory.redundancy";
+	static final long THRESHOLD = Long.getLong(PROPERTY + ".threshold", 4 << 20);
+
+	static final Redundancy DEFAULT = parse(System.getProperty(PROPERTY, "2"));
+
+	/**
+	 * @param size - the size of the file, or -1 if not known.
+	 */
+	static Redundancy of(String userId, long size) {
+		var spec = System.getProperty(PROPERTY + "." + userId);
+		var policy = spec == null ? DEFAULT : parse(spec);
+		if (policy.coded() && size < THRESHOLD)
+			return new Redundancy(policy.replicas(), 0, 0);
+		return policy;
+	}
+
+	boolean coded() {
+		return data > 0;
+	}
+
+	/**
+	 * @return the number of servers the file is kept at.
+	 */
+	int servers() {
+		return coded() ? data + parity : replicas;
+	}
+
+	/**
+	 * Coded policies keep the copies of the small files at the deployment
+	 * default, or 2 if that is coded as well.
+	 */
+	static Redundancy parse(String spec) {
+		var parts = spec.trim().split("\\+");
+		if (parts.length == 2)
+			return new Redundancy(DEFAULT == null || DEFAULT.coded() ? 2 : DEFAULT.replicas(), Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+		return new Redundancy(Math.max(1, Integer.parseInt(parts[0])), 0, 0);
+	}
+}
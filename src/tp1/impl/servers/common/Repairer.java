@@ -0,0 +1,326 @@
+package tp1.impl.servers.common;
+
+import static tp1.impl.clients.Clients.FilesClients;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import tp1.api.service.java.Files;
+import tp1.impl.clients.DirectoryClientFactory;
+import tp1.impl.discovery.Discovery;
+import tp1.impl.discovery.Members;
+import tp1.impl.servers.common.JavaDirectory.Copy;
+import tp1.impl.servers.common.JavaDirectory.ExtendedFileInfo;
+import tp1.impl.servers.common.coding.ReedSolomon;
+import util.Token;
+
+/**
+ * Restores the replication of the files kept at Files servers that are gone.
+ *
+ * When Discovery reports that a Files server left, the files it stored are
+ * queued for repair. Each lost copy is copied from a surviving one to a server
+ * chosen by the placement; each lost fragment of an erasure coded file is
+ * rebuilt from the surviving fragments. The new copy (or fragment) then
+ * replaces the lost one, unless the file changed meanwhile.
+ *
+ * With a placement that is not sticky (the ring), the copies also follow the
+ * servers the placement gives each file: when servers join or leave, the
+ * files whose copies are elsewhere are queued, and each copy is moved, one at
+ * a time, to the server that should have it. Only the files whose ring
+ * servers changed need to move.
+ *
+ * Repairs run in the background, on at most WORKERS threads, and copy at most
+ * RATE MB per second overall, so that they do not starve the foreground
+ * traffic. Repairs that fail are retried after RETRY_DELAY.
+ *
+ * Once the membership had SETTLE_DELAY to settle after a start, all files are
+ * scanned, so that servers that left while this Directory was down are also
+ * repaired. With replicated Directories, only the one that dir.repairs()
+ * elects scans; it scans again when it gets elected.
+ */
+class Repairer {
+
+	private static final Logger Log = Logger.getLogger(Repairer.class.getName());
+
+	static final int WORKERS = Integer.getInteger("directory.repair.workers", 2);
+	static final double RATE = Double.parseDouble(System.getProperty("directory.repair.rate", "20")); // MB per second
+	static final long RETRY_DELAY = 30; // seconds
+	static final long SETTLE_DELAY = 15; // seconds, longer than Discovery takes to expire a server
+	static final int CHUNK = 64 * 1024;
+
+	private final JavaDirectory dir;
+	private final RateLimiter limiter = RateLimiter.create(RATE * (1 << 20));
+	private final Set<String> queued = ConcurrentHashMap.newKeySet();
+
+	private final ExecutorService workers = Executors.newFixedThreadPool(WORKERS, r -> daemon(r, "repair-worker"));
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "repair-scheduler"));
+
+	// only changed by the discovery threads
+	private volatile Members members = Members.NONE;
+	private volatile boolean settled, elected;
+
+	Repairer(JavaDirectory dir) {
+		this.dir = dir;
+	}
+
+	void start() {
+		Discovery.getInstance().subscribe(Files.SERVICE_NAME, this::changed);
+		Discovery.getInstance().subscribe(DirectoryClientFactory.serviceName(JavaDirectory.SHARD), this::elect);
+		scheduler.schedule(() -> {
+			settled = true;
+			scan(List.of());
+		}, SETTLE_DELAY, TimeUnit.SECONDS);
+	}
+
+	private void changed(Members current) {
+		var lost = new ArrayList<URI>();
+		for (var uri : members.uris())
+			if (!current.contains(uri))
+				lost.add(uri);
+		boolean joined = current.uris().stream().anyMatch(u -> !members.contains(u));
+		members = current;
+		if (settled && (!lost.isEmpty() || joined && !dir.placement.sticky()))
+			scheduler.execute(() -> scan(lost));
+	}
+
+	private void elect(Members directories) {
+		boolean was = elected;
+		elected = dir.repairs();
+		if (settled && elected && !was)
+			scheduler.execute(() -> scan(List.of()));
+	}
+
+	/**
+	 * Queues the file if its copies are not where the placement wants them.
+	 */
+	void check(String fileId) {
+		var file = dir.files.get(fileId);
+		if (file != null && misplaced(file))
+			queue(fileId);
+	}
+
+	/**
+	 * Queues the files with a copy (or fragment) at a server that is gone, and
+	 * the ones that are misplaced; unless another Directory does the repairs.
+	 */
+	private void scan(List<URI> lost) {
+		var current = members;
+		if (current.isEmpty() || !dir.repairs())
+			return;
+		int count = 0;
+		for (var file : dir.files.values())
+			if (file.uris().stream().anyMatch(u -> !current.contains(u)) || misplaced(file)) {
+				queue(file.fileId());
+				count++;
+			}
+		Log.info(String.format("Repairer: %s lost, %d files queued for repair\n", lost, count));
+	}
+
+	private void queue(String fileId) {
+		if (queued.add(fileId))
+			workers.execute(() -> {
+				queued.remove(fileId);
+				if (!repair(fileId))
+					scheduler.schedule(() -> queue(fileId), RETRY_DELAY, TimeUnit.SECONDS);
+			});
+	}
+
+	/**
+	 * Repairs one lost copy (or fragment) of the file, and queues the file again
+	 * if it has more.
+	 *
+	 * @return false if the file still needs repair.
+	 */
+	private boolean repair(String fileId) {
+		var file = dir.files.get(fileId);
+		if (file == null)
+			return true;
+
+		var copies = file.copies();
+		var lost = copies.stream().filter(c -> !FilesClients.isAlive(c.uri())).findFirst().orElse(null);
+		if (!file.coded() && !dir.placement.sticky())
+			return move(file, lost);
+		if (lost == null)
+			return true;
+
+		var others = FilesClients.all().stream().filter(u -> !file.uris().contains(u)).toList();
+		var targets = dir.placement.choose(fileId, others, 1);
+		if (targets.isEmpty())
+			return false;
+
+		var target = targets.get(0);
+		dir.deletes.cancel(target, lost.id());
+		if (file.coded()) {
+			if (!rebuild(file, copies.indexOf(lost), target))
+				return false;
+		} else {
+			var survivor = copies.stream().filter(c -> FilesClients.isAlive(c.uri())).findFirst().orElse(null);
+			if (survivor == null) {
+				Log.warning(String.format("Repairer: no replica of %s left\n", fileId));
+				return true;
+			}
+			if (!copy(fileId, survivor.uri(), target))
+				return false;
+		}
+
+		replace(file, lost.uri(), target, lost.id(), null);
+		return true;
+	}
+
+	/**
+	 * Moves one copy of the file, lost or not, to a server the placement gives
+	 * it; or, if the copies already are at those servers, puts them in its
+	 * order, so that the first one is the primary it gives.
+	 *
+	 * @return false if the file still needs repair.
+	 */
+	private boolean move(ExtendedFileInfo file, Copy lost) {
+		var fileId = file.fileId();
+		var uris = file.uris();
+		var order = dir.placement.choose(fileId, FilesClients.all(), uris.size());
+		var target = order.stream().filter(u -> !uris.contains(u)).findFirst().orElse(null);
+		var from = lost != null ? lost.uri() : uris.stream().filter(u -> !order.contains(u)).findFirst().orElse(null);
+		if (target == null || from == null) {
+			if (lost != null) // no server to take its place, yet
+				return false;
+			if (order.size() == uris.size() && !uris.equals(order))
+				replace(file, uris.get(0), uris.get(0), fileId, order);
+			return true;
+		}
+
+		var survivor = file.copies().stream().filter(c -> FilesClients.isAlive(c.uri())).findFirst().orElse(null);
+		if (survivor == null) {
+			Log.warning(String.format("Repairer: no replica of %s left\n", fileId));
+			return true;
+		}
+		dir.deletes.cancel(target, fileId);
+		if (!copy(fileId, survivor.uri(), target))
+			return false;
+
+		replace(file, from, target, fileId, order);
+		return true;
+	}
+
+	/**
+	 * Records the copy (or fragment) at the target in place of the one at from,
+	 * which is then deleted there, whether that server is alive or not.
+	 * Queues the file again if it needs more repairs.
+	 */
+	private void replace(ExtendedFileInfo file, URI from, URI target, String id, List<URI> order) {
+		var fileId = file.fileId();
+		var v = dir.replaceReplica(fileId, file.stamp(), from, target, order);
+		var current = v.current();
+		if (!v.changed()) { // the file changed meanwhile; keep the copy only if it is in use
+			if (current == null || !current.copies().contains(new Copy(target, id)))
+				dir.deletes.add(target, id);
+			if (current != null && current.stamp() != file.stamp())
+				queue(fileId);
+			return;
+		}
+		if (!from.equals(target)) // lost or moved; the server may come back
+			dir.deletes.add(from, id);
+		if (current.uris().stream().anyMatch(u -> !FilesClients.isAlive(u)) || misplaced(current))
+			queue(fileId);
+	}
+
+	/**
+	 * @return true if the placement is not sticky, and the copies of the file
+	 *         are not the ones it gives, in its order. Coded files keep their
+	 *         fragments where they are, until these are lost.
+	 */
+	private boolean misplaced(ExtendedFileInfo file) {
+		if (dir.placement.sticky() || file.coded())
+			return false;
+		var uris = file.uris();
+		var order = dir.placement.choose(file.fileId(), FilesClients.all(), uris.size());
+		return order.size() == uris.size() ? !uris.equals(order) : !uris.containsAll(order);
+	}
+
+	/**
+	 * Rebuilds the i-th fragment of the file from the others, and writes it to
+	 * the target. Reads k fragments to write one, so it takes as many permits.
+	 */
+	private boolean rebuild(ExtendedFileInfo file, int i, URI target) {
+		var shards = dir.fetchFragments(file);
+		if (shards == null) {
+			Log.warning(String.format("Repairer: not enough fragments of %s left\n", file.fileId()));
+			return false;
+		}
+		for (long left = file.copySize() * (file.data() + 1); left > 0; left -= CHUNK)
+			limiter.acquire((int) Math.min(CHUNK, left));
+
+		new ReedSolomon(file.data(), shards.length - file.data()).reconstruct(shards);
+		var id = file.copies().get(i).id();
+		var res = FilesClients.get(target).writeFile(id, shards[i], Token.get());
+		if (!res.isOK())
+			Log.info(String.format("Repairer: Files.writeFile(...) to %s failed with: %s \n", target, res));
+		return res.isOK();
+	}
+
+	/**
+	 * Copies the file from one server to another, throttled; also used to put
+	 * back a copy that a rejected write overwrote in place.
+	 */
+	boolean copy(String fileId, URI from, URI to) {
+		var in = FilesClients.get(from).getFileStream(fileId, Token.get());
+		if (!in.isOK()) {
+			Log.info(String.format("Repairer: Files.getFileStream(...) from %s failed with: %s \n", from, in));
+			return false;
+		}
+		try (var data = new Throttled(in.value())) {
+			var res = FilesClients.get(to).writeFileStream(fileId, data, Token.get());
+			if (!res.isOK())
+				Log.info(String.format("Repairer: Files.writeFileStream(...) to %s failed with: %s \n", to, res));
+			return res.isOK();
+		} catch (IOException x) {
+			x.printStackTrace();
+			return false;
+		}
+	}
+
+	private static Thread daemon(Runnable r, String name) {
+		var t = new Thread(r, name);
+		t.setDaemon(true);
+		return t;
+	}
+
+	/**
+	 * Takes a permit of the limiter for each byte read, CHUNK bytes at most at a
+	 * time.
+	 */
+	private class Throttled extends FilterInputStream {
+
+		Throttled(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				limiter.acquire();
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, Math.min(len, CHUNK));
+			if (n > 0)
+				limiter.acquire(n);
+			return n;
+		}
+	}
+}
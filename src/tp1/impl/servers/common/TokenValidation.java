@@ -1,28 +1,38 @@
 package tp1.impl.servers.common;
 
-import org.apache.kafka.common.utils.Java;
 import util.Hash;
 import util.Token;
 
-import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 public class TokenValidation {
 
-    JavaFiles files = new JavaFiles();
-    //private static List<Integer> tokensReceived;
+    // Must not create a JavaFiles here: that would open a second storage engine over the same files.
+    private final Set<Integer> tokensReceived = ConcurrentHashMap.newKeySet();
 
     public TokenValidation() {}
 
-    public boolean isTokenValid(String token, String access) {
+    /**
+     * A token issued by the Directory must be for the given file, and grant the given access.
+     */
+    public boolean isTokenValid(String token, String fileId, String access) {
         String[] info = token.split(Pattern.quote(JavaFiles.DELIMITER));
         if (info.length > 1){
-            long expirationDate = Long.parseLong(info[2]);
-            int tokenId = Integer.parseInt(info[3]);
+            if (info.length != 6 || !fileId.equals(info[0] + JavaFiles.DELIMITER + info[1]))
+                return false;
+            long expirationDate;
+            int tokenId;
+            try {
+                expirationDate = Long.parseLong(info[2]);
+                tokenId = Integer.parseInt(info[3]);
+            } catch (NumberFormatException x) {
+                return false;
+            }
             String hashedToken = info[5];
-            String fileId = info[0] + JavaFiles.DELIMITER + info[1];
-            String tokenToCompare = Hash.of(fileId, info[2], Token.get());
-            if (files.tokensReceived.contains(tokenId))
+            String tokenToCompare = Hash.of(fileId, info[2], info[4], Token.get());
+            if (tokensReceived.contains(tokenId))
                 return false;
             if (!access.equals(info[4]))
                 return false;
@@ -31,7 +41,9 @@ public class TokenValidation {
             if (!tokenToCompare.equals(hashedToken))
                 return false;
 
-            files.tokensReceived.add(tokenId);
+            // a token replayed concurrently is only accepted once
+            if (!tokensReceived.add(tokenId))
+                return false;
         }
         else {
             System.out.println("SECOND");
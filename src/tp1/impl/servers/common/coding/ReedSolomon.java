@@ -0,0 +1,205 @@
+package tp1.impl.servers.common.coding;
+
+import java.util.Arrays;
+
+/**
+ * Systematic Reed-Solomon erasure code over GF(256).
+ *
+ * A file is split into k data shards, padded with zeros to the same size, and
+ * m parity shards are computed from them. The data can be rebuilt from any k of
+ * the k+m shards.
+ *
+ * The coding matrix is a (k+m) x k Vandermonde matrix times the inverse of its
+ * top k x k square, so its top rows are the identity (the data shards are
+ * stored as they are), and any k of its rows are still invertible.
+ */
+public class ReedSolomon {
+
+	private static final int POLYNOMIAL = 0x11D;
+
+	private static final byte[] EXP = new byte[512];
+	private static final int[] LOG = new int[256];
+	private static final byte[][] MUL = new byte[256][256];
+
+	static {
+		int x = 1;
+		for (int i = 0; i < 255; i++) {
+			EXP[i] = EXP[i + 255] = (byte) x;
+			LOG[x] = i;
+			x <<= 1;
+			if (x >= 256)
+				x ^= POLYNOMIAL;
+		}
+		for (int a = 1; a < 256; a++)
+			for (int b = 1; b < 256; b++)
+				MUL[a][b] = EXP[LOG[a] + LOG[b]];
+	}
+
+	private final int k, m;
+	private final byte[][] matrix;
+
+	public ReedSolomon(int k, int m) {
+		if (k < 1 || m < 0 || k + m > 256)
+			throw new IllegalArgumentException(String.format("Bad code: %d+%d", k, m));
+		this.k = k;
+		this.m = m;
+
+		var vandermonde = new byte[k + m][k];
+		for (int r = 0; r < k + m; r++)
+			for (int c = 0; c < k; c++)
+				vandermonde[r][c] = pow(r, c);
+		this.matrix = multiply(vandermonde, invert(Arrays.copyOf(vandermonde, k)));
+	}
+
+	public int dataShards() {
+		return k;
+	}
+
+	public int totalShards() {
+		return k + m;
+	}
+
+	/**
+	 * @return the size of each shard of data of the given size.
+	 */
+	public int shardSize(long size) {
+		return (int) Math.max(1, (size + k - 1) / k);
+	}
+
+	/**
+	 * @return the k+m shards of the data.
+	 */
+	public byte[][] encode(byte[] data) {
+		int size = shardSize(data.length);
+		var shards = new byte[k + m][];
+		for (int i = 0; i < k; i++) {
+			int from = Math.min(i * size, data.length);
+			shards[i] = Arrays.copyOfRange(data, from, from + size);
+		}
+		for (int r = k; r < k + m; r++)
+			shards[r] = combine(matrix[r], shards, size);
+		return shards;
+	}
+
+	/**
+	 * Rebuilds the missing (null) shards, in place.
+	 *
+	 * @throws IllegalArgumentException if fewer than k shards are present.
+	 */
+	public void reconstruct(byte[][] shards) {
+		var rows = new int[k];
+		int present = 0, size = 0;
+		for (int i = 0; i < k + m && present < k; i++)
+			if (shards[i] != null) {
+				rows[present++] = i;
+				size = shards[i].length;
+			}
+		if (present < k)
+			throw new IllegalArgumentException(String.format("Only %d of the %d shards needed", present, k));
+
+		var sub = new byte[k][];
+		var available = new byte[k][];
+		for (int i = 0; i < k; i++) {
+			sub[i] = matrix[rows[i]];
+			available[i] = shards[rows[i]];
+		}
+		var decode = invert(sub);
+		for (int i = 0; i < k; i++)
+			if (shards[i] == null)
+				shards[i] = combine(decode[i], available, size);
+		for (int r = k; r < k + m; r++)
+			if (shards[r] == null)
+				shards[r] = combine(matrix[r], shards, size);
+	}
+
+	/**
+	 * @return the data of the given size, from any k of its shards; the others may be null.
+	 */
+	public byte[] decode(byte[][] shards, long size) {
+		boolean complete = true;
+		for (int i = 0; i < k; i++)
+			complete &= shards[i] != null;
+		if (!complete)
+			reconstruct(shards);
+
+		var data = new byte[(int) size];
+		int shardSize = shardSize(size);
+		for (int i = 0, pos = 0; i < k && pos < size; i++, pos += shardSize)
+			System.arraycopy(shards[i], 0, data, pos, (int) Math.min(shardSize, size - pos));
+		return data;
+	}
+
+	/**
+	 * @return the sum of the first coefficients.length shards, each times its coefficient.
+	 */
+	private static byte[] combine(byte[] coefficients, byte[][] shards, int size) {
+		var out = new byte[size];
+		for (int c = 0; c < coefficients.length; c++) {
+			var mul = MUL[coefficients[c] & 0xFF];
+			var in = shards[c];
+			for (int j = 0; j < size; j++)
+				out[j] ^= mul[in[j] & 0xFF];
+		}
+		return out;
+	}
+
+	private static byte[][] multiply(byte[][] a, byte[][] b) {
+		var out = new byte[a.length][b[0].length];
+		for (int r = 0; r < a.length; r++)
+			for (int c = 0; c < b[0].length; c++) {
+				byte sum = 0;
+				for (int i = 0; i < b.length; i++)
+					sum ^= MUL[a[r][i] & 0xFF][b[i][c] & 0xFF];
+				out[r][c] = sum;
+			}
+		return out;
+	}
+
+	/**
+	 * Gauss-Jordan elimination of a square matrix.
+	 */
+	private static byte[][] invert(byte[][] matrix) {
+		int n = matrix.length;
+		var work = new byte[n][2 * n];
+		for (int r = 0; r < n; r++) {
+			System.arraycopy(matrix[r], 0, work[r], 0, n);
+			work[r][n + r] = 1;
+		}
+		for (int c = 0; c < n; c++) {
+			int pivot = c;
+			while (pivot < n && work[pivot][c] == 0)
+				pivot++;
+			if (pivot == n)
+				throw new IllegalArgumentException("Singular matrix");
+			var tmp = work[c];
+			work[c] = work[pivot];
+			work[pivot] = tmp;
+
+			var scale = MUL[inverse(work[c][c] & 0xFF)];
+			for (int j = 0; j < 2 * n; j++)
+				work[c][j] = scale[work[c][j] & 0xFF];
+			for (int r = 0; r < n; r++)
+				if (r != c && work[r][c] != 0) {
+					var factor = MUL[work[r][c] & 0xFF];
+					for (int j = 0; j < 2 * n; j++)
+						work[r][j] ^= factor[work[c][j] & 0xFF];
+				}
+		}
+		var out = new byte[n][];
+		for (int r = 0; r < n; r++)
+			out[r] = Arrays.copyOfRange(work[r], n, 2 * n);
+		return out;
+	}
+
+	private static int inverse(int a) {
+		return EXP[255 - LOG[a]] & 0xFF;
+	}
+
+	private static byte pow(int a, int e) {
+		if (e == 0)
+			return 1;
+		if (a == 0)
+			return 0;
+		return EXP[(LOG[a] * e) % 255];
+	}
+}
@@ -0,0 +1,222 @@
+package tp1.impl.servers.common.kafka;
+
+import com.google.gson.Gson;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import tp1.impl.clients.DirectoryClientFactory;
+import tp1.impl.discovery.Discovery;
+import tp1.impl.servers.common.JavaDirectory;
+import tp1.impl.servers.common.kafka.operations.DirectoryOperations;
+import util.kafka.KafkaPublisher;
+import util.kafka.KafkaSubscriber;
+import util.kafka.RecordProcessor;
+import util.kafka.SyncPoint;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * A replica of the Directory. Metadata operations are not applied right away:
+ * they are published to a Kafka topic, and every replica, this one included,
+ * applies them in the order of the topic. The offset of the last operation
+ * applied is the version of the replica (see DirectoryVersionFilter).
+ *
+ * The remote calls that go with an operation, eg. writing to the Files
+ * servers, are made only by the replica that got the request.
+ */
+public class JavaDirectoryKafka extends JavaDirectory implements RecordProcessor {
+
+    final static Logger Log = Logger.getLogger(JavaDirectoryKafka.class.getName());
+
+    private static final String REPLICA = UUID.randomUUID().toString();
+
+    // static: the operations of the users topic may arrive while this is being constructed
+    private static final KafkaPublisher publisher = KafkaPublisher.createPublisher("kafka:9092");
+    private static final SyncPoint<Object> syncPoint = SyncPoint.getInstance();
+    private static final Gson json = new Gson();
+
+    /**
+     * Resumes the operations right after the last one reflected in the
+     * recovered journal, rather than replaying the whole topic.
+     */
+    public JavaDirectoryKafka() {
+        super();
+
+        long offset = recoveredOffset();
+        if (offset >= 0)
+            syncPoint.setVersion(offset);
+        Log.info(String.format("Resuming %s after offset %d\n", DirectoryOperations.NAMESPACE, offset));
+        KafkaSubscriber.createSubscriber("kafka:9092", DirectoryOperations.NAMESPACE, offset + 1)
+                .start(false, this);
+    }
+
+    /**
+     * Only the replica with the lowest URI among the ones alive repairs, so
+     * that the others do not copy the same files again.
+     */
+    @Override
+    protected boolean repairs() {
+        var service = DirectoryClientFactory.serviceName(SHARD);
+        var self = Discovery.getInstance().announcedAs(service);
+        var members = Discovery.getInstance().membersOf(service);
+        return self != null && !members.isEmpty() && members.uris().get(0).equals(self);
+    }
+
+    @Override
+    protected Versions putFile(String fileId, String filename, String userId, List<URI> uris, int data, long size, long stamp) {
+        var op = new Operation(fileId);
+        op.filename = filename;
+        op.userId = userId;
+        op.uris = uris.stream().map(URI::toString).toList();
+        op.data = data;
+        op.size = size;
+        op.stamp = stamp;
+        return (Versions) replicate(DirectoryOperations.PUT_FILE, op);
+    }
+
+    @Override
+    protected Versions putBackup(String fileId, long stamp, URI backup) {
+        var op = new Operation(fileId);
+        op.stamp = stamp;
+        op.uri2 = backup.toString();
+        return (Versions) replicate(DirectoryOperations.PUT_BACKUP, op);
+    }
+
+    @Override
+    protected Versions switchToBackup(String fileId, URI primary) {
+        var op = new Operation(fileId);
+        op.uri1 = primary.toString();
+        return (Versions) replicate(DirectoryOperations.SWITCH_TO_BACKUP, op);
+    }
+
+    @Override
+    protected Versions replaceReplica(String fileId, long stamp, URI lost, URI replacement, List<URI> order) {
+        var op = new Operation(fileId);
+        op.stamp = stamp;
+        op.uri1 = lost.toString();
+        op.uri2 = replacement.toString();
+        if (order != null)
+            op.uris = order.stream().map(URI::toString).toList();
+        return (Versions) replicate(DirectoryOperations.REPLACE_REPLICA, op);
+    }
+
+    @Override
+    protected Versions shareWith(String fileId, Set<String> userIdShares, boolean shared) {
+        var op = new Operation(fileId);
+        op.userIds = List.copyOf(userIdShares);
+        op.shared = shared;
+        return (Versions) replicate(DirectoryOperations.SHARE_WITH, op);
+    }
+
+    @Override
+    protected Versions removeFile(String fileId) {
+        return (Versions) replicate(DirectoryOperations.REMOVE_FILE, new Operation(fileId));
+    }
+
+    @Override
+    protected void linkShared(List<String> fileIds, String userIdShare, boolean shared) {
+        var op = new Operation(null);
+        op.fileIds = fileIds;
+        op.userId = userIdShare;
+        op.shared = shared;
+        replicate(DirectoryOperations.LINK_SHARED, op);
+    }
+
+    /**
+     * Every replica gets USER_DELETED, so this is published once per replica;
+     * only the first one applied removes anything.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    protected List<ExtendedFileInfo> removeUser(String userId) {
+        var op = new Operation(null);
+        op.userId = userId;
+        return (List<ExtendedFileInfo>) replicate(DirectoryOperations.REMOVE_USER, op);
+    }
+
+    /**
+     * Publishes the operation and waits until this replica applies it.
+     *
+     * @return the outcome of applying the operation.
+     */
+    private Object replicate(DirectoryOperations operation, Operation op) {
+        op.origin = REPLICA;
+        long offset = publisher.publish(operation.generateOperation(json.toJson(op)));
+        if (offset < 0)
+            throw new IllegalStateException("Failed to publish: " + operation);
+
+        var result = syncPoint.waitForResult(offset);
+        if (result instanceof RuntimeException x)
+            throw x;
+        return result;
+    }
+
+    @Override
+    public void onReceive(ConsumerRecord<String, String> r) {
+        var op = json.fromJson(r.value(), Operation.class);
+        Object result;
+        try {
+            result = switch (DirectoryOperations.valueOf(r.key())) {
+                case PUT_FILE -> super.putFile(op.fileId, op.filename, op.userId, uris(op), op.data, op.size, op.stamp);
+                case PUT_BACKUP -> super.putBackup(op.fileId, op.stamp, uri(op.uri2));
+                case SWITCH_TO_BACKUP -> super.switchToBackup(op.fileId, uri(op.uri1));
+                case REPLACE_REPLICA -> super.replaceReplica(op.fileId, op.stamp, uri(op.uri1), uri(op.uri2), op.uris != null ? uris(op) : null);
+                case SHARE_WITH -> super.shareWith(op.fileId, op.userIds != null ? Set.copyOf(op.userIds) : Set.of(op.userId), op.shared);
+                case REMOVE_FILE -> super.removeFile(op.fileId);
+                case LINK_SHARED -> {
+                    super.linkShared(op.fileIds != null ? op.fileIds : List.of(op.fileId), op.userId, op.shared);
+                    yield null;
+                }
+                case REMOVE_USER -> super.removeUser(op.userId);
+            };
+        } catch (RuntimeException x) {
+            Log.warning(String.format("Failed to apply %s at %d: %s\n", r.key(), r.offset(), x));
+            result = x;
+        }
+
+        try {
+            applied(r.offset());
+        } catch (RuntimeException x) {
+            Log.warning(String.format("Failed to log offset %d: %s\n", r.offset(), x));
+        }
+
+        if (REPLICA.equals(op.origin))
+            syncPoint.setResult(r.offset(), result);
+        else
+            syncPoint.setVersion(r.offset());
+    }
+
+    private static URI uri(String uri) {
+        return uri == null ? null : URI.create(uri);
+    }
+
+    /**
+     * Operations published before files could be kept at more than two servers
+     * only have uri1 and uri2.
+     */
+    private static List<URI> uris(Operation op) {
+        if (op.uris != null)
+            return op.uris.stream().map(URI::create).toList();
+        return op.uri2 == null ? List.of(uri(op.uri1)) : List.of(uri(op.uri1), uri(op.uri2));
+    }
+
+    /**
+     * The arguments of an operation; which ones are used depends on the operation.
+     */
+    static class Operation {
+        String origin;
+        String fileId, filename, userId;
+        String uri1, uri2;
+        List<String> uris;
+        List<String> userIds, fileIds;
+        int data;
+        long size, stamp;
+        boolean shared;
+
+        Operation(String fileId) {
+            this.fileId = fileId;
+        }
+    }
+}
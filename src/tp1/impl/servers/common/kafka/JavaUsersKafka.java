@@ -18,6 +18,16 @@ public class JavaUsersKafka extends JavaUsers {
         super();
     }
 
+    @Override
+    public Result<User> updateUser(String userId, String password, User data) {
+        var r = super.updateUser(userId, password, data);
+
+        if (r.isOK())
+            publisher.publish(UsersAnnouncement.USER_UPDATED.generateOperation(userId));
+
+        return r;
+    }
+
     @Override
     public Result<User> deleteUser(String userId, String password) {
         var r = super.deleteUser(userId, password);
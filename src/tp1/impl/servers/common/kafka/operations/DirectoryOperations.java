@@ -0,0 +1,35 @@
+package tp1.impl.servers.common.kafka.operations;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import tp1.impl.clients.DirectoryClientFactory;
+import tp1.impl.servers.common.JavaDirectory;
+
+import java.util.function.Consumer;
+
+/**
+ * The metadata operations of a replicated Directory, applied in order by every
+ * replica. Each shard has its own topic.
+ */
+public enum DirectoryOperations implements AnnouncementGenerator, AnnouncementHandlerGenerator {
+
+    PUT_FILE,
+    PUT_BACKUP,
+    SWITCH_TO_BACKUP,
+    SHARE_WITH,
+    REMOVE_FILE,
+    LINK_SHARED,
+    REMOVE_USER,
+    REPLACE_REPLICA;
+
+    public static final String NAMESPACE = "directory-ops" + (DirectoryClientFactory.SHARDS > 1 ? "-" + JavaDirectory.SHARD : "");
+
+    @Override
+    public OperationHandler generateOperationHandler(Consumer<String> handler) {
+        return new OperationHandler(NAMESPACE, this.name(), handler);
+    }
+
+    @Override
+    public ProducerRecord<String, String> generateOperation(String args) {
+        return new ProducerRecord<>(NAMESPACE, this.name(), args);
+    }
+}
@@ -25,7 +25,11 @@ public class OperationProcessor implements RecordProcessor {
     @Override
     public void onReceive(ConsumerRecord<String, String> r) {
         var operationNamespace = operations.get(r.topic());
-        Consumer<String> operation = operationNamespace.get(r.key());
+        Consumer<String> operation = operationNamespace == null ? null : operationNamespace.get(r.key());
+        if (operation == null) { // not of interest here
+            Log.finest(String.format("Ignoring operation %s of %s", r.key(), r.topic()));
+            return;
+        }
         operation.accept(r.value());
 
     }
@@ -7,6 +7,7 @@ import java.util.function.Consumer;
 
 public enum UsersAnnouncement implements AnnouncementHandlerGenerator, AnnouncementGenerator {
 
+    USER_UPDATED,
     USER_DELETED;
 
     public static final String NAMESPACE = Users.SERVICE_NAME;
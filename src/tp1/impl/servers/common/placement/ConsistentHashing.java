@@ -0,0 +1,38 @@
+package tp1.impl.servers.common.placement;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.NavigableSet;
+
+/**
+ * Places each file at the servers given by a consistent-hash ring over the
+ * current membership, regardless of load. The ring is rebuilt only when the
+ * membership changes.
+ */
+public class ConsistentHashing implements PlacementStrategy {
+
+	private volatile HashRing ring = new HashRing(List.of());
+
+	@Override
+	public double score(ServerStats server) {
+		return 0;
+	}
+
+	@Override
+	public boolean sticky() {
+		return false;
+	}
+
+	@Override
+	public List<ServerStats> choose(String fileId, List<ServerStats> alive, NavigableSet<ServerStats> ranking, int count) {
+		var byUri = new HashMap<URI, ServerStats>();
+		alive.forEach(s -> byUri.put(s.uri(), s));
+
+		var current = ring;
+		if (!current.members().equals(byUri.keySet()))
+			ring = current = new HashRing(byUri.keySet());
+
+		return current.lookup(fileId, count).stream().map(byUri::get).toList();
+	}
+}
@@ -0,0 +1,74 @@
+package tp1.impl.servers.common.placement;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Immutable consistent-hash ring of Files servers.
+ *
+ * Each server is hashed onto the ring at VIRTUAL_NODES points; a key belongs
+ * to the servers found walking clockwise from its own hash. Any Directory
+ * with the same membership computes the same servers for a key, and a server
+ * joining or leaving only moves about 1/n of the keys.
+ */
+public class HashRing {
+
+	static final int VIRTUAL_NODES = 128;
+
+	private static final HashFunction hash = Hashing.murmur3_128();
+
+	private final Set<URI> members;
+	private final long[] points;
+	private final URI[] owners;
+
+	public HashRing(Collection<URI> members) {
+		this.members = Set.copyOf(members);
+		var ring = new TreeMap<Long, URI>();
+		for (var uri : this.members)
+			for (int i = 0; i < VIRTUAL_NODES; i++)
+				ring.merge(hashOf(uri + "#" + i), uri, (a, b) -> a.toString().compareTo(b.toString()) <= 0 ? a : b);
+
+		this.points = new long[ring.size()];
+		this.owners = new URI[ring.size()];
+		int i = 0;
+		for (var e : ring.entrySet()) {
+			points[i] = e.getKey();
+			owners[i++] = e.getValue();
+		}
+	}
+
+	public Set<URI> members() {
+		return members;
+	}
+
+	/**
+	 * @return up to count distinct servers for the key, in ring order: the
+	 *         first is the primary, the next ones its backups.
+	 */
+	public List<URI> lookup(String key, int count) {
+		var result = new ArrayList<URI>(Math.min(count, members.size()));
+		if (points.length == 0)
+			return result;
+		int i = Arrays.binarySearch(points, hashOf(key));
+		i = i >= 0 ? i : -i - 1;
+		for (int n = 0; n < points.length && result.size() < Math.min(count, members.size()); n++) {
+			var uri = owners[(i + n) % points.length];
+			if (!result.contains(uri))
+				result.add(uri);
+		}
+		return result;
+	}
+
+	private static long hashOf(String key) {
+		return hash.hashString(key, StandardCharsets.UTF_8).asLong();
+	}
+}
@@ -0,0 +1,115 @@
+package tp1.impl.servers.common.placement;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Placement engine of the Directory.
+ *
+ * Tracks, per Files server, the files and bytes it stores and an EWMA of its
+ * write latency, and keeps the servers ranked under the configured strategy.
+ * The ranking is updated incrementally, as each server's stats change.
+ *
+ * Configuration (system properties):
+ * directory.placement - "p2c" (power of two choices, default), "weighted" (weighted capacity)
+ * or "ring" (consistent hashing);
+ * directory.placement.capacity - default capacity of a server, in GB;
+ * directory.placement.capacity.HOST - capacity of the server at HOST, in GB.
+ */
+public class Placement {
+
+	private static final Logger Log = Logger.getLogger(Placement.class.getName());
+
+	static final long DEFAULT_CAPACITY = Long.getLong("directory.placement.capacity", 100); // GB
+
+	/**
+	 * Latency charged to a server when a write to it fails.
+	 */
+	static final double FAILURE_PENALTY = 1000; // ms
+
+	private final PlacementStrategy strategy;
+	private final Map<URI, ServerStats> servers = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListSet<ServerStats> ranking = new ConcurrentSkipListSet<>(
+			Comparator.<ServerStats>comparingDouble(s -> s.rank).thenComparing(s -> s.uri().toString()));
+
+	public Placement(PlacementStrategy strategy) {
+		this.strategy = strategy;
+	}
+
+	public static Placement fromConfig() {
+		var name = System.getProperty("directory.placement", "p2c");
+		PlacementStrategy strategy = switch (name) {
+			case "weighted" -> new WeightedCapacity();
+			case "ring" -> new ConsistentHashing();
+			default -> new PowerOfTwoChoices();
+		};
+		Log.info(String.format("Placement strategy: %s\n", name));
+		return new Placement(strategy);
+	}
+
+	/**
+	 * @return up to count of the given servers for the file, best first.
+	 */
+	public List<URI> choose(String fileId, Collection<URI> alive, int count) {
+		var stats = alive.stream().map(this::stats).toList();
+		return strategy.choose(fileId, stats, ranking, count).stream().map(ServerStats::uri).toList();
+	}
+
+	/**
+	 * @see PlacementStrategy#sticky()
+	 */
+	public boolean sticky() {
+		return strategy.sticky();
+	}
+
+	/**
+	 * Records files (and their bytes) added to, or removed from (if negative), a server.
+	 */
+	public void stored(URI uri, long files, long bytes) {
+		update(stats(uri), s -> s.stored(files, bytes));
+	}
+
+	/**
+	 * Records the latency of a successful write.
+	 */
+	public void observe(URI uri, long nanos) {
+		update(stats(uri), s -> s.observe(nanos / 1e6));
+	}
+
+	/**
+	 * Records a failed write.
+	 */
+	public void failed(URI uri) {
+		update(stats(uri), s -> s.observe(FAILURE_PENALTY));
+	}
+
+	public Collection<ServerStats> stats() {
+		return servers.values();
+	}
+
+	private ServerStats stats(URI uri) {
+		return servers.computeIfAbsent(uri, u -> {
+			var gb = Long.getLong("directory.placement.capacity." + u.getHost(), DEFAULT_CAPACITY);
+			var s = new ServerStats(u, Math.max(1, gb) << 30);
+			s.rank = strategy.score(s);
+			ranking.add(s);
+			return s;
+		});
+	}
+
+	private void update(ServerStats s, Consumer<ServerStats> change) {
+		synchronized (s) {
+			ranking.remove(s);
+			change.accept(s);
+			s.rank = strategy.score(s);
+			ranking.add(s);
+		}
+	}
+}
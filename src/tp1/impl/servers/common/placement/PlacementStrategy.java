@@ -0,0 +1,32 @@
+package tp1.impl.servers.common.placement;
+
+import java.util.List;
+import java.util.NavigableSet;
+
+/**
+ * Chooses the Files servers where new files are placed.
+ */
+public interface PlacementStrategy {
+
+	/**
+	 * @return the score of the server, lower is better. Used to keep the ranking.
+	 */
+	double score(ServerStats server);
+
+	/**
+	 * Chooses up to count servers for the file, best first.
+	 *
+	 * @param fileId  - the file being placed.
+	 * @param alive   - the servers that can be chosen.
+	 * @param ranking - all known servers, by ascending score.
+	 */
+	List<ServerStats> choose(String fileId, List<ServerStats> alive, NavigableSet<ServerStats> ranking, int count);
+
+	/**
+	 * @return true if a file should stay at the servers that already have it,
+	 *         false if it should always go where the strategy says.
+	 */
+	default boolean sticky() {
+		return true;
+	}
+}
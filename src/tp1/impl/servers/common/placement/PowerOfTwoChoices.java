@@ -0,0 +1,38 @@
+package tp1.impl.servers.common.placement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks two servers at random and keeps the least loaded one, repeatedly.
+ *
+ * Load weighs how full a server is by how slow it has been, so that slow
+ * servers get fewer files without starving them. Cheap, and avoids the herd
+ * effect of always choosing the single best server.
+ */
+public class PowerOfTwoChoices implements PlacementStrategy {
+
+	static final double LATENCY_REFERENCE = 50; // ms
+
+	@Override
+	public double score(ServerStats s) {
+		return (s.fill() + 1e-9) * (1 + s.latency() / LATENCY_REFERENCE);
+	}
+
+	@Override
+	public List<ServerStats> choose(String fileId, List<ServerStats> alive, NavigableSet<ServerStats> ranking, int count) {
+		var rnd = ThreadLocalRandom.current();
+		var left = new ArrayList<>(alive);
+		var result = new ArrayList<ServerStats>(count);
+		while (result.size() < count && !left.isEmpty()) {
+			int i = rnd.nextInt(left.size()), j = rnd.nextInt(left.size());
+			int best = score(left.get(i)) <= score(left.get(j)) ? i : j;
+			result.add(left.get(best));
+			left.set(best, left.get(left.size() - 1));
+			left.remove(left.size() - 1);
+		}
+		return result;
+	}
+}
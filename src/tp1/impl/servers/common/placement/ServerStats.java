@@ -0,0 +1,70 @@
+package tp1.impl.servers.common.placement;
+
+import java.net.URI;
+
+/**
+ * What the Directory knows about a Files server: how much it stores, how much
+ * it can store, and how fast it has been answering writes.
+ *
+ * Updated through Placement, which keeps the ranking of servers in sync.
+ */
+public class ServerStats {
+
+	static final double EWMA_ALPHA = 0.2;
+
+	private final URI uri;
+	private final long capacity;
+
+	private long files, bytes;
+	private double latency; // ms, EWMA of write latencies
+	private boolean sampled;
+
+	double rank; // score under the current strategy, while ranked
+
+	ServerStats(URI uri, long capacity) {
+		this.uri = uri;
+		this.capacity = capacity;
+	}
+
+	public URI uri() {
+		return uri;
+	}
+
+	public synchronized long files() {
+		return files;
+	}
+
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+	public long capacity() {
+		return capacity;
+	}
+
+	public synchronized double latency() {
+		return latency;
+	}
+
+	/**
+	 * @return the fraction of the capacity in use.
+	 */
+	public synchronized double fill() {
+		return (double) bytes / capacity;
+	}
+
+	synchronized void stored(long files, long bytes) {
+		this.files += files;
+		this.bytes += bytes;
+	}
+
+	synchronized void observe(double ms) {
+		latency = sampled ? EWMA_ALPHA * ms + (1 - EWMA_ALPHA) * latency : ms;
+		sampled = true;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%s[files=%d, bytes=%d, fill=%.3f, latency=%.1fms]", uri, files, bytes, fill(), latency);
+	}
+}
@@ -0,0 +1,34 @@
+package tp1.impl.servers.common.placement;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
+
+/**
+ * Fills servers in proportion to their capacity: always picks the servers
+ * with the lowest fraction of their capacity in use, ties broken by latency.
+ *
+ * Walks the ranking, which is kept sorted as stats change, so choosing costs
+ * O(count) when most servers are alive.
+ */
+public class WeightedCapacity implements PlacementStrategy {
+
+	@Override
+	public double score(ServerStats s) {
+		return s.fill() + s.latency() * 1e-9;
+	}
+
+	@Override
+	public List<ServerStats> choose(String fileId, List<ServerStats> alive, NavigableSet<ServerStats> ranking, int count) {
+		var candidates = new HashSet<>(alive);
+		var result = new ArrayList<ServerStats>(count);
+		for (var s : ranking) {
+			if (result.size() == count)
+				break;
+			if (candidates.contains(s))
+				result.add(s);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,335 @@
+package tp1.impl.servers.common.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the contents of hot files in memory, in front of another storage engine.
+ *
+ * The cache lives outside the Java heap: direct buffers (arenas) split into
+ * fixed-size blocks. A cached file takes as many blocks as needed; the least
+ * recently used files are evicted to make room. Only the index lives on the
+ * heap, so hits do not add to GC pressure.
+ *
+ * Writes and deletes invalidate the entries of the files they touch. A miss
+ * only fills the cache if no invalidation of that file happened meanwhile.
+ */
+public class CachedStorage implements FileStorage {
+
+	private static final Logger Log = Logger.getLogger(CachedStorage.class.getName());
+
+	private static final String DELIMITER = "$$$";
+
+	static final int BLOCK_SIZE = 8 * 1024;
+	static final int ARENA_SIZE = 256 << 20;
+	static final long MAX_ENTRY_SIZE = 4 << 20;
+	static final long STATS_PERIOD = 60; // seconds
+
+	private final FileStorage storage;
+	private final ByteBuffer[] arenas;
+	private final int blocksPerArena;
+	private final long maxEntrySize;
+
+	// guarded by this
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final int[] free;
+	private int freeCount;
+
+	private final AtomicLongArray stamps = new AtomicLongArray(256);
+	private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+
+	private final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+		var t = new Thread(r, "cache-stats");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * @param storage  - the storage engine being cached.
+	 * @param capacity - the size of the cache, in bytes.
+	 */
+	public CachedStorage(FileStorage storage, long capacity) {
+		this.storage = storage;
+		this.blocksPerArena = ARENA_SIZE / BLOCK_SIZE;
+
+		int blocks = (int) Math.min(capacity / BLOCK_SIZE, Integer.MAX_VALUE);
+		this.arenas = new ByteBuffer[(blocks + blocksPerArena - 1) / blocksPerArena];
+		for (int i = 0; i < arenas.length; i++)
+			arenas[i] = ByteBuffer.allocateDirect(Math.min(blocks - i * blocksPerArena, blocksPerArena) * BLOCK_SIZE);
+
+		this.free = new int[blocks];
+		for (int i = blocks - 1; i >= 0; i--)
+			free[freeCount++] = i;
+
+		this.maxEntrySize = Math.min(MAX_ENTRY_SIZE, (long) blocks * BLOCK_SIZE / 16);
+		reporter.scheduleWithFixedDelay(this::report, STATS_PERIOD, STATS_PERIOD, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void write(String fileId, InputStream data) throws IOException {
+		try {
+			storage.write(fileId, data);
+		} finally {
+			invalidate(fileId);
+		}
+	}
+
+	@Override
+	public StoredFile open(String fileId) throws IOException {
+		var cached = acquire(fileId);
+		if (cached != null) {
+			hits.increment();
+			return cached;
+		}
+		misses.increment();
+
+		long stamp = stamps.get(slot(fileId));
+		var file = storage.open(fileId);
+		long size = file.size();
+		if (size > maxEntrySize)
+			return file;
+
+		var entry = allocate(size, file.etag());
+		if (entry == null)
+			return file;
+		try (file) {
+			file.transferTo(0, size, new BlockWriter(entry));
+		} catch (IOException x) {
+			synchronized (this) {
+				free(entry);
+			}
+			throw x;
+		}
+		return insert(fileId, entry, stamp);
+	}
+
+	@Override
+	public boolean delete(String fileId) throws IOException {
+		try {
+			return storage.delete(fileId);
+		} finally {
+			invalidate(fileId);
+		}
+	}
+
+	@Override
+	public void deleteAll(String userId) throws IOException {
+		try {
+			storage.deleteAll(userId);
+		} finally {
+			var prefix = userId + DELIMITER;
+			synchronized (this) {
+				var it = entries.entrySet().iterator();
+				while (it.hasNext()) {
+					var e = it.next();
+					if (e.getKey().startsWith(prefix)) {
+						stamps.incrementAndGet(slot(e.getKey()));
+						it.remove();
+						drop(e.getValue());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the counters of the cache, since startup.
+	 */
+	public Stats stats() {
+		synchronized (this) {
+			return new Stats(hits.sum(), misses.sum(), evictions.sum(), entries.size(), (long) (free.length - freeCount) * BLOCK_SIZE);
+		}
+	}
+
+	private synchronized StoredFile acquire(String fileId) {
+		var entry = entries.get(fileId);
+		if (entry == null)
+			return null;
+		entry.pins++;
+		return new CachedFile(entry);
+	}
+
+	private synchronized StoredFile insert(String fileId, Entry entry, long stamp) {
+		entry.pins++;
+		if (stamps.get(slot(fileId)) == stamp) {
+			var prev = entries.put(fileId, entry);
+			if (prev != null)
+				drop(prev);
+		} else
+			entry.dropped = true; // invalidated while filling; only this reader gets it
+		return new CachedFile(entry);
+	}
+
+	private void invalidate(String fileId) {
+		stamps.incrementAndGet(slot(fileId));
+		synchronized (this) {
+			var entry = entries.remove(fileId);
+			if (entry != null)
+				drop(entry);
+		}
+	}
+
+	/**
+	 * Takes the blocks for an entry of the given size, evicting the least
+	 * recently used entries if needed.
+	 *
+	 * @return the entry, or null if there is no room for it.
+	 */
+	private synchronized Entry allocate(long size, String etag) {
+		int n = (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+		var it = entries.values().iterator();
+		while (freeCount < n && it.hasNext()) {
+			var victim = it.next();
+			it.remove();
+			drop(victim);
+			evictions.increment();
+		}
+		if (freeCount < n)
+			return null;
+
+		var blocks = new int[n];
+		for (int i = 0; i < n; i++)
+			blocks[i] = free[--freeCount];
+		return new Entry(blocks, size, etag);
+	}
+
+	// must hold the lock of this
+	private void drop(Entry entry) {
+		entry.dropped = true;
+		if (entry.pins == 0)
+			free(entry);
+	}
+
+	private synchronized void release(Entry entry) {
+		if (--entry.pins == 0 && entry.dropped)
+			free(entry);
+	}
+
+	// must hold the lock of this
+	private void free(Entry entry) {
+		for (int b : entry.blocks)
+			free[freeCount++] = b;
+	}
+
+	private ByteBuffer block(int b) {
+		int offset = (b % blocksPerArena) * BLOCK_SIZE;
+		return arenas[b / blocksPerArena].duplicate().limit(offset + BLOCK_SIZE).position(offset);
+	}
+
+	private static int slot(String fileId) {
+		return fileId.hashCode() & 255;
+	}
+
+	private void report() {
+		var s = stats();
+		Log.info(String.format("Files cache: hits = %d, misses = %d, evictions = %d, entries = %d, bytes = %d\n",
+				s.hits(), s.misses(), s.evictions(), s.entries(), s.bytes()));
+	}
+
+	public static record Stats(long hits, long misses, long evictions, long entries, long bytes) {
+	}
+
+	/**
+	 * A cached file. While pinned by readers, its blocks are not reused.
+	 */
+	static class Entry {
+		final int[] blocks;
+		final long size;
+		final String etag;
+		int pins;
+		boolean dropped;
+
+		Entry(int[] blocks, long size, String etag) {
+			this.blocks = blocks;
+			this.size = size;
+			this.etag = etag;
+		}
+	}
+
+	/**
+	 * Fills the blocks of an entry, in order.
+	 */
+	private class BlockWriter implements WritableByteChannel {
+		final Entry entry;
+		long pos;
+
+		BlockWriter(Entry entry) {
+			this.entry = entry;
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			while (src.hasRemaining()) {
+				var dst = block(entry.blocks[(int) (pos / BLOCK_SIZE)]);
+				dst.position(dst.position() + (int) (pos % BLOCK_SIZE));
+				int len = Math.min(dst.remaining(), src.remaining());
+				dst.put(src.slice(src.position(), len));
+				src.position(src.position() + len);
+				pos += len;
+			}
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private class CachedFile implements StoredFile {
+		final Entry entry;
+		boolean closed;
+
+		CachedFile(Entry entry) {
+			this.entry = entry;
+		}
+
+		@Override
+		public long size() {
+			return entry.size;
+		}
+
+		@Override
+		public String etag() {
+			return entry.etag;
+		}
+
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			long end = Math.min(position + count, entry.size), done = 0;
+			while (position + done < end) {
+				long pos = position + done;
+				var src = block(entry.blocks[(int) (pos / BLOCK_SIZE)]);
+				int from = src.position() + (int) (pos % BLOCK_SIZE);
+				int len = (int) Math.min(BLOCK_SIZE - pos % BLOCK_SIZE, end - pos);
+				src.limit(from + len).position(from);
+				while (src.hasRemaining())
+					target.write(src);
+				done += len;
+			}
+			return done;
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				release(entry);
+			}
+		}
+	}
+}
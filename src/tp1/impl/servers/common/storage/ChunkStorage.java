@@ -0,0 +1,351 @@
+package tp1.impl.servers.common.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Content-addressed, deduplicating storage engine.
+ *
+ * Files are split into content-defined chunks (see Chunker). Each distinct
+ * chunk is stored once, as root/chunks/xx/sha256, no matter how many files
+ * (or users) contain it. A file is stored as a manifest, root/manifests/userId/filename,
+ * listing its chunks. Both are written to root/staging first and then
+ * renamed into place, so readers never see partial contents.
+ *
+ * Reference counts are kept in memory and rebuilt from the manifests on
+ * startup. Deleting a file only drops its references; chunks nobody
+ * references are reclaimed by a background collector. A chunk must stay
+ * unreferenced for a whole collection period before being removed, so that
+ * readers of a file that was just deleted or overwritten can finish.
+ */
+public class ChunkStorage implements FileStorage {
+
+	private static final Logger Log = Logger.getLogger(ChunkStorage.class.getName());
+
+	private static final String DELIMITER = "$$$";
+	private static final int MANIFEST_MAGIC = 0x43484B31; // CHK1
+	private static final int HASH_SIZE = 32;
+
+	static final long COLLECT_PERIOD = 30; // seconds
+
+	private static final HexFormat hex = HexFormat.of();
+
+	private final Path chunks, manifests, staging;
+
+	private final Map<String, Integer> refs = new ConcurrentHashMap<>();
+	private final Set<String> unreferenced = ConcurrentHashMap.newKeySet();
+	private Set<String> condemned = Set.of();
+
+	private final Striped<Lock> fileLocks = Striped.lock(64);
+	private final ScheduledExecutorService collector = Executors.newSingleThreadScheduledExecutor(r -> {
+		var t = new Thread(r, "chunk-collector");
+		t.setDaemon(true);
+		return t;
+	});
+
+	public ChunkStorage(String root) {
+		this.chunks = Path.of(root, "chunks");
+		this.manifests = Path.of(root, "manifests");
+		this.staging = Path.of(root, "staging");
+		try {
+			if (Files.isDirectory(staging))
+				try (var s = Files.walk(staging)) {
+					s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+				}
+			Files.createDirectories(staging);
+			Files.createDirectories(chunks);
+			Files.createDirectories(manifests);
+			rebuildReferences();
+		} catch (IOException x) {
+			throw new RuntimeException(x);
+		}
+		collector.scheduleWithFixedDelay(this::collect, COLLECT_PERIOD, COLLECT_PERIOD, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void write(String fileId, InputStream data) throws IOException {
+		var digest = sha256();
+		var chunker = new Chunker(data);
+		var entries = new ArrayList<Chunk>();
+		try {
+			int n;
+			while ((n = chunker.next()) > 0) {
+				digest.update(chunker.chunk, 0, n);
+				var hash = hex.formatHex(digest.digest());
+				store(hash, chunker.chunk, n);
+				entries.add(new Chunk(hash, n));
+			}
+		} catch (IOException x) {
+			entries.forEach(c -> release(c.hash()));
+			throw x;
+		}
+
+		var lock = fileLocks.get(fileId);
+		lock.lock();
+		try {
+			var manifest = manifestOf(fileId);
+			var previous = readManifestIfExists(manifest);
+			writeManifest(manifest, entries);
+			if (previous != null)
+				previous.forEach(c -> release(c.hash()));
+		} catch (IOException x) {
+			entries.forEach(c -> release(c.hash()));
+			throw x;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public StoredFile open(String fileId) throws IOException {
+		return new ChunkedFile(readManifest(manifestOf(fileId)));
+	}
+
+	@Override
+	public boolean delete(String fileId) throws IOException {
+		var lock = fileLocks.get(fileId);
+		lock.lock();
+		try {
+			var manifest = manifestOf(fileId);
+			var entries = readManifestIfExists(manifest);
+			if (entries == null)
+				return false;
+			Files.delete(manifest);
+			entries.forEach(c -> release(c.hash()));
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void deleteAll(String userId) throws IOException {
+		var dir = manifests.resolve(userId);
+		if (!Files.isDirectory(dir))
+			return;
+
+		List<Path> files;
+		try (var s = Files.walk(dir)) {
+			files = s.filter(Files::isRegularFile).toList();
+		}
+		for (var file : files)
+			delete(userId + DELIMITER + dir.relativize(file).toString());
+
+		try (var s = Files.walk(dir)) {
+			s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	private void store(String hash, byte[] data, int len) throws IOException {
+		refs.merge(hash, 1, Integer::sum);
+		unreferenced.remove(hash);
+
+		var file = chunkOf(hash);
+		if (Files.exists(file))
+			return;
+		try {
+			Files.createDirectories(file.getParent());
+			var tmp = Files.createTempFile(staging, hash, null);
+			try (var ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				ch.write(ByteBuffer.wrap(data, 0, len));
+			}
+			Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException x) {
+			release(hash);
+			throw x;
+		}
+	}
+
+	private void release(String hash) {
+		refs.computeIfPresent(hash, (k, v) -> {
+			if (v <= 1)
+				unreferenced.add(k);
+			return Math.max(v - 1, 0);
+		});
+	}
+
+	/**
+	 * Removes the chunks that were found unreferenced in the previous run and
+	 * are still unreferenced.
+	 */
+	synchronized void collect() {
+		int removed = 0;
+		for (var hash : condemned) {
+			var dropped = new boolean[1];
+			refs.compute(hash, (k, v) -> {
+				if (v != null && v > 0)
+					return v;
+				try {
+					Files.deleteIfExists(chunkOf(k));
+					dropped[0] = true;
+				} catch (IOException x) {
+					x.printStackTrace();
+					return 0;
+				}
+				return null;
+			});
+			if (dropped[0])
+				removed++;
+		}
+		condemned = Set.copyOf(unreferenced);
+		unreferenced.removeAll(condemned);
+
+		if (removed > 0)
+			Log.info(String.format("Chunk collector: removed %d chunks, %d referenced\n", removed, refs.size()));
+	}
+
+	private void rebuildReferences() throws IOException {
+		try (var s = Files.walk(manifests)) {
+			for (var manifest : s.filter(Files::isRegularFile).toList())
+				for (var c : readManifest(manifest))
+					refs.merge(c.hash(), 1, Integer::sum);
+		}
+		try (var s = Files.walk(chunks)) {
+			s.filter(Files::isRegularFile).forEach(p -> {
+				var name = p.getFileName().toString();
+				if (!refs.containsKey(name)) {
+					refs.put(name, 0);
+					unreferenced.add(name);
+				}
+			});
+		}
+		Log.info(String.format("Chunk storage: %d chunks referenced\n", refs.size()));
+	}
+
+	private Path chunkOf(String hash) {
+		return chunks.resolve(hash.substring(0, 2)).resolve(hash);
+	}
+
+	private Path manifestOf(String fileId) {
+		return manifests.resolve(fileId.replace(DELIMITER, "/"));
+	}
+
+	private void writeManifest(Path manifest, List<Chunk> entries) throws IOException {
+		Files.createDirectories(manifest.getParent());
+		var tmp = Files.createTempFile(staging, "manifest", null);
+		try (var out = new DataOutputStream(Files.newOutputStream(tmp))) {
+			out.writeInt(MANIFEST_MAGIC);
+			out.writeInt(entries.size());
+			for (var c : entries) {
+				out.write(hex.parseHex(c.hash()));
+				out.writeInt(c.length());
+			}
+		}
+		Files.move(tmp, manifest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static List<Chunk> readManifestIfExists(Path manifest) throws IOException {
+		try {
+			return readManifest(manifest);
+		} catch (NoSuchFileException x) {
+			return null;
+		}
+	}
+
+	private static List<Chunk> readManifest(Path manifest) throws IOException {
+		try (var in = new DataInputStream(Files.newInputStream(manifest))) {
+			if (in.readInt() != MANIFEST_MAGIC)
+				throw new IOException("Corrupted manifest: " + manifest);
+			int count = in.readInt();
+			var entries = new ArrayList<Chunk>(count);
+			var hash = new byte[HASH_SIZE];
+			for (int i = 0; i < count; i++) {
+				in.readFully(hash);
+				entries.add(new Chunk(hex.formatHex(hash), in.readInt()));
+			}
+			return entries;
+		}
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException x) {
+			throw new IllegalStateException(x);
+		}
+	}
+
+	static record Chunk(String hash, int length) {
+	}
+
+	/**
+	 * A file rebuilt from its chunks, in manifest order.
+	 */
+	private class ChunkedFile implements StoredFile {
+		final List<Chunk> entries;
+		final long[] offsets;
+
+		ChunkedFile(List<Chunk> entries) {
+			this.entries = entries;
+			this.offsets = new long[entries.size() + 1];
+			for (int i = 0; i < entries.size(); i++)
+				offsets[i + 1] = offsets[i] + entries.get(i).length();
+		}
+
+		@Override
+		public long size() {
+			return offsets[entries.size()];
+		}
+
+		@Override
+		public String etag() {
+			var digest = sha256();
+			for (var c : entries)
+				digest.update(hex.parseHex(c.hash()));
+			return hex.formatHex(digest.digest());
+		}
+
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			long end = Math.min(position + count, size()), done = 0;
+			int i = Arrays.binarySearch(offsets, position);
+			i = i >= 0 ? i : -i - 2;
+			for (; i < entries.size() && position + done < end; i++) {
+				long from = position + done - offsets[i];
+				long len = Math.min(entries.get(i).length() - from, end - position - done);
+				try (var ch = FileChannel.open(chunkOf(entries.get(i).hash()), StandardOpenOption.READ)) {
+					long n = 0;
+					while (n < len) {
+						long k = ch.transferTo(from + n, len - n, target);
+						if (k <= 0)
+							throw new IOException("Truncated chunk: " + entries.get(i).hash());
+						n += k;
+					}
+				}
+				done += len;
+			}
+			return done;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package tp1.impl.servers.common.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream into content-defined chunks, using a gear rolling hash.
+ *
+ * Chunk boundaries depend only on the bytes preceding them, so an insertion
+ * or removal only changes the chunks around it, and identical content in
+ * different files yields identical chunks.
+ */
+class Chunker {
+
+	static final int MIN_SIZE = 2 * 1024;
+	static final int MAX_SIZE = 64 * 1024;
+
+	// 13 bits -> chunks of ~8 KB on average, taken from the top of the hash,
+	// which depends on the last 64 bytes.
+	private static final int AVG_BITS = 13;
+	private static final long MASK = ((1L << AVG_BITS) - 1) << (Long.SIZE - AVG_BITS);
+
+	private static final long[] GEAR = new long[256];
+
+	static {
+		var rnd = new Random(0x5D2122L); // fixed seed, boundaries must be stable across restarts
+		for (int i = 0; i < GEAR.length; i++)
+			GEAR[i] = rnd.nextLong();
+	}
+
+	private final InputStream in;
+	private final byte[] input = new byte[MAX_SIZE];
+	private int pos, limit;
+	private boolean eof;
+
+	final byte[] chunk = new byte[MAX_SIZE];
+
+	Chunker(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Fills chunk with the next chunk of the stream.
+	 *
+	 * @return the length of the chunk, 0 at the end of the stream.
+	 */
+	int next() throws IOException {
+		long hash = 0;
+		int len = 0;
+		for (;;) {
+			if (pos == limit && !fill())
+				return len;
+
+			byte b = input[pos++];
+			chunk[len++] = b;
+			hash = (hash << 1) + GEAR[b & 0xFF];
+
+			if (len >= MIN_SIZE && (hash & MASK) == 0 || len == MAX_SIZE)
+				return len;
+		}
+	}
+
+	private boolean fill() throws IOException {
+		if (eof)
+			return false;
+		int n = in.read(input, 0, input.length);
+		if (n < 0) {
+			eof = true;
+			return false;
+		}
+		pos = 0;
+		limit = n;
+		return true;
+	}
+}
@@ -0,0 +1,116 @@
+package tp1.impl.servers.common.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.regex.Pattern;
+
+import util.IO;
+
+/**
+ * Stores each file verbatim, as root/userId/filename.
+ *
+ * Files are written to root/.staging first and then renamed into place, so
+ * readers never see partial contents. How the write is made durable depends
+ * on the durability mode.
+ */
+public class DiskStorage implements FileStorage {
+
+	private static final String DELIMITER = "$$$";
+	private static final String STAGING = ".staging";
+
+	/**
+	 * LATENCY leaves flushing to the OS: a crash may lose recent writes, but
+	 * never exposes a partial file. DURABLE only acknowledges writes once they
+	 * are on stable storage, batching the fsyncs of concurrent writes (see GroupCommit).
+	 */
+	public enum Durability {
+		LATENCY, DURABLE
+	}
+
+	private final String root;
+	private final Path staging;
+	private final GroupCommit commits;
+
+	public DiskStorage(String root) {
+		this(root, Durability.LATENCY);
+	}
+
+	public DiskStorage(String root, Durability durability) {
+		this.root = root;
+		this.staging = Path.of(root, STAGING);
+		this.commits = durability == Durability.DURABLE ? new GroupCommit() : null;
+		try {
+			if (Files.isDirectory(staging))
+				try (var s = Files.list(staging)) {
+					s.forEach(p -> p.toFile().delete());
+				}
+			Files.createDirectories(staging);
+		} catch (IOException x) {
+			throw new RuntimeException(x);
+		}
+	}
+
+	@Override
+	public void write(String fileId, InputStream data) throws IOException {
+		var file = fileOf(fileId).toPath();
+		Files.createDirectories(file.getParent());
+		var tmp = Files.createTempFile(staging, "write", null);
+		if (!IO.write(tmp.toFile(), data))
+			throw new IOException("Failed to write: " + fileId);
+		try {
+			if (commits != null)
+				commits.commit(tmp, file);
+			else
+				Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException x) {
+			Files.deleteIfExists(tmp);
+			throw x;
+		}
+	}
+
+	@Override
+	public StoredFile open(String fileId) throws IOException {
+		return StoredFile.of(fileOf(fileId).toPath());
+	}
+
+	@Override
+	public boolean delete(String fileId) {
+		var file = fileOf(fileId);
+		if (!IO.delete(file))
+			return false;
+		prune(file.getParentFile(), fileId.split(Pattern.quote(DELIMITER)).length - 2);
+		return true;
+	}
+
+	/**
+	 * Removes the directories a delete left empty, below the directory of the
+	 * user, so they cannot get in the way of a file written later with the
+	 * same path.
+	 */
+	private static void prune(File dir, int levels) {
+		for (; levels > 0 && dir.delete(); levels--)
+			dir = dir.getParentFile();
+	}
+
+	@Override
+	public void deleteAll(String userId) throws IOException {
+		var dir = new File(root + userId).toPath();
+		try (var files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder())
+				.map(Path::toFile)
+				.forEach(File::delete);
+		} catch (NoSuchFileException x) {
+			// user has no files
+		}
+	}
+
+	private File fileOf(String fileId) {
+		return new File(root + fileId.replace(DELIMITER, "/"));
+	}
+}
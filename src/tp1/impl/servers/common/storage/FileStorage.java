@@ -0,0 +1,36 @@
+package tp1.impl.servers.common.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Storage engine used by the Files service to keep the contents of files.
+ *
+ * Files are identified by their fileId (userId$$$filename).
+ */
+public interface FileStorage {
+
+	/**
+	 * Stores the contents of the file, replacing any previous contents.
+	 */
+	void write(String fileId, InputStream data) throws IOException;
+
+	/**
+	 * Opens the contents of the file. The caller must close the returned handle.
+	 *
+	 * @throws java.nio.file.NoSuchFileException if the file does not exist.
+	 */
+	StoredFile open(String fileId) throws IOException;
+
+	/**
+	 * Removes the file.
+	 *
+	 * @return true if the file existed, false otherwise.
+	 */
+	boolean delete(String fileId) throws IOException;
+
+	/**
+	 * Removes all the files of the given user.
+	 */
+	void deleteAll(String userId) throws IOException;
+}
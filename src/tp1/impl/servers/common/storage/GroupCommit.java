@@ -0,0 +1,115 @@
+package tp1.impl.servers.common.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Makes writes durable, batching the directory fsyncs of concurrent writers.
+ *
+ * A writer fsyncs its fully written temporary file itself, so that the file
+ * fsyncs of concurrent writers run in parallel, then hands it over and waits.
+ * A single committer thread collects the writes that arrive within
+ * COMMIT_WINDOW, then, for the whole batch: renames each file atomically into
+ * place, and fsyncs each parent directory once, so that the renames survive a
+ * crash. Only then are the writers released.
+ */
+public class GroupCommit {
+
+	private static final Logger Log = Logger.getLogger(GroupCommit.class.getName());
+
+	static final long COMMIT_WINDOW = 2; // ms
+
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+
+	public GroupCommit() {
+		var t = new Thread(this::run, "group-commit");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Durably moves tmp into target, replacing it.
+	 * Returns once the new contents of target are on stable storage.
+	 */
+	public void commit(Path tmp, Path target) throws IOException {
+		force(tmp);
+		var p = new Pending(tmp, target, new CompletableFuture<>());
+		queue.add(p);
+		try {
+			p.done().get();
+		} catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
+			throw new IOException(x);
+		} catch (ExecutionException x) {
+			throw x.getCause() instanceof IOException io ? io : new IOException(x.getCause());
+		}
+	}
+
+	private void run() {
+		var batch = new ArrayList<Pending>();
+		for (;;) {
+			try {
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(COMMIT_WINDOW);
+				for (long left; (left = deadline - System.nanoTime()) > 0;) {
+					var p = queue.poll(left, TimeUnit.NANOSECONDS);
+					if (p == null)
+						break;
+					batch.add(p);
+				}
+				commit(batch);
+			} catch (InterruptedException x) {
+				return;
+			} catch (RuntimeException x) {
+				x.printStackTrace();
+				batch.forEach(p -> p.done().completeExceptionally(x));
+			}
+			batch.clear();
+		}
+	}
+
+	private void commit(List<Pending> batch) {
+		var dirs = new HashMap<Path, List<Pending>>();
+		for (var p : batch)
+			try {
+				Files.move(p.tmp(), p.target(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				dirs.computeIfAbsent(p.target().getParent(), k -> new ArrayList<>()).add(p);
+			} catch (IOException x) {
+				p.done().completeExceptionally(x);
+			}
+
+		dirs.forEach((dir, writes) -> {
+			try {
+				force(dir);
+				writes.forEach(p -> p.done().complete(null));
+			} catch (IOException x) {
+				writes.forEach(p -> p.done().completeExceptionally(x));
+			}
+		});
+
+		if (batch.size() > 1)
+			Log.fine(String.format("Group commit: %d writes, %d directories\n", batch.size(), dirs.size()));
+	}
+
+	private static void force(Path path) throws IOException {
+		try (var ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			ch.force(true);
+		}
+	}
+
+	static record Pending(Path tmp, Path target, CompletableFuture<Void> done) {
+	}
+}
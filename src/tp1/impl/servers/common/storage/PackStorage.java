@@ -0,0 +1,433 @@
+package tp1.impl.servers.common.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Log-structured storage engine for small files.
+ *
+ * Files of up to PACK_LIMIT bytes are appended, as records, to large segment
+ * files, root/segments/N.seg; an in-memory index maps each fileId to the
+ * segment and offset of its latest record. Deletes append tombstone records.
+ * Larger files are kept verbatim, by a DiskStorage over root/large.
+ *
+ * Once a segment reaches SEGMENT_SIZE it is sealed with a footer listing its
+ * records, so that on restart the index is rebuilt from the footers alone. Only
+ * a segment left unsealed by a crash is scanned (and then sealed).
+ *
+ * Segments whose live data drops below COMPACT_RATIO are compacted in the
+ * background: their live records are appended again, and the segment removed.
+ */
+public class PackStorage implements FileStorage {
+
+	private static final Logger Log = Logger.getLogger(PackStorage.class.getName());
+
+	private static final String DELIMITER = "$$$";
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	private static final int RECORD_MAGIC = 0x50524543; // PREC
+	private static final int FOOTER_MAGIC = 0x50465452; // PFTR
+	private static final int TRAILER_SIZE = 4 + 8 + 4; // count, footer start, magic
+	private static final int TOMBSTONE = -1;
+
+	static final int PACK_LIMIT = 16 * 1024;
+	static final long SEGMENT_SIZE = 64 << 20;
+	static final double COMPACT_RATIO = 0.5;
+	static final long COMPACT_PERIOD = 60; // seconds
+
+	private final Path segments;
+	private final FileStorage large;
+
+	private final ConcurrentSkipListMap<String, Location> index = new ConcurrentSkipListMap<>();
+	private final Map<Integer, Segment> sealed = new ConcurrentHashMap<>();
+	private volatile Segment active; // written under this
+
+	private final Striped<Lock> fileLocks = Striped.lock(64);
+	private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+		var t = new Thread(r, "pack-compactor");
+		t.setDaemon(true);
+		return t;
+	});
+
+	public PackStorage(String root) {
+		this.segments = Path.of(root, "segments");
+		this.large = new DiskStorage(Path.of(root, "large").toString() + "/");
+		try {
+			Files.createDirectories(segments);
+			rebuildIndex();
+		} catch (IOException x) {
+			throw new RuntimeException(x);
+		}
+		compactor.scheduleWithFixedDelay(this::compact, COMPACT_PERIOD, COMPACT_PERIOD, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void write(String fileId, InputStream data) throws IOException {
+		var head = data.readNBytes(PACK_LIMIT + 1);
+
+		var lock = fileLocks.get(fileId);
+		lock.lock();
+		try {
+			if (head.length > PACK_LIMIT) {
+				if (index.containsKey(fileId))
+					append(fileId, null, TOMBSTONE);
+				large.write(fileId, new SequenceInputStream(new ByteArrayInputStream(head), data));
+			} else {
+				append(fileId, head, head.length);
+				large.delete(fileId);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public StoredFile open(String fileId) throws IOException {
+		for (int attempt = 0;; attempt++) {
+			var loc = index.get(fileId);
+			if (loc == null)
+				return large.open(fileId);
+			try {
+				return new PackedFile(FileChannel.open(pathOf(loc.segment()), StandardOpenOption.READ), loc);
+			} catch (NoSuchFileException x) {
+				// the segment was compacted meanwhile, the index has moved on
+				if (attempt > 0)
+					throw x;
+			}
+		}
+	}
+
+	@Override
+	public boolean delete(String fileId) throws IOException {
+		var lock = fileLocks.get(fileId);
+		lock.lock();
+		try {
+			boolean existed = index.containsKey(fileId);
+			if (existed)
+				append(fileId, null, TOMBSTONE);
+			return large.delete(fileId) || existed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void deleteAll(String userId) throws IOException {
+		var prefix = userId + DELIMITER;
+		for (var fileId : List.copyOf(index.subMap(prefix, prefix + Character.MAX_VALUE).keySet()))
+			delete(fileId);
+		large.deleteAll(userId);
+	}
+
+	/**
+	 * Appends a record (or a tombstone, if length is TOMBSTONE) to the active
+	 * segment, and points the index to it.
+	 */
+	private synchronized void append(String fileId, byte[] data, int length) throws IOException {
+		var seg = active;
+		var id = fileId.getBytes(StandardCharsets.UTF_8);
+		var buf = ByteBuffer.allocate(4 + 2 + id.length + 4 + Math.max(length, 0));
+		buf.putInt(RECORD_MAGIC).putShort((short) id.length).put(id).putInt(length);
+		if (length > 0)
+			buf.put(data, 0, length);
+		buf.flip();
+
+		long pos = seg.size, offset = pos + buf.limit() - Math.max(length, 0);
+		while (buf.hasRemaining())
+			seg.channel.write(buf, pos + buf.position());
+		seg.size += buf.limit();
+		seg.entries.add(new Entry(fileId, offset, length));
+		apply(seg, new Entry(fileId, offset, length));
+
+		if (seg.size >= SEGMENT_SIZE) {
+			seal(seg);
+			active = newSegment(seg.id + 1);
+		}
+	}
+
+	/**
+	 * Applies a record of the given segment to the index.
+	 */
+	private void apply(Segment seg, Entry e) {
+		Location prev;
+		if (e.length() == TOMBSTONE)
+			prev = index.remove(e.fileId());
+		else {
+			prev = index.put(e.fileId(), new Location(seg.id, e.offset(), e.length()));
+			seg.live.addAndGet(e.length());
+			seg.total.addAndGet(e.length());
+		}
+		if (prev != null) {
+			var old = segment(prev.segment());
+			if (old != null)
+				old.live.addAndGet(-prev.length());
+		}
+	}
+
+	/**
+	 * Rewrites the segments that are mostly dead data.
+	 */
+	void compact() {
+		var candidates = new ArrayList<>(sealed.values());
+		candidates.sort(Comparator.comparingInt(s -> s.id));
+		for (var seg : candidates) {
+			boolean older = hasOlder(seg);
+			if (seg.live.get() < seg.total.get() * COMPACT_RATIO || seg.live.get() == 0 && !older)
+				try {
+					compact(seg, older);
+				} catch (IOException x) {
+					x.printStackTrace();
+				}
+		}
+	}
+
+	private void compact(Segment seg, boolean older) throws IOException {
+		long moved = 0;
+		try (var ch = FileChannel.open(seg.path, StandardOpenOption.READ)) {
+			var entries = readFooter(ch);
+			if (entries == null)
+				throw new IOException("Corrupted segment: " + seg.path);
+			for (var e : entries) {
+				var lock = fileLocks.get(e.fileId());
+				lock.lock();
+				try {
+					var loc = index.get(e.fileId());
+					if (e.length() == TOMBSTONE) {
+						// still needed to hide records of the same file in older segments
+						if (loc == null && older)
+							append(e.fileId(), null, TOMBSTONE);
+					} else if (loc != null && loc.segment() == seg.id && loc.offset() == e.offset()) {
+						var buf = ByteBuffer.allocate(e.length());
+						while (buf.hasRemaining())
+							if (ch.read(buf, e.offset() + buf.position()) < 0)
+								throw new EOFException("Truncated segment: " + seg.path);
+						append(e.fileId(), buf.array(), e.length());
+						moved += e.length();
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+		sealed.remove(seg.id);
+		Files.deleteIfExists(seg.path);
+		Log.info(String.format("Pack compactor: removed segment %d, moved %d bytes\n", seg.id, moved));
+	}
+
+	private boolean hasOlder(Segment seg) {
+		return sealed.keySet().stream().anyMatch(id -> id < seg.id);
+	}
+
+	private void rebuildIndex() throws IOException {
+		List<Integer> ids;
+		try (var s = Files.list(segments)) {
+			ids = s.map(p -> p.getFileName().toString())
+					.filter(n -> n.endsWith(SEGMENT_SUFFIX))
+					.map(n -> Integer.valueOf(n.substring(0, n.length() - SEGMENT_SUFFIX.length())))
+					.sorted()
+					.toList();
+		}
+		int next = 0;
+		for (var id : ids) {
+			var seg = new Segment(id, pathOf(id));
+			List<Entry> entries;
+			try (var ch = FileChannel.open(seg.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				entries = readFooter(ch);
+				if (entries == null) {
+					Log.info(String.format("Pack storage: recovering unsealed segment %d\n", id));
+					entries = recover(ch);
+					writeFooter(ch, entries);
+				}
+			}
+			sealed.put(id, seg);
+			for (var e : entries)
+				apply(seg, e);
+			next = id + 1;
+		}
+		active = newSegment(next);
+		Log.info(String.format("Pack storage: %d files in %d segments\n", index.size(), sealed.size()));
+	}
+
+	/**
+	 * Scans the records of a segment that has no footer, dropping a truncated
+	 * last record.
+	 */
+	private static List<Entry> recover(FileChannel ch) throws IOException {
+		var entries = new ArrayList<Entry>();
+		long pos = 0;
+		var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch.position(0))));
+		try {
+			while (in.readInt() == RECORD_MAGIC) {
+				short n = in.readShort();
+				if (n < 0)
+					break;
+				var id = new byte[n];
+				in.readFully(id);
+				int length = in.readInt();
+				if (length > 0)
+					in.skipNBytes(length);
+				long offset = pos + 4 + 2 + id.length + 4;
+				pos = offset + Math.max(length, 0);
+				entries.add(new Entry(new String(id, StandardCharsets.UTF_8), offset, length));
+			}
+		} catch (EOFException x) {
+			// truncated record
+		}
+		ch.truncate(pos);
+		return entries;
+	}
+
+	/**
+	 * @return the records listed in the footer, or null if the segment is not sealed.
+	 */
+	private static List<Entry> readFooter(FileChannel ch) throws IOException {
+		long size = ch.size();
+		if (size < TRAILER_SIZE)
+			return null;
+		var trailer = ByteBuffer.allocate(TRAILER_SIZE);
+		while (trailer.hasRemaining())
+			ch.read(trailer, size - TRAILER_SIZE + trailer.position());
+		trailer.flip();
+		int count = trailer.getInt();
+		long start = trailer.getLong();
+		if (trailer.getInt() != FOOTER_MAGIC || start < 0 || start > size - TRAILER_SIZE || count < 0)
+			return null;
+
+		var entries = new ArrayList<Entry>(count);
+		var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch.position(start))));
+		for (int i = 0; i < count; i++)
+			entries.add(new Entry(in.readUTF(), in.readLong(), in.readInt()));
+		return entries;
+	}
+
+	private static void writeFooter(FileChannel ch, List<Entry> entries) throws IOException {
+		long start = ch.size();
+		var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch.position(start))));
+		for (var e : entries) {
+			out.writeUTF(e.fileId());
+			out.writeLong(e.offset());
+			out.writeInt(e.length());
+		}
+		out.writeInt(entries.size());
+		out.writeLong(start);
+		out.writeInt(FOOTER_MAGIC);
+		out.flush();
+	}
+
+	private void seal(Segment seg) throws IOException {
+		writeFooter(seg.channel, seg.entries);
+		seg.channel.close();
+		seg.channel = null;
+		seg.entries = null;
+		sealed.put(seg.id, seg);
+	}
+
+	private Segment newSegment(int id) throws IOException {
+		var seg = new Segment(id, pathOf(id));
+		seg.channel = FileChannel.open(seg.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		seg.entries = new ArrayList<>();
+		return seg;
+	}
+
+	private Segment segment(int id) {
+		var seg = active;
+		return seg != null && seg.id == id ? seg : sealed.get(id);
+	}
+
+	private Path pathOf(int segment) {
+		return segments.resolve(String.format("%08d%s", segment, SEGMENT_SUFFIX));
+	}
+
+	static record Location(int segment, long offset, int length) {
+	}
+
+	static record Entry(String fileId, long offset, int length) {
+	}
+
+	static class Segment {
+		final int id;
+		final Path path;
+		final AtomicLong live = new AtomicLong(), total = new AtomicLong();
+
+		// only while active
+		FileChannel channel;
+		List<Entry> entries;
+		long size;
+
+		Segment(int id, Path path) {
+			this.id = id;
+			this.path = path;
+		}
+	}
+
+	/**
+	 * A record of a segment. Records never change once written, so the handle
+	 * stays valid even if the segment is compacted meanwhile.
+	 */
+	private static class PackedFile implements StoredFile {
+		final FileChannel channel;
+		final Location loc;
+
+		PackedFile(FileChannel channel, Location loc) {
+			this.channel = channel;
+			this.loc = loc;
+		}
+
+		@Override
+		public long size() {
+			return loc.length();
+		}
+
+		@Override
+		public String etag() {
+			return String.format("%x-%x", loc.segment(), loc.offset());
+		}
+
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			long end = Math.min(position + count, loc.length()), done = 0;
+			while (position + done < end) {
+				long n = channel.transferTo(loc.offset() + position + done, end - position - done, target);
+				if (n <= 0)
+					break;
+				done += n;
+			}
+			return done;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,334 @@
+package tp1.impl.servers.common.storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.Striped;
+
+import util.IO;
+
+/**
+ * Stores each file verbatim, under a hashed fan-out layout:
+ * root/objects/xx/yy/sha256(userId, generation, filename), so that no
+ * directory grows with the number of files of a user.
+ *
+ * Each user has a generation, root/users/key.gen, and a manifest,
+ * root/users/key.generation.log, an append-only log of the filenames
+ * added and removed in that generation.
+ *
+ * Deleting all the files of a user only bumps the generation and moves the
+ * manifest to root/reap, a constant-time tombstone. The files of the old
+ * generation become unreachable at once, and are unlinked later by a
+ * background reaper, at most REAP_RATE files per second.
+ */
+public class ShardedStorage implements FileStorage {
+
+	private static final Logger Log = Logger.getLogger(ShardedStorage.class.getName());
+
+	private static final String DELIMITER = "$$$";
+	private static final String GEN = ".gen", LOG = ".log";
+	private static final byte ADD = 1, REMOVE = 0;
+
+	static final double REAP_RATE = 1000; // files per second
+	static final long REAP_PERIOD = 10; // seconds
+
+	private static final HexFormat hex = HexFormat.of();
+
+	private final Path objects, users, reap, staging;
+
+	private final Map<String, UserState> states = new ConcurrentHashMap<>();
+	private final Striped<Lock> fileLocks = Striped.lock(64);
+
+	private final RateLimiter reapLimiter = RateLimiter.create(REAP_RATE);
+	private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+		var t = new Thread(r, "file-reaper");
+		t.setDaemon(true);
+		return t;
+	});
+
+	public ShardedStorage(String root) {
+		this.objects = Path.of(root, "objects");
+		this.users = Path.of(root, "users");
+		this.reap = Path.of(root, "reap");
+		this.staging = Path.of(root, "staging");
+		try {
+			if (Files.isDirectory(staging))
+				try (var s = Files.list(staging)) {
+					s.forEach(p -> p.toFile().delete());
+				}
+			for (var dir : new Path[] { objects, users, reap, staging })
+				Files.createDirectories(dir);
+		} catch (IOException x) {
+			throw new RuntimeException(x);
+		}
+		reaper.scheduleWithFixedDelay(this::reap, 0, REAP_PERIOD, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void write(String fileId, InputStream data) throws IOException {
+		var name = FileName.of(fileId);
+		var user = stateOf(name.userId());
+		user.lock.readLock().lock();
+		var lock = fileLocks.get(fileId);
+		lock.lock();
+		try {
+			user.add(name.filename());
+			var file = objectOf(name.userId(), user.generation, name.filename());
+			Files.createDirectories(file.getParent());
+			var tmp = Files.createTempFile(staging, "write", null);
+			if (!IO.write(tmp.toFile(), data))
+				throw new IOException("Failed to write: " + fileId);
+			try {
+				Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException x) {
+				Files.deleteIfExists(tmp);
+				throw x;
+			}
+		} finally {
+			lock.unlock();
+			user.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public StoredFile open(String fileId) throws IOException {
+		var name = FileName.of(fileId);
+		var user = stateOf(name.userId());
+		return StoredFile.of(objectOf(name.userId(), user.generation, name.filename()));
+	}
+
+	@Override
+	public boolean delete(String fileId) throws IOException {
+		var name = FileName.of(fileId);
+		var user = stateOf(name.userId());
+		user.lock.readLock().lock();
+		var lock = fileLocks.get(fileId);
+		lock.lock();
+		try {
+			boolean existed = Files.deleteIfExists(objectOf(name.userId(), user.generation, name.filename()));
+			user.remove(name.filename());
+			return existed;
+		} finally {
+			lock.unlock();
+			user.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Takes constant time, no matter how many files the user has.
+	 */
+	@Override
+	public void deleteAll(String userId) throws IOException {
+		var user = stateOf(userId);
+		user.lock.writeLock().lock();
+		try {
+			long gen = user.generation;
+			writeGeneration(userId, gen + 1);
+			var log = logOf(userId, gen);
+			if (Files.exists(log))
+				Files.move(log, reap.resolve(log.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+			user.generation = gen + 1;
+			user.files.clear();
+		} finally {
+			user.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Unlinks the files listed by the manifests of deleted generations.
+	 */
+	void reap() {
+		try (var s = Files.list(reap)) {
+			for (var log : s.filter(p -> p.getFileName().toString().endsWith(LOG)).toList()) {
+				var name = log.getFileName().toString();
+				long gen = Long.parseLong(name.substring(name.indexOf('.') + 1, name.length() - LOG.length()));
+				var manifest = readManifest(log);
+				int removed = 0;
+				for (var filename : manifest.files()) {
+					reapLimiter.acquire();
+					if (Files.deleteIfExists(objectOf(manifest.userId(), gen, filename)))
+						removed++;
+				}
+				Files.deleteIfExists(log);
+				Log.info(String.format("File reaper: removed %d files of %s\n", removed, manifest.userId()));
+			}
+		} catch (IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	private UserState stateOf(String userId) throws IOException {
+		try {
+			return states.computeIfAbsent(userId, k -> {
+				try {
+					return load(k);
+				} catch (IOException x) {
+					throw new UncheckedIOException(x);
+				}
+			});
+		} catch (UncheckedIOException x) {
+			throw x.getCause();
+		}
+	}
+
+	private UserState load(String userId) throws IOException {
+		long gen = 0;
+		try {
+			gen = Long.parseLong(Files.readString(usersOf(userId, GEN)).trim());
+		} catch (NoSuchFileException x) {
+			// new user
+		}
+		var state = new UserState(userId, gen);
+		var previous = logOf(userId, gen - 1);
+		if (gen > 0 && Files.exists(previous)) // crashed in the middle of deleteAll
+			Files.move(previous, reap.resolve(previous.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+		var log = logOf(userId, gen);
+		if (Files.exists(log)) {
+			var manifest = readManifest(log);
+			state.files.addAll(manifest.files());
+			if (manifest.records() > 2 * manifest.files().size() + 64)
+				rewriteManifest(state);
+		}
+		return state;
+	}
+
+	private void writeGeneration(String userId, long gen) throws IOException {
+		var tmp = Files.createTempFile(staging, "gen", null);
+		Files.writeString(tmp, Long.toString(gen));
+		Files.move(tmp, usersOf(userId, GEN), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static Manifest readManifest(Path log) throws IOException {
+		try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(log)))) {
+			var userId = in.readUTF();
+			var files = new HashSet<String>();
+			int records = 0;
+			try {
+				for (;; records++) {
+					byte op = in.readByte();
+					var filename = in.readUTF();
+					if (op == ADD)
+						files.add(filename);
+					else
+						files.remove(filename);
+				}
+			} catch (EOFException x) {
+				// end of log, possibly a truncated record
+			}
+			return new Manifest(userId, files, records);
+		}
+	}
+
+	private void rewriteManifest(UserState state) throws IOException {
+		var tmp = Files.createTempFile(staging, "manifest", null);
+		try (var out = new DataOutputStream(Files.newOutputStream(tmp))) {
+			out.writeUTF(state.userId);
+			for (var filename : state.files) {
+				out.writeByte(ADD);
+				out.writeUTF(filename);
+			}
+		}
+		Files.move(tmp, logOf(state.userId, state.generation), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void appendManifest(UserState state, byte op, String filename) throws IOException {
+		var log = logOf(state.userId, state.generation);
+		boolean created = !Files.exists(log);
+		try (var out = new DataOutputStream(Files.newOutputStream(log, StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+			if (created)
+				out.writeUTF(state.userId);
+			out.writeByte(op);
+			out.writeUTF(filename);
+		}
+	}
+
+	private Path objectOf(String userId, long gen, String filename) {
+		var hash = hex.formatHex(sha256(userId, Long.toString(gen), filename));
+		return objects.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+	}
+
+	private Path logOf(String userId, long gen) {
+		return usersOf(userId, "." + gen + LOG);
+	}
+
+	private Path usersOf(String userId, String suffix) {
+		return users.resolve(hex.formatHex(sha256(userId)).substring(0, 32) + suffix);
+	}
+
+	private static byte[] sha256(String... values) {
+		try {
+			var md = MessageDigest.getInstance("SHA-256");
+			for (var v : values) {
+				md.update(v.getBytes(StandardCharsets.UTF_8));
+				md.update((byte) 0);
+			}
+			return md.digest();
+		} catch (NoSuchAlgorithmException x) {
+			throw new IllegalStateException(x);
+		}
+	}
+
+	static record FileName(String userId, String filename) {
+		static FileName of(String fileId) {
+			int i = fileId.indexOf(DELIMITER);
+			if (i < 0)
+				throw new IllegalArgumentException("Bad fileId: " + fileId);
+			return new FileName(fileId.substring(0, i), fileId.substring(i + DELIMITER.length()));
+		}
+	}
+
+	static record Manifest(String userId, Set<String> files, int records) {
+	}
+
+	/**
+	 * Writes and deletes of a user share its read lock; deleting all of its
+	 * files takes the write lock.
+	 */
+	class UserState {
+		final String userId;
+		final Set<String> files = new HashSet<>();
+		final ReadWriteLock lock = new ReentrantReadWriteLock();
+		volatile long generation;
+
+		UserState(String userId, long generation) {
+			this.userId = userId;
+			this.generation = generation;
+		}
+
+		synchronized void add(String filename) throws IOException {
+			if (files.add(filename))
+				appendManifest(this, ADD, filename);
+		}
+
+		synchronized void remove(String filename) throws IOException {
+			if (files.remove(filename))
+				appendManifest(this, REMOVE, filename);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package tp1.impl.servers.common.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An open handle to the contents of a stored file.
+ *
+ * Contents are moved to the target channel without being copied into
+ * per-request heap buffers.
+ */
+public interface StoredFile extends Closeable {
+
+	/**
+	 * @return the size of the file, in bytes.
+	 */
+	long size() throws IOException;
+
+	/**
+	 * @return an opaque validator that changes whenever the contents change, or
+	 *         null if the engine cannot tell.
+	 */
+	default String etag() {
+		return null;
+	}
+
+	/**
+	 * Transfers count bytes, starting at position, to the target channel.
+	 *
+	 * @return the number of bytes transferred.
+	 */
+	long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+	/**
+	 * Reads the whole contents into memory. Only meant for small files.
+	 */
+	default byte[] readAllBytes() throws IOException {
+		return read(0, size());
+	}
+
+	/**
+	 * Positional read of up to length bytes, starting at position. The result
+	 * is shorter if the file ends before position + length.
+	 */
+	default byte[] read(long position, long length) throws IOException {
+		long size = size();
+		long from = Math.min(position, size), len = Math.min(length, size - from);
+		if (len > Integer.MAX_VALUE - 8)
+			throw new IOException("Range too large: " + len);
+		var buf = ByteBuffer.allocate((int) len);
+		transferTo(from, len, sink(buf));
+		return buf.array();
+	}
+
+	/**
+	 * Exposes the contents as a stream. Closing the stream closes this handle.
+	 */
+	default InputStream newInputStream() throws IOException {
+		long size = size();
+		return new InputStream() {
+			long pos = 0;
+
+			@Override
+			public int read() throws IOException {
+				var b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				if (pos >= size)
+					return -1;
+				long n = StoredFile.this.transferTo(pos, Math.min(len, size - pos), sink(ByteBuffer.wrap(b, off, len)));
+				if (n <= 0)
+					return -1;
+				pos += n;
+				return (int) n;
+			}
+
+			@Override
+			public void close() throws IOException {
+				StoredFile.this.close();
+			}
+		};
+	}
+
+	/**
+	 * Opens a file on the local disk, transferring its contents with
+	 * FileChannel.transferTo.
+	 */
+	static StoredFile of(Path path) throws IOException {
+		var channel = FileChannel.open(path, StandardOpenOption.READ);
+		var modified = Files.getLastModifiedTime(path).toMillis();
+		return new StoredFile() {
+
+			@Override
+			public String etag() {
+				try {
+					return String.format("%x-%x", channel.size(), modified);
+				} catch (IOException x) {
+					return null;
+				}
+			}
+
+			@Override
+			public long size() throws IOException {
+				return channel.size();
+			}
+
+			@Override
+			public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+				long done = 0;
+				while (done < count) {
+					long n = channel.transferTo(position + done, count - done, target);
+					if (n <= 0)
+						break;
+					done += n;
+				}
+				return done;
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+	private static WritableByteChannel sink(ByteBuffer buf) {
+		return new WritableByteChannel() {
+			@Override
+			public int write(ByteBuffer src) {
+				int n = src.remaining();
+				buf.put(src);
+				return n;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+}
@@ -0,0 +1,198 @@
+package tp1.impl.servers.common.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Resumable upload sessions of the Files service.
+ *
+ * The chunks of an upload are staged on disk, as root/uploadId.data, next to
+ * root/uploadId.meta, which names the file being uploaded. Sessions survive
+ * restarts; those left idle for longer than SESSION_TTL are discarded.
+ *
+ * A chunk must start at, or before, the current end of the staged data.
+ * Resending a chunk (eg. after a dropped connection) overwrites whatever was
+ * staged from its offset on.
+ *
+ * A committed session leaves root/uploadId.done behind, until it expires too,
+ * so that committing it again (eg. after a lost reply) succeeds.
+ */
+public class UploadSessions {
+
+	private static final Logger Log = Logger.getLogger(UploadSessions.class.getName());
+
+	private static final String DATA = ".data", META = ".meta", DONE = ".done";
+
+	static final long SESSION_TTL = TimeUnit.HOURS.toMillis(24);
+	static final long PURGE_PERIOD = 10; // minutes
+
+	/**
+	 * Thrown when a chunk would leave a gap in the staged data.
+	 */
+	public static class OffsetMismatchException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public final long expected;
+
+		OffsetMismatchException(long expected) {
+			super("Expected offset: " + expected);
+			this.expected = expected;
+		}
+	}
+
+	private final Path root;
+	private final Striped<Lock> locks = Striped.lock(64);
+	private final ScheduledExecutorService purger = Executors.newSingleThreadScheduledExecutor(r -> {
+		var t = new Thread(r, "upload-purger");
+		t.setDaemon(true);
+		return t;
+	});
+
+	public UploadSessions(String root) {
+		this.root = Path.of(root);
+		try {
+			Files.createDirectories(this.root);
+		} catch (IOException x) {
+			throw new RuntimeException(x);
+		}
+		purger.scheduleWithFixedDelay(this::purge, PURGE_PERIOD, PURGE_PERIOD, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Starts a new session for uploading the given file.
+	 *
+	 * @return the id of the session.
+	 */
+	public String start(String fileId) throws IOException {
+		var uploadId = UUID.randomUUID().toString();
+		Files.createFile(dataOf(uploadId));
+		Files.writeString(metaOf(uploadId), fileId, StandardCharsets.UTF_8);
+		return uploadId;
+	}
+
+	/**
+	 * Stages a chunk at the given offset.
+	 *
+	 * @return the length of the staged data, after the chunk.
+	 */
+	public long append(String fileId, String uploadId, long offset, byte[] data) throws IOException {
+		var lock = locks.get(uploadId);
+		lock.lock();
+		try {
+			check(fileId, uploadId);
+			try (var ch = FileChannel.open(dataOf(uploadId), StandardOpenOption.WRITE)) {
+				if (offset > ch.size() || offset < 0)
+					throw new OffsetMismatchException(ch.size());
+				ch.truncate(offset);
+				var buf = ByteBuffer.wrap(data);
+				while (buf.hasRemaining())
+					ch.write(buf, offset + buf.position());
+				return ch.size();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the length of the staged data, ie. the offset of the next chunk.
+	 */
+	public long offset(String fileId, String uploadId) throws IOException {
+		check(fileId, uploadId);
+		return Files.size(dataOf(uploadId));
+	}
+
+	/**
+	 * Moves the staged data into the given storage, and ends the session; does
+	 * nothing if the session was already committed.
+	 */
+	public void commit(String fileId, String uploadId, FileStorage storage) throws IOException {
+		var lock = locks.get(uploadId);
+		lock.lock();
+		try {
+			if (committed(fileId, uploadId))
+				return;
+			check(fileId, uploadId);
+			try (var in = Files.newInputStream(dataOf(uploadId))) {
+				storage.write(fileId, in);
+			}
+			Files.move(metaOf(uploadId), doneOf(uploadId), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			Files.deleteIfExists(dataOf(uploadId));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void check(String fileId, String uploadId) throws IOException {
+		if (!valid(uploadId) || !fileId.equals(Files.readString(metaOf(uploadId), StandardCharsets.UTF_8)))
+			throw new NoSuchFileException(uploadId);
+		Files.setLastModifiedTime(metaOf(uploadId), FileTime.fromMillis(System.currentTimeMillis()));
+	}
+
+	private static boolean valid(String uploadId) {
+		return uploadId.matches("[0-9a-f\\-]{36}");
+	}
+
+	private boolean committed(String fileId, String uploadId) throws IOException {
+		if (!valid(uploadId))
+			return false;
+		try {
+			return fileId.equals(Files.readString(doneOf(uploadId), StandardCharsets.UTF_8));
+		} catch (NoSuchFileException x) {
+			return false;
+		}
+	}
+
+	private void discard(String uploadId) throws IOException {
+		Files.deleteIfExists(metaOf(uploadId));
+		Files.deleteIfExists(dataOf(uploadId));
+		Files.deleteIfExists(doneOf(uploadId));
+	}
+
+	private void purge() {
+		long deadline = System.currentTimeMillis() - SESSION_TTL;
+		try (var s = Files.list(root)) {
+			s.filter(p -> p.getFileName().toString().endsWith(META) || p.getFileName().toString().endsWith(DONE)).forEach(meta -> {
+				try {
+					if (Files.getLastModifiedTime(meta).toMillis() < deadline) {
+						var name = meta.getFileName().toString();
+						discard(name.substring(0, name.lastIndexOf('.')));
+						Log.info(String.format("Discarded expired upload session: %s\n", name));
+					}
+				} catch (IOException x) {
+					x.printStackTrace();
+				}
+			});
+		} catch (IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	private Path dataOf(String uploadId) {
+		return root.resolve(uploadId + DATA);
+	}
+
+	private Path metaOf(String uploadId) {
+		return root.resolve(uploadId + META);
+	}
+
+	private Path doneOf(String uploadId) {
+		return root.resolve(uploadId + DONE);
+	}
+}
@@ -2,15 +2,27 @@ package tp1.impl.servers.rest;
 
 import static tp1.impl.clients.Clients.FilesClients;
 
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
 import jakarta.inject.Singleton;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.StreamingOutput;
 import tp1.api.FileInfo;
-import tp1.api.service.java.Directory;
+import tp1.api.ShareRequest;
+import tp1.api.WriteGrant;
+import tp1.api.service.java.Result;
 import tp1.api.service.java.Result.ErrorCode;
 import tp1.api.service.rest.RestDirectory;
+import tp1.impl.clients.DirectoryClientFactory;
 import tp1.impl.servers.common.JavaDirectory;
+import tp1.impl.servers.common.kafka.JavaDirectoryKafka;
+import tp1.impl.servers.rest.util.ByteRange;
+import util.IO;
 
 @Singleton
 public class DirectoryResources extends RestResource implements RestDirectory {
@@ -18,10 +30,10 @@ public class DirectoryResources extends RestResource implements RestDirectory {
 
 	private static final String REST = "/rest/";
 
-	final Directory impl;
+	final JavaDirectory impl;
 
 	public DirectoryResources() {
-		impl = new JavaDirectory(); // new JavaDirectory();
+		impl = DirectoryClientFactory.REPLICATED ? new JavaDirectoryKafka() : new JavaDirectory();
 	}
 
 	public FileInfo writeFile(Long version, String filename, byte[] data, String userId, String password) {
@@ -56,33 +68,144 @@ public class DirectoryResources extends RestResource implements RestDirectory {
 	}
 
 	@Override
-	public byte[] getFile(Long version, String filename, String userId, String accUserId, String password) {
-		Log.info(String.format("REST getFile: filename = %s, userId = %s, accUserId = %s, password =%s\n", filename,
-				userId, accUserId, password));
+	public void shareFiles(Long version, String userId, ShareRequest request, boolean shared, String password) {
+		Log.info(String.format("REST shareFiles: userId = %s, request = %s, shared = %s, password =%s\n", userId, request,
+				shared, password));
+
+		if (request == null)
+			request = new ShareRequest(null, null);
+		super.resultOrThrow(impl.shareFiles(userId, request.getFilenames(), request.getUsers(), shared, password));
+	}
+
+	@Override
+	public Response getFile(Long version, String filename, String userId, String accUserId, String password, String range) {
+		Log.info(String.format("REST getFile: filename = %s, userId = %s, accUserId = %s, password =%s, range = %s\n", filename,
+				userId, accUserId, password, range));
 
 		var res = impl.getFile(filename, userId, accUserId, password);
 		if (res.error() == ErrorCode.REDIRECT) {
 			String location = res.errorValue();
 			if (!location.contains(REST))
-				res = FilesClients.get(location).getFile(JavaDirectory.fileId(filename, userId), password);
+				return proxy(JavaDirectory.fileId(filename, userId), location, range, impl.sizeOf(filename, userId));
 		}
-		return super.resultOrThrow(res);
+		// REST locations redirect (the client resends the Range header to the Files server);
+		// coded files are rebuilt here, and sliced if a range is requested.
+		var data = super.resultOrThrow(res);
+
+		var requested = ByteRange.parse(range, data.length);
+		if (requested == null)
+			return Response.ok(data, MediaType.APPLICATION_OCTET_STREAM).build();
+		else if (!requested.satisfiable(data.length))
+			return Response.status(Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+					.header(ByteRange.CONTENT_RANGE, ByteRange.unsatisfied(data.length))
+					.build();
+		else
+			return Response.status(Status.PARTIAL_CONTENT)
+					.entity(Arrays.copyOfRange(data, (int) requested.start(), (int) requested.end() + 1))
+					.type(MediaType.APPLICATION_OCTET_STREAM)
+					.header(ByteRange.CONTENT_RANGE, requested.contentRange(data.length))
+					.build();
+	}
+
+	/**
+	 * Proxies a file at a Files server that clients cannot be redirected to: if
+	 * a range is requested, fetches only that range; otherwise, streams it all.
+	 * The range is resolved against the size the Directory recorded, as the
+	 * token of the location is good for a single call. If the file got shorter
+	 * meanwhile, the range call tells.
+	 */
+	private Response proxy(String fileId, String location, String range, long size) {
+		var files = FilesClients.get(location);
+		var token = JavaDirectory.tokenOf(location);
+		var requested = range == null || size < 0 ? null : ByteRange.parse(range, size);
+		if (requested == null)
+			return proxy(files.getFileStream(fileId, token));
+
+		var data = requested.satisfiable(size) ? super.resultOrThrow(files.getFileRange(fileId, requested.start(), requested.length(), token)) : new byte[0];
+		if (data.length == 0)
+			return Response.status(Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+					.header(ByteRange.CONTENT_RANGE, ByteRange.unsatisfied(size))
+					.build();
+		var sent = new ByteRange(requested.start(), data.length);
+		return Response.status(Status.PARTIAL_CONTENT)
+				.entity(data)
+				.type(MediaType.APPLICATION_OCTET_STREAM)
+				.header(ByteRange.CONTENT_RANGE, sent.contentRange(Math.max(size, sent.end() + 1)))
+				.build();
+	}
 
+	/**
+	 * Pipes the file from the Files server into the response, a buffer at a
+	 * time, so the Directory never holds the whole file.
+	 */
+	private Response proxy(Result<InputStream> res) {
+		var in = super.resultOrThrow(res);
+		StreamingOutput body = out -> {
+			try (in) {
+				IO.copy(in, out);
+			}
+		};
+		return Response.ok(body, MediaType.APPLICATION_OCTET_STREAM).build();
 	}
 
 	@Override
-	public List<FileInfo> lsFile(Long version, String userId, String password) {
+	public List<FileInfo> lsFile(Long version, String userId, String password, int limit, String cursor) {
 		long T0 = System.currentTimeMillis();
 		try {
 
-			Log.info(String.format("REST lsFile: userId = %s, password = %s\n", userId, password));
+			Log.info(String.format("REST lsFile: userId = %s, password = %s, limit = %d, cursor = %s\n", userId, password, limit, cursor));
 
-			return super.resultOrThrow(impl.lsFile(userId, password));
+			return super.resultOrThrow(impl.lsFile(userId, password, limit, cursor));
 		} finally {
 			System.err.println("TOOK:" + (System.currentTimeMillis() - T0));
 		}
 	}
 
+	@Override
+	public String startUpload(Long version, String filename, String userId, String password) {
+		Log.info(String.format("REST startUpload: filename = %s, userId = %s, password = %s\n", filename, userId, password));
+
+		return super.resultOrThrow(impl.startUpload(filename, userId, password));
+	}
+
+	@Override
+	public Long appendUpload(Long version, String filename, String userId, String uploadId, long offset, byte[] data) {
+		Log.info(String.format("REST appendUpload: filename = %s, userId = %s, uploadId = %s, offset = %d, data.length = %d\n",
+				filename, userId, uploadId, offset, data.length));
+
+		return super.resultOrThrow(impl.appendUpload(filename, userId, uploadId, offset, data));
+	}
+
+	@Override
+	public Long getUploadOffset(Long version, String filename, String userId, String uploadId) {
+		Log.info(String.format("REST getUploadOffset: filename = %s, userId = %s, uploadId = %s\n", filename, userId, uploadId));
+
+		return super.resultOrThrow(impl.getUploadOffset(filename, userId, uploadId));
+	}
+
+	@Override
+	public FileInfo commitUpload(Long version, String filename, String userId, String uploadId, String password) {
+		Log.info(String.format("REST commitUpload: filename = %s, userId = %s, uploadId = %s, password = %s\n",
+				filename, userId, uploadId, password));
+
+		return super.resultOrThrow(impl.commitUpload(filename, userId, uploadId, password));
+	}
+
+	@Override
+	public WriteGrant prepareWrite(Long version, String filename, String userId, String password) {
+		Log.info(String.format("REST prepareWrite: filename = %s, userId = %s, password = %s\n", filename, userId, password));
+
+		return super.resultOrThrow(impl.prepareWrite(filename, userId, password));
+	}
+
+	@Override
+	public FileInfo commitWrite(Long version, String filename, String userId, WriteGrant grant, String password) {
+		Log.info(String.format("REST commitWrite: filename = %s, userId = %s, grant = %s, password = %s\n",
+				filename, userId, grant, password));
+
+		return super.resultOrThrow(impl.commitWrite(filename, userId, grant, password));
+	}
+
 	@Override
 	public void deleteUserFiles(Long version, String userId, String password, String token) {
 		Log.info(
@@ -90,4 +213,39 @@ public class DirectoryResources extends RestResource implements RestDirectory {
 
 		super.resultOrThrow(impl.deleteUserFiles(userId, password, token));
 	}
+
+	@Override
+	public void linkShare(Long version, String fileId, String userIdShare, String token) {
+		Log.info(String.format("REST linkShare: fileId = %s, userIdShare = %s, token = %s\n", fileId, userIdShare, token));
+
+		super.resultOrThrow(impl.linkShare(fileId, userIdShare, true, token));
+	}
+
+	@Override
+	public void unlinkShare(Long version, String fileId, String userIdShare, String token) {
+		Log.info(String.format("REST unlinkShare: fileId = %s, userIdShare = %s, token = %s\n", fileId, userIdShare, token));
+
+		super.resultOrThrow(impl.linkShare(fileId, userIdShare, false, token));
+	}
+
+	@Override
+	public void linkShares(Long version, List<String> fileIds, String userIdShare, boolean shared, String token) {
+		Log.info(String.format("REST linkShares: fileIds = %s, userIdShare = %s, shared = %s, token = %s\n", fileIds, userIdShare, shared, token));
+
+		super.resultOrThrow(impl.linkShares(fileIds, userIdShare, shared, token));
+	}
+
+	@Override
+	public void revokeShares(Long version, List<String> fileIds, String userIdShare, String token) {
+		Log.info(String.format("REST revokeShares: fileIds = %s, userIdShare = %s, token = %s\n", fileIds, userIdShare, token));
+
+		super.resultOrThrow(impl.revokeShares(fileIds, userIdShare, token));
+	}
+
+	@Override
+	public List<FileInfo> getFileInfos(Long version, List<String> fileIds, String token) {
+		Log.info(String.format("REST getFileInfos: fileIds = %s, token = %s\n", fileIds, token));
+
+		return super.resultOrThrow(impl.getFileInfos(fileIds, token));
+	}
 }
@@ -5,7 +5,9 @@ import java.util.logging.Logger;
 
 import org.glassfish.jersey.server.ResourceConfig;
 
-import tp1.api.service.java.Directory;
+import tp1.impl.clients.DirectoryClientFactory;
+import tp1.impl.servers.common.JavaDirectory;
+import tp1.impl.servers.rest.util.DirectoryVersionFilter;
 import tp1.impl.servers.rest.util.GenericExceptionMapper;
 import util.Debug;
 import util.Token;
@@ -17,13 +19,15 @@ public class DirectoryRestServer extends AbstractRestServer {
 	private static Logger Log = Logger.getLogger(DirectoryRestServer.class.getName());
 
 	DirectoryRestServer() {
-		super(Log, Directory.SERVICE_NAME, PORT);
+		super(Log, DirectoryClientFactory.serviceName(JavaDirectory.SHARD), PORT);
 	}
 	
 	@Override
 	public void registerResources(ResourceConfig config) {
 		config.register( DirectoryResources.class ); 
 		config.register( GenericExceptionMapper.class );		
+		if( DirectoryClientFactory.REPLICATED )
+			config.register( DirectoryVersionFilter.class );
 //		config.register( CustomLoggingFilter.class);
 	}
 	
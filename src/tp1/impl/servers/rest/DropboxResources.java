@@ -1,10 +1,13 @@
 package tp1.impl.servers.rest;
 
 import jakarta.inject.Singleton;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
 import tp1.api.service.rest.RestFiles;
 import tp1.impl.servers.common.DropboxImpl;
 import tp1.impl.servers.common.kafka.DropboxImplKafka;
 
+import java.io.InputStream;
 import java.util.logging.Logger;
 
 @Singleton
@@ -19,10 +22,10 @@ public class DropboxResources extends RestResource implements RestFiles {
     }
 
     @Override
-    public void writeFile(String fileId, byte[] data, String token) {
-        Log.info(String.format("REST writeFile: fileId = %s, data.length = %d, token = %s \n", fileId, data.length, token));
+    public void writeFile(String fileId, InputStream data, String token) {
+        Log.info(String.format("REST writeFile: fileId = %s, token = %s \n", fileId, token));
 
-        super.resultOrThrow( impl.writeFile(fileId, data, token));
+        super.resultOrThrow( impl.writeFileStream(fileId, data, token)); // dropbox uploads need the whole file
     }
 
     @Override
@@ -33,10 +36,34 @@ public class DropboxResources extends RestResource implements RestFiles {
     }
 
     @Override
-    public byte[] getFile(String fileId, String token) {
+    public Response getFile(String fileId, String token, String range, String ifRange) {
+        // ranges are not supported, the whole file is always sent
         Log.info(String.format("REST getFile: fileId = %s,  token = %s \n", fileId, token));
 
-        return resultOrThrow( impl.getFile(fileId, token));
+        var data = resultOrThrow( impl.getFile(fileId, token));
+        return Response.ok(data, MediaType.APPLICATION_OCTET_STREAM).build();
+    }
+
+    // Upload sessions are not supported: dropbox uploads need the whole file
+
+    @Override
+    public String startUpload(String fileId, String token) {
+        return super.resultOrThrow( impl.startUpload(fileId, token));
+    }
+
+    @Override
+    public Long appendUpload(String fileId, String uploadId, long offset, byte[] data) {
+        return super.resultOrThrow( impl.appendUpload(fileId, uploadId, offset, data));
+    }
+
+    @Override
+    public Long getUploadOffset(String fileId, String uploadId) {
+        return super.resultOrThrow( impl.getUploadOffset(fileId, uploadId));
+    }
+
+    @Override
+    public void commitUpload(String fileId, String uploadId) {
+        super.resultOrThrow( impl.commitUpload(fileId, uploadId));
     }
 
     @Override
@@ -1,28 +1,39 @@
 package tp1.impl.servers.rest;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.logging.Logger;
 
 import jakarta.inject.Singleton;
-import tp1.api.service.java.Files;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.ResponseBuilder;
+import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.StreamingOutput;
 import tp1.api.service.rest.RestFiles;
 import tp1.impl.servers.common.JavaFiles;
 import tp1.impl.servers.common.kafka.JavaFilesKafka;
+import tp1.impl.servers.common.storage.StoredFile;
+import tp1.impl.servers.rest.util.ByteRange;
+import util.IO;
 
 @Singleton
 public class FilesResources extends RestResource implements RestFiles {
 	protected static Logger Log = Logger.getLogger(FilesResources.class.getName());
 
-	protected Files impl;
+	protected JavaFiles impl;
 
 	public FilesResources() {
 		impl = new JavaFilesKafka();// new JavaFiles();
 	}
 
 	@Override
-	public void writeFile(String fileId, byte[] data, String token) {
-		Log.info(String.format("REST writeFile: fileId = %s, data.length = %d, token = %s \n", fileId, data.length, token));
+	public void writeFile(String fileId, InputStream data, String token) {
+		Log.info(String.format("REST writeFile: fileId = %s, token = %s \n", fileId, token));
 
-		super.resultOrThrow( impl.writeFile(fileId, data, token));
+		super.resultOrThrow( impl.writeFileStream(fileId, data, token));
 	}
 
 	@Override
@@ -33,10 +44,70 @@ public class FilesResources extends RestResource implements RestFiles {
 	}
 
 	@Override
-	public byte[] getFile(String fileId, String token) {
-		Log.info(String.format("REST getFile: fileId = %s,  token = %s \n", fileId, token));
+	public Response getFile(String fileId, String token, String range, String ifRange) {
+		Log.info(String.format("REST getFile: fileId = %s,  token = %s, range = %s \n", fileId, token, range));
 
-		return resultOrThrow( impl.getFile(fileId, token));
+		var file = resultOrThrow( impl.openFile(fileId, token));
+		long size = sizeOf( file );
+		var etag = file.etag();
+
+		var requested = ifRangeMatches(ifRange, etag) ? ByteRange.parse(range, size) : null;
+
+		ResponseBuilder res;
+		ByteRange slice;
+		if (requested == null) {
+			slice = new ByteRange(0, size);
+			res = Response.ok();
+		} else if (requested.satisfiable(size)) {
+			slice = requested;
+			res = Response.status(Status.PARTIAL_CONTENT).header(ByteRange.CONTENT_RANGE, slice.contentRange(size));
+		} else {
+			close( file );
+			return Response.status(Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+					.header(ByteRange.CONTENT_RANGE, ByteRange.unsatisfied(size))
+					.build();
+		}
+
+		StreamingOutput body = out -> {
+			try (file) {
+				file.transferTo(slice.start(), slice.length(), IO.channel(out));
+			}
+		};
+		if (etag != null)
+			res.tag(etag);
+		return res.entity(body)
+				.type(MediaType.APPLICATION_OCTET_STREAM)
+				.header(HttpHeaders.CONTENT_LENGTH, slice.length())
+				.header(ByteRange.ACCEPT_RANGES, ByteRange.BYTES)
+				.build();
+	}
+
+	@Override
+	public String startUpload(String fileId, String token) {
+		Log.info(String.format("REST startUpload: fileId = %s, token = %s \n", fileId, token));
+
+		return super.resultOrThrow( impl.startUpload(fileId, token));
+	}
+
+	@Override
+	public Long appendUpload(String fileId, String uploadId, long offset, byte[] data) {
+		Log.info(String.format("REST appendUpload: fileId = %s, uploadId = %s, offset = %d, length = %d \n", fileId, uploadId, offset, data.length));
+
+		return super.resultOrThrow( impl.appendUpload(fileId, uploadId, offset, data));
+	}
+
+	@Override
+	public Long getUploadOffset(String fileId, String uploadId) {
+		Log.info(String.format("REST getUploadOffset: fileId = %s, uploadId = %s \n", fileId, uploadId));
+
+		return super.resultOrThrow( impl.getUploadOffset(fileId, uploadId));
+	}
+
+	@Override
+	public void commitUpload(String fileId, String uploadId) {
+		Log.info(String.format("REST commitUpload: fileId = %s, uploadId = %s \n", fileId, uploadId));
+
+		super.resultOrThrow( impl.commitUpload(fileId, uploadId));
 	}
 
 	@Override
@@ -45,4 +116,29 @@ public class FilesResources extends RestResource implements RestFiles {
 
 		super.resultOrThrow( impl.deleteUserFiles(userId, token));
 	}
+
+	/**
+	 * A range is only honoured if If-Range is absent or names the current (strong) ETag.
+	 * HTTP-dates are not supported as validators, so they always yield the whole file.
+	 */
+	private static boolean ifRangeMatches(String ifRange, String etag) {
+		return ifRange == null || etag != null && ifRange.trim().equals("\"" + etag + "\"");
+	}
+
+	private static long sizeOf(StoredFile file) {
+		try {
+			return file.size();
+		} catch (IOException x) {
+			close( file );
+			throw new WebApplicationException(x, Status.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	private static void close(StoredFile file) {
+		try {
+			file.close();
+		} catch (IOException x) {
+			x.printStackTrace();
+		}
+	}
 }
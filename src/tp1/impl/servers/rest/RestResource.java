@@ -6,12 +6,15 @@ import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
 import tp1.api.service.java.Result;
+import tp1.api.service.java.Result.ErrorCode;
+import tp1.api.service.rest.RestFiles;
 
 public class RestResource {
 
 	/**
 	 * Given a Result<T>, either returns the value, or throws the JAX-WS Exception
-	 * matching the error code...
+	 * matching the error code... A CONFLICT over an offset (eg. of an upload)
+	 * carries the expected offset in OFFSET_HEADER, so that clients can resync.
 	 */
 	protected <T> T resultOrThrow(Result<T> result) {
 		if (result.isOK())
@@ -22,6 +25,8 @@ public class RestResource {
 			else if (result.errorValue() != null) {
 				System.out.println(result.errorValue().toString());
 			}
+			if (result.error() == ErrorCode.CONFLICT && result.errorValue() instanceof Long offset)
+				throw new WebApplicationException(Response.status(Status.CONFLICT).header(RestFiles.OFFSET_HEADER, offset).build());
 			throw new WebApplicationException(statusCode(result));
 		}
 	}
@@ -0,0 +1,80 @@
+package tp1.impl.servers.rest.util;
+
+/**
+ * A single byte range, as requested through the HTTP Range header.
+ *
+ * Only single ranges are supported; for multiple ranges (or anything that
+ * does not parse) the whole representation is sent, as allowed by RFC 7233.
+ */
+public record ByteRange(long start, long length) {
+
+	public static final String ACCEPT_RANGES = "Accept-Ranges";
+	public static final String CONTENT_RANGE = "Content-Range";
+	public static final String BYTES = "bytes";
+
+	private static final String PREFIX = BYTES + "=";
+
+	/**
+	 * Parses a Range header against a representation of the given size.
+	 *
+	 * @return the requested range, null if the whole representation should be
+	 *         sent. The range is not satisfiable if it starts past the end of the
+	 *         representation.
+	 */
+	public static ByteRange parse(String header, long size) {
+		if (header == null || !header.startsWith(PREFIX) || header.indexOf(',') >= 0)
+			return null;
+		var spec = header.substring(PREFIX.length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0)
+			return null;
+		try {
+			var first = spec.substring(0, dash).trim();
+			var last = spec.substring(dash + 1).trim();
+			if (first.isEmpty()) {
+				// suffix range: the last N bytes
+				long n = Long.parseLong(last);
+				if (n <= 0)
+					return new ByteRange(size, 0);
+				long start = Math.max(0, size - n);
+				return new ByteRange(start, size - start);
+			}
+			long start = Long.parseLong(first);
+			long end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+			if (end < start && start < size)
+				return null;
+			return new ByteRange(start, Math.max(0, end - start + 1));
+		} catch (NumberFormatException x) {
+			return null;
+		}
+	}
+
+	public boolean satisfiable(long size) {
+		return start < size && length > 0;
+	}
+
+	public long end() {
+		return start + length - 1;
+	}
+
+	/**
+	 * @return the value of the Content-Range header for this range.
+	 */
+	public String contentRange(long size) {
+		return String.format("%s %d-%d/%d", BYTES, start, end(), size);
+	}
+
+	/**
+	 * @return the value of the Content-Range header for an unsatisfiable range.
+	 */
+	public static String unsatisfied(long size) {
+		return String.format("%s */%d", BYTES, size);
+	}
+
+	/**
+	 * @return the value of the Range header that requests this range.
+	 */
+	public String header() {
+		return String.format("%s%d-%d", PREFIX, start, end());
+	}
+}
@@ -0,0 +1,52 @@
+package tp1.impl.servers.rest.util;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerRequestFilter;
+import jakarta.ws.rs.container.ContainerResponseContext;
+import jakarta.ws.rs.container.ContainerResponseFilter;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.Status;
+import tp1.api.service.rest.RestDirectory;
+import util.kafka.SyncPoint;
+
+/**
+ * Version-consistent reads over the replicas of a Directory: a request that
+ * carries a version waits until this replica has applied it, and every
+ * response carries the version of this replica.
+ *
+ * A replica that does not catch up within WAIT_TIMEOUT answers 503, so the
+ * client can try another one, rather than waiting forever for a version it
+ * may never reach (eg. one from the log of another shard).
+ */
+public class DirectoryVersionFilter implements ContainerRequestFilter, ContainerResponseFilter {
+	private static Logger Log = Logger.getLogger(DirectoryVersionFilter.class.getName());
+
+	static final int WAIT_PERIOD = 100; // ms
+	static final long WAIT_TIMEOUT = Long.getLong("directory.version.wait", 5_000); // ms
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) throws IOException {
+		var header = requestContext.getHeaderString(RestDirectory.VERSION_HEADER);
+		if (header == null)
+			return;
+		try {
+			long version = Long.parseLong(header);
+			if (!SyncPoint.getInstance().waitForVersion(version, WAIT_PERIOD, WAIT_TIMEOUT)) {
+				Log.info(String.format("Version %d not reached in %d ms, at: %d\n", version, WAIT_TIMEOUT, SyncPoint.getInstance().getVersion()));
+				requestContext.abortWith(Response.status(Status.SERVICE_UNAVAILABLE).build());
+			}
+		} catch (NumberFormatException x) {
+			Log.info("Bad version header: " + header);
+		}
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) throws IOException {
+		long version = SyncPoint.getInstance().getVersion();
+		if (version >= 0)
+			responseContext.getHeaders().putSingle(RestDirectory.VERSION_HEADER, version);
+	}
+}
@@ -4,7 +4,8 @@ package tp1.impl.servers.soap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import tp1.api.service.java.Directory;
+import tp1.impl.clients.DirectoryClientFactory;
+import tp1.impl.servers.common.JavaDirectory;
 import util.Debug;
 import util.Token;
 
@@ -16,7 +17,7 @@ public class DirectorySoapServer extends AbstractSoapServer {
 	private static Logger Log = Logger.getLogger(DirectorySoapServer.class.getName());
 
 	protected DirectorySoapServer() {
-		super(false, Log, Directory.SERVICE_NAME, PORT, new SoapDirectoryWebService());
+		super(false, Log, DirectoryClientFactory.serviceName(JavaDirectory.SHARD), PORT, new SoapDirectoryWebService());
 	}
 
 	public static void main(String[] args) throws Exception {
@@ -2,17 +2,25 @@ package tp1.impl.servers.soap;
 
 import static tp1.impl.clients.Clients.FilesClients;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.util.List;
 import java.util.logging.Logger;
 
+import jakarta.activation.DataHandler;
 import jakarta.jws.WebService;
+import jakarta.xml.ws.soap.MTOM;
 import tp1.api.FileInfo;
 import tp1.api.service.java.Directory;
+import tp1.api.service.java.Result;
 import tp1.api.service.java.Result.ErrorCode;
 import tp1.api.service.soap.DirectoryException;
 import tp1.api.service.soap.SoapDirectory;
+import tp1.impl.clients.DirectoryClientFactory;
 import tp1.impl.servers.common.JavaDirectory;
+import tp1.impl.servers.common.kafka.JavaDirectoryKafka;
 
+@MTOM
 @WebService(serviceName = SoapDirectory.NAME, targetNamespace = SoapDirectory.NAMESPACE, endpointInterface = SoapDirectory.INTERFACE)
 public class SoapDirectoryWebService extends SoapWebService implements SoapDirectory {
 
@@ -21,7 +29,7 @@ public class SoapDirectoryWebService extends SoapWebService implements SoapDirec
 	final Directory impl;
 
 	public SoapDirectoryWebService() {
-		impl = new JavaDirectory(); // new JavaDirectory();
+		impl = DirectoryClientFactory.REPLICATED ? new JavaDirectoryKafka() : new JavaDirectory();
 	}
 
 	@Override
@@ -67,11 +75,32 @@ public class SoapDirectoryWebService extends SoapWebService implements SoapDirec
 		var res = impl.getFile(filename, userId, accUserId, password);
 		if( res.error() == ErrorCode.REDIRECT) {
 			String location = res.errorValue();
-			res = FilesClients.get( location ).getFile( JavaDirectory.fileId(filename, userId), password);
+			res = FilesClients.get( location ).getFile( JavaDirectory.fileId(filename, userId), JavaDirectory.tokenOf(location));
 		}
 		return super.resultOrThrow(res, DirectoryException::new);
 	}
 
+	/**
+	 * The file is piped from the Files server into the attachment, so the
+	 * Directory only holds a buffer of it at a time.
+	 */
+	@Override
+	public DataHandler getFileStream(String filename, String userId, String accUserId, String password) throws DirectoryException {
+		Log.info(String.format("SOAP getFileStream: filename = %s, userId = %s, accUserId = %s, password =%s\n", filename,
+				userId, accUserId, password));
+
+		Result<InputStream> stream;
+		var res = impl.getFile(filename, userId, accUserId, password);
+		if( res.error() == ErrorCode.REDIRECT) {
+			String location = res.errorValue();
+			stream = FilesClients.get( location ).getFileStream( JavaDirectory.fileId(filename, userId), JavaDirectory.tokenOf(location));
+		} else if( res.isOK() )
+			stream = Result.ok( new ByteArrayInputStream( res.value()));
+		else
+			stream = Result.error( res.error());
+		return new DataHandler( new StreamDataSource( super.resultOrThrow(stream, DirectoryException::new)));
+	}
+
 	@Override
 	public List<FileInfo> lsFile(String userId, String password) throws DirectoryException {
 		Log.info(String.format("SOAP lsFile: userId = %s, password = %s\n", userId, password));
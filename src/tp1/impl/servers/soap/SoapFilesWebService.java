@@ -2,13 +2,16 @@ package tp1.impl.servers.soap;
 
 import java.util.logging.Logger;
 
+import jakarta.activation.DataHandler;
 import jakarta.jws.WebService;
+import jakarta.xml.ws.soap.MTOM;
 import tp1.api.service.java.Files;
 import tp1.api.service.soap.FilesException;
 import tp1.api.service.soap.SoapFiles;
 import tp1.impl.servers.common.JavaFiles;
 import tp1.impl.servers.common.kafka.JavaFilesKafka;
 
+@MTOM
 @WebService(serviceName = SoapFiles.NAME, targetNamespace = SoapFiles.NAMESPACE, endpointInterface = SoapFiles.INTERFACE)
 public class SoapFilesWebService extends SoapWebService implements SoapFiles {
 
@@ -42,6 +45,27 @@ public class SoapFilesWebService extends SoapWebService implements SoapFiles {
 		return super.resultOrThrow( impl.getFile(fileId, token), FilesException::new);
 	}
 
+	@Override
+	public byte[] getFileRange(String fileId, long offset, long length, String token) throws FilesException {
+		Log.info(String.format("SOAP getFileRange: fileId = %s, offset = %d, length = %d, token = %s \n", fileId, offset, length, token));
+
+		return super.resultOrThrow( impl.getFileRange(fileId, offset, length, token), FilesException::new);
+	}
+
+	@Override
+	public long getFileSize(String fileId, String token) throws FilesException {
+		Log.info(String.format("SOAP getFileSize: fileId = %s,  token = %s \n", fileId, token));
+
+		return super.resultOrThrow( impl.getFileSize(fileId, token), FilesException::new);
+	}
+
+	@Override
+	public DataHandler getFileStream(String fileId, String token) throws FilesException {
+		Log.info(String.format("SOAP getFileStream: fileId = %s,  token = %s \n", fileId, token));
+
+		return new DataHandler( new StreamDataSource( super.resultOrThrow( impl.getFileStream(fileId, token), FilesException::new)));
+	}
+
 	@Override
 	public void deleteUserFiles(String userId, String token) throws FilesException {
 		Log.info(String.format("SOAP deleteUserFiles: userId = %s, token = %s \n", userId, token));
@@ -0,0 +1,48 @@
+package tp1.impl.servers.soap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import jakarta.activation.DataSource;
+
+/**
+ * Hands a stream to an MTOM attachment, which copies it to the response as it
+ * is written, and closes it afterwards.
+ *
+ * The stream can only be read once.
+ */
+class StreamDataSource implements DataSource {
+
+	static final String OCTET_STREAM = "application/octet-stream";
+
+	private InputStream in;
+
+	StreamDataSource(InputStream in) {
+		this.in = in;
+	}
+
+	@Override
+	public synchronized InputStream getInputStream() throws IOException {
+		if (in == null)
+			throw new IOException("Stream already consumed");
+		var res = in;
+		in = null;
+		return res;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("Read only");
+	}
+
+	@Override
+	public String getContentType() {
+		return OCTET_STREAM;
+	}
+
+	@Override
+	public String getName() {
+		return "file";
+	}
+}
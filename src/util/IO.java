@@ -1,10 +1,31 @@
 package util;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 
 final public class IO {
 
+	/**
+	 * Maximum number of bytes moved per transfer call when streaming to/from disk.
+	 */
+	static final long TRANSFER_CHUNK = 1 << 20;
+
+	/**
+	 * Size of the per-thread buffer used to bridge channels into plain output streams.
+	 */
+	static final int BRIDGE_BUFFER_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<byte[]> bridgeBuffers = ThreadLocal.withInitial(() -> new byte[BRIDGE_BUFFER_SIZE]);
+
 	public static void write(File out, byte[] data) {
 		try {
 			Files.write(out.toPath(), data);
@@ -13,6 +34,26 @@ final public class IO {
 		}
 	}
 
+	/**
+	 * Writes the stream to the file, without buffering it in memory as a whole.
+	 * On failure, the partially written file is removed.
+	 *
+	 * @return true if the whole stream was written, false otherwise.
+	 */
+	public static boolean write(File out, InputStream data) {
+		try (var in = Channels.newChannel(data);
+				var ch = FileChannel.open(out.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long pos = 0, n;
+			while ((n = ch.transferFrom(in, pos, TRANSFER_CHUNK)) > 0)
+				pos += n;
+			return true;
+		} catch (Exception x) {
+			x.printStackTrace();
+			delete(out);
+			return false;
+		}
+	}
+
 	public static byte[] read(File from) {
 		try {
 			return Files.readAllBytes(from.toPath());
@@ -22,6 +63,74 @@ final public class IO {
 		}
 	}
 
+	/**
+	 * Opens the file for streaming its contents.
+	 *
+	 * @return the stream, or null if the file does not exist or cannot be read.
+	 */
+	public static InputStream open(File from) {
+		try {
+			return Channels.newInputStream(FileChannel.open(from.toPath(), StandardOpenOption.READ));
+		} catch (NoSuchFileException x) {
+			return null;
+		} catch (Exception x) {
+			x.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Adapts an output stream into a channel. Unlike Channels.newChannel, the
+	 * copy buffer is reused by all the channels created by the same thread, so
+	 * server threads do not allocate a new heap array per request.
+	 *
+	 * The returned channel must only be used by the thread that created it.
+	 */
+	public static WritableByteChannel channel(OutputStream out) {
+		var buf = bridgeBuffers.get();
+		return new WritableByteChannel() {
+			boolean open = true;
+
+			@Override
+			public int write(ByteBuffer src) throws IOException {
+				int total = 0;
+				while (src.hasRemaining()) {
+					int n = Math.min(src.remaining(), buf.length);
+					src.get(buf, 0, n);
+					out.write(buf, 0, n);
+					total += n;
+				}
+				return total;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return open;
+			}
+
+			@Override
+			public void close() {
+				open = false;
+			}
+		};
+	}
+
+	/**
+	 * Copies the stream, BRIDGE_BUFFER_SIZE bytes at a time, using the buffer of
+	 * the calling thread. Each chunk is written before the next one is read, so a
+	 * slow reader holds back the writer rather than piling data up in memory.
+	 *
+	 * @return the number of bytes copied.
+	 */
+	public static long copy(InputStream in, OutputStream out) throws IOException {
+		var buf = bridgeBuffers.get();
+		long total = 0;
+		for (int n; (n = in.read(buf)) >= 0; total += n)
+			out.write(buf, 0, n);
+		out.flush();
+		return total;
+	}
+
 	public static boolean delete(File file) {
 		try {
 			if (file.exists()) {
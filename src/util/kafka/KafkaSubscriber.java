@@ -2,6 +2,7 @@ package util.kafka;
 
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.serialization.StringDeserializer;
 
 import java.time.Duration;
@@ -10,6 +11,26 @@ import java.util.Properties;
 
 public class KafkaSubscriber {
 	static public KafkaSubscriber createSubscriber(String brokers, List<String> topics, String mode) {
+		return new KafkaSubscriber(new KafkaConsumer<String, String>(properties(brokers, mode)), topics);
+	}
+
+	/**
+	 * A subscriber of a single-partition topic that starts at the given offset,
+	 * or at the beginning of the topic if the offset is no longer (or not yet)
+	 * available.
+	 */
+	static public KafkaSubscriber createSubscriber(String brokers, String topic, long offset) {
+		var consumer = new KafkaConsumer<String, String>(properties(brokers, "earliest"));
+		var partition = new TopicPartition(topic, 0);
+		consumer.assign(List.of(partition));
+		if (offset > 0)
+			consumer.seek(partition, offset);
+		else
+			consumer.seekToBeginning(List.of(partition));
+		return new KafkaSubscriber(consumer);
+	}
+
+	private static Properties properties(String brokers, String mode) {
 
 		Properties props = new Properties();
 
@@ -28,8 +49,7 @@ public class KafkaSubscriber {
 		// Classe para serializar os valores dos eventos (string)
 		props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
 
-		// Cria um consumidor (assinante/subscriber)
-		return new KafkaSubscriber(new KafkaConsumer<String, String>(props), topics);
+		return props;
 	}
 
 	private static final long POLL_TIMEOUT = 1L;
@@ -41,6 +61,10 @@ public class KafkaSubscriber {
 		this.consumer.subscribe(topics);
 	}
 
+	private KafkaSubscriber(KafkaConsumer<String, String> consumer) {
+		this.consumer = consumer;
+	}
+
 	public void start(boolean block, RecordProcessor processor) {
 		if( block )
 			consume( processor );
@@ -32,6 +32,22 @@ public class SyncPoint<T> {
 		}
 	}
 
+	/**
+	 * Waits for version to be at least equals to n, for timeout ms at most.
+	 *
+	 * @return false if it timed out.
+	 */
+	public synchronized boolean waitForVersion(long n, int waitPeriod, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		for (long left = timeout; version < n && left > 0; left = deadline - System.currentTimeMillis()) {
+			try {
+				this.wait(Math.min(waitPeriod, left));
+			} catch (InterruptedException e) {
+			}
+		}
+		return version >= n;
+	}
+
 	/**
 	 * Assuming that results are added sequentially, returns null if the result is
 	 * not available.
@@ -50,6 +66,13 @@ public class SyncPoint<T> {
 		this.notifyAll();
 	}
 	
+	/**
+	 * Returns the current version
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
 	/**
 	 * Updates the version
 	 */